@@ -22,6 +22,8 @@ class Bashpile < Formula
   def install
     system "mvn", "clean", "verify"
     bin.install "target/bashpile.jar"
+    # class data sharing archive trained against the installed jar
+    system "bin/create-cds-archive", "#{bin}/bashpile.jar", "#{bin}/bashpile.jsa"
     bin.install "target/bpc"
     FileUtils.cp "#{bin}/bpc", "#{bin}/bashpilec"
     bin.install "target/bpr"
@@ -19,8 +19,19 @@ tokens { INDENT, DEDENT }
     return denter.nextToken();
   }
 
+  /** Defaults to the commands of this JVM's working directory and PATH */
+  private Lexers.LinuxCommands linuxCommands;
+
+  /** The commands resolved for the working directory and PATH the script will run with */
+  public void setLinuxCommands(Lexers.LinuxCommands linuxCommands) {
+    this.linuxCommands = linuxCommands;
+  }
+
   private boolean isLinuxCommand(CharStream input) {
-    return Lexers.isLinuxCommand(input);
+    if (linuxCommands == null) {
+      linuxCommands = Lexers.resolveLinuxCommands("");
+    }
+    return linuxCommands.isLinuxCommand(input);
   }
 }
 
@@ -0,0 +1,288 @@
+package com.bashpile;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.Optional;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.bashpile.engine.BashTranslationEngine;
+import com.bashpile.engine.BashpileVisitor;
+import com.bashpile.engine.StatementCache;
+import com.bashpile.exceptions.BashpileUncheckedAssertionException;
+import com.bashpile.shell.CommandEnvironment;
+import com.bashpile.shell.ExecutionResults;
+import com.bashpile.shell.ExternalTool;
+import com.bashpile.shell.ShellcheckCache;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static com.bashpile.exceptions.Exceptions.asUncheckedSupplier;
+import static com.bashpile.shell.ExecutionResults.SUCCESS;
+
+/**
+ * Compiles Bashpile to Bash.  One compiler may be shared by any number of threads.
+ * <br>
+ * Every compile gets its own lexer, parser, visitor and translation engine, so the type stack, the expression setups
+ * and the anonymous block counter of one compile can't leak into another.  The only state shared between compiles is
+ * what is true of this machine: the Linux commands found by {@link Lexers}, the ANTLR DFA cache, the
+ * {@link ShellcheckCache} and the {@link StatementCache}.  All of those are safe to use from many threads.
+ * <br>
+ * A compiler is immutable.  bpc builds one from its options and hands it to the batch, the watch and the compile
+ * server, so no setting is global to the JVM.
+ */
+public class BashpileCompiler {
+
+    // statics
+
+    /** Ignores many errors that don't apply, reads the script from STDIN */
+    private static final String[] SHELLCHECK_ARGS = {
+            "--shell=bash", "--severity=warning", "--exclude=SC2034,SC2050,SC2071,SC2072,SC2157", "-"};
+
+    private static final Logger LOG = LogManager.getLogger(BashpileCompiler.class);
+
+    // class fields
+
+    /** Scripts that passed shellcheck before */
+    @Nonnull
+    private final ShellcheckCache shellcheckCache;
+
+    /** Translations of unchanged top level functions, or null to translate every function */
+    @Nullable
+    private final StatementCache statementCache;
+
+    /** Where Linux commands are resolved, null for this JVM's working directory and PATH */
+    @Nullable
+    private final CommandEnvironment commandEnvironment;
+
+    /** Whether written scripts are also formatted with shfmt, see {@link #formatWithShfmt(Path)} */
+    private final boolean shfmt;
+
+    // constructors
+
+    /**
+     * Remembers the scripts that passed shellcheck in the default directory, translates every function and formats
+     * written scripts with shfmt.  The statement cache is opt-in, see {@link #withStatementCache(StatementCache)}.
+     */
+    public BashpileCompiler() {
+        this(ShellcheckCache.ofDefaultDirectory());
+    }
+
+    /** Translates every function */
+    public BashpileCompiler(@Nonnull final ShellcheckCache shellcheckCache) {
+        this(shellcheckCache, null);
+    }
+
+    public BashpileCompiler(
+            @Nonnull final ShellcheckCache shellcheckCache, @Nullable final StatementCache statementCache) {
+        this(shellcheckCache, statementCache, null);
+    }
+
+    public BashpileCompiler(
+            @Nonnull final ShellcheckCache shellcheckCache, @Nullable final StatementCache statementCache,
+            @Nullable final CommandEnvironment commandEnvironment) {
+        this(shellcheckCache, statementCache, commandEnvironment, true);
+    }
+
+    private BashpileCompiler(
+            @Nonnull final ShellcheckCache shellcheckCache, @Nullable final StatementCache statementCache,
+            @Nullable final CommandEnvironment commandEnvironment, final boolean shfmt) {
+        this.shellcheckCache = shellcheckCache;
+        this.statementCache = statementCache;
+        this.commandEnvironment = commandEnvironment;
+        this.shfmt = shfmt;
+    }
+
+    // instance methods
+
+    /** The same compiler with another shellcheck cache */
+    public @Nonnull BashpileCompiler withShellcheckCache(@Nonnull final ShellcheckCache shellcheckCache) {
+        return new BashpileCompiler(shellcheckCache, statementCache, commandEnvironment, shfmt);
+    }
+
+    /** The same compiler with another statement cache, null to translate every function */
+    public @Nonnull BashpileCompiler withStatementCache(@Nullable final StatementCache statementCache) {
+        return new BashpileCompiler(shellcheckCache, statementCache, commandEnvironment, shfmt);
+    }
+
+    /**
+     * The same compiler resolving Linux commands in another working directory and PATH, e.g. a compile server's
+     * client's.  Null for this JVM's.
+     */
+    public @Nonnull BashpileCompiler withCommandEnvironment(@Nullable final CommandEnvironment commandEnvironment) {
+        return new BashpileCompiler(shellcheckCache, statementCache, commandEnvironment, shfmt);
+    }
+
+    /** The same compiler, also formatting written scripts with shfmt or not */
+    public @Nonnull BashpileCompiler withShfmt(final boolean shfmt) {
+        return new BashpileCompiler(shellcheckCache, statementCache, commandEnvironment, shfmt);
+    }
+
+    /**
+     * Translates source and checks the translation with shellcheck.
+     *
+     * @param origin The filename (if a file) or text (if just script lines) of the source.
+     * @param source The Bashpile script.
+     * @return The generated shell script.
+     * @throws BashpileUncheckedAssertionException on shellcheck errors.
+     */
+    public @Nonnull String compile(@Nonnull final String origin, @Nonnull final String source) {
+        return assertNoShellcheckWarnings(translate(origin, source));
+    }
+
+    /**
+     * These are the core antlr calls to run the lexer, parser, visitor and translation engine.
+     * The translation is not checked with shellcheck.
+     *
+     * @param origin The filename (if a file) or text (if just script lines) of the source.
+     * @param source The Bashpile script.
+     * @return The generated shell script.
+     */
+    public @Nonnull String translate(@Nonnull final String origin, @Nonnull final String source) {
+        final StringWriter writer = new StringWriter();
+        try {
+            translate(origin, source, writer);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Translates source straight into writer, a top level statement at a time.  The translation is not checked with
+     * shellcheck.
+     *
+     * @param origin The filename (if a file) or text (if just script lines) of the source.
+     * @param source The Bashpile script.
+     * @param writer Gets the generated shell script, should be buffered.
+     * @see BashpileVisitor#writeProgram(BashpileParser.ProgramContext, Writer)
+     */
+    public void translate(@Nonnull final String origin, @Nonnull final String source, @Nonnull final Writer writer)
+            throws IOException {
+        LOG.trace("Starting parse");
+        // lexer
+        final CharStream input = CharStreams.fromString(source, origin);
+        final CommandEnvironment environment =
+                commandEnvironment != null ? commandEnvironment : CommandEnvironment.current();
+        final BashpileLexer lexer = new BashpileLexer(input);
+        lexer.setLinuxCommands(Lexers.resolveLinuxCommands(source, environment));
+        final CommonTokenStream tokens = new CommonTokenStream(lexer);
+
+        // parser
+        final BashpileParser.ProgramContext tree = parse(tokens);
+
+        // visitor and engine linked in visitor constructor
+        final BashpileVisitor bashpileLogic = new BashpileVisitor(new BashTranslationEngine(origin, statementCache));
+        bashpileLogic.writeProgram(tree, writer);
+    }
+
+    /**
+     * Parses a program with the two-stage strategy from the ANTLR 4 book.  The fast SLL prediction is tried first and
+     * bails out on the first syntax error, which is either a real error or a rare ambiguity only full LL resolves.
+     * Then the tokens are parsed again with full LL prediction and the default error reporting and recovery, so the
+     * tree and any errors are the same as a full LL parse.
+     *
+     * @param tokens The lexed script.
+     * @return The parse tree of the program.
+     */
+    public static @Nonnull BashpileParser.ProgramContext parse(@Nonnull final CommonTokenStream tokens) {
+        final BashpileParser parser = new BashpileParser(tokens);
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            return parser.program();
+        } catch (final ParseCancellationException e) {
+            LOG.debug("SLL parse failed, parsing again with full LL prediction");
+            parser.reset();
+            parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            return parser.program();
+        }
+    }
+
+    /**
+     * Ensures that the shellcheck program can find no warnings.  Scripts that passed before are not checked again.
+     *
+     * @param translatedShellScript The Bash script
+     * @return The translatedShellScript for chaining.
+     */
+    public @Nonnull String assertNoShellcheckWarnings(@Nonnull final String translatedShellScript) {
+        final Optional<ExternalTool> shellcheck = ExternalTool.find("shellcheck");
+        if (shellcheck.isEmpty()) {
+            LOG.warn("shellcheck not found on PATH.  Skipping (is it installed?)");
+            return translatedShellScript;
+        }
+        final ExecutionResults shellcheckResults = asUncheckedSupplier(
+                () -> shellcheckCache.check(shellcheck.get(), translatedShellScript, SHELLCHECK_ARGS));
+        if (shellcheckResults.exitCode() != SUCCESS) {
+            final String message = "Script failed shellcheck.  Script:\n%s\nShellcheck output:\n%s".formatted(
+                    translatedShellScript, shellcheckResults.stdout());
+            throw new BashpileUncheckedAssertionException(message);
+        }
+        return translatedShellScript;
+    }
+
+    /**
+     * Ensures that the shellcheck program can find no warnings in a written script, without reading it into memory.
+     * Scripts that passed before are not checked again.
+     *
+     * @param scriptFile The Bash script, shellcheck reads it as its STDIN.
+     * @throws BashpileUncheckedAssertionException on shellcheck errors.
+     */
+    public void assertNoShellcheckWarnings(@Nonnull final Path scriptFile) {
+        final Optional<ExternalTool> shellcheck = ExternalTool.find("shellcheck");
+        if (shellcheck.isEmpty()) {
+            LOG.warn("shellcheck not found on PATH.  Skipping (is it installed?)");
+            return;
+        }
+        final ExecutionResults shellcheckResults = asUncheckedSupplier(
+                () -> shellcheckCache.check(shellcheck.get(), scriptFile, SHELLCHECK_ARGS));
+        if (shellcheckResults.exitCode() != SUCCESS) {
+            final String message = "Script %s failed shellcheck.  Shellcheck output:\n%s".formatted(
+                    scriptFile, shellcheckResults.stdout());
+            throw new BashpileUncheckedAssertionException(message);
+        }
+    }
+
+    /**
+     * Reformats a written script in place with `shfmt -i 2 -ci -bn`, unless this compiler was made
+     * {@link #withShfmt(boolean) without shfmt}.  Skipped if shfmt is not installed.
+     * <br>
+     * The engine already writes in that style, so this mostly normalizes the shell lines and shell strings that the
+     * user wrote.  It stays on by default until ShfmtCompatibilityTest shows that shfmt leaves every translation
+     * unchanged.
+     *
+     * @param scriptFile The Bash script.
+     * @throws BashpileUncheckedAssertionException on shfmt errors.
+     */
+    public void formatWithShfmt(@Nonnull final Path scriptFile) {
+        if (!shfmt) {
+            return;
+        }
+        final Optional<ExternalTool> shfmtTool = ExternalTool.find("shfmt");
+        if (shfmtTool.isEmpty()) {
+            LOG.warn("shfmt not found on PATH.  Skipping formatting (is it installed?)");
+            return;
+        }
+        final ExecutionResults shfmtResults = asUncheckedSupplier(
+                () -> shfmtTool.get().run("", "-i", "2", "-ci", "-bn", "-w", scriptFile.toString()));
+        if (shfmtResults.exitCode() != SUCCESS) {
+            final String message = "Script %s was unable to format with shfmt.  shfmt code: %d, output:\n%s".formatted(
+                    scriptFile, shfmtResults.exitCode(), shfmtResults.stdout());
+            throw new BashpileUncheckedAssertionException(message);
+        }
+    }
+}
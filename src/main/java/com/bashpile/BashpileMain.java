@@ -1,17 +1,28 @@
 package com.bashpile;
 
+import com.bashpile.engine.StatementCache;
 import com.bashpile.exceptions.BashpileUncheckedException;
+import com.bashpile.shell.ShellcheckCache;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import picocli.CommandLine;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Callable;
@@ -19,6 +30,9 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 /** Entry point into the program.  Only spins up the transpiler and parses the command line with PicoCLI. */
 @CommandLine.Command(
@@ -35,6 +49,12 @@ public class BashpileMain implements Callable<Integer> {
     /** Matches stuff like a.jpeg or b.e */
     private static final Pattern FILE_EXTENSION = Pattern.compile("^(.+)?\\..[^.]?[^.]?[^.]?[^.]?$");
 
+    /** The start of every generated script */
+    private static final String BASH_SHEBANG = "#!/usr/bin/env bash\n\n";
+
+    /** A glob that the shell didn't expand, e.g. it was quoted */
+    private static final Pattern GLOB_CHARACTERS = Pattern.compile("[*?\\[{]");
+
     /**
      * Our main.  Hands off execution to PicoCLI.
      * @see #call()
@@ -59,10 +79,47 @@ public class BashpileMain implements Callable<Integer> {
     @Nullable @SuppressWarnings("UnusedDeclaration")
     private String command;
 
-    @CommandLine.Parameters(arity = "0..1",
-            description = "Use the specified Bashpile file.  -c or INPUT_FILE")
+    @CommandLine.Parameters(arity = "0..*", paramLabel = "INPUT_FILE",
+            description = "Use the specified Bashpile file.  -c or INPUT_FILE\n" +
+                    "Several files, directories (searched for *.bps) or globs are compiled in one batch")
+    @Nonnull @SuppressWarnings("UnusedDeclaration")
+    private List<String> inputFiles = new ArrayList<>();
+
+    @CommandLine.Option(names = {"-j", "--jobs"},
+            description = "How many scripts of a batch to compile at once.  Defaults to the number of processors")
+    @SuppressWarnings("UnusedDeclaration")
+    private int jobs = Runtime.getRuntime().availableProcessors();
+
+    @CommandLine.Option(names = {"--server"}, arity = "0..1", fallbackValue = "",
+            description = "Run as a compile server on this Unix domain socket (for bpr).\n" +
+                    "Defaults to $BASHPILE_SOCKET or ~/.bashpile/compile.sock")
     @Nullable @SuppressWarnings("UnusedDeclaration")
-    private Path inputFile;
+    private String serverSocket;
+
+    @CommandLine.Option(names = {"--no-cache"},
+            description = "Always transpile, do not read or write the compile cache or the function cache")
+    @SuppressWarnings("UnusedDeclaration")
+    private boolean noCache;
+
+    @CommandLine.Option(names = {"--shellcheck-functions"},
+            description = "Only shellcheck the functions that changed since they last passed")
+    @SuppressWarnings("UnusedDeclaration")
+    private boolean shellcheckFunctions;
+
+    @CommandLine.Option(names = {"--no-shfmt"},
+            description = "Do not format written scripts with `shfmt -i 2 -ci -bn`")
+    @SuppressWarnings("UnusedDeclaration")
+    private boolean noShfmt;
+
+    @CommandLine.Option(names = {"--watch"},
+            description = "Compile the input files, directories or globs then recompile each script when it changes")
+    @SuppressWarnings("UnusedDeclaration")
+    private boolean watch;
+
+    @CommandLine.Option(names = {"--cache-stats"},
+            description = "Print compile cache statistics and exit")
+    @SuppressWarnings("UnusedDeclaration")
+    private boolean cacheStats;
 
     // TODO --help, --version
 
@@ -79,7 +136,37 @@ public class BashpileMain implements Callable<Integer> {
      */
     @Override
     public @Nonnull Integer call() throws IOException {
+        final BashpileCompiler compiler = compiler();
+
+        // server mode
+        if (serverSocket != null) {
+            final Path socketPath = serverSocket.isBlank() ? BashpileServer.defaultSocketPath() : Path.of(serverSocket);
+            try (final BashpileServer server = BashpileServer.bind(socketPath, compiler, compileCache())) {
+                server.serve();
+            }
+            return 0;
+        }
+
+        if (cacheStats) {
+            System.out.print(CompileCache.ofDefaultDirectory().stats());
+            System.out.print(Lexers.savedCommandStats());
+            System.out.print(ShellcheckCache.ofDefaultDirectory().stats());
+            System.out.print(StatementCache.ofDefaultDirectory().stats());
+            return 0;
+        }
+
+        // watch mode, runs until interrupted
+        if (watch) {
+            return watch(compiler);
+        }
+
+        // batch mode
+        if (isBatch()) {
+            return compileBatch(compiler);
+        }
+
         // guard
+        Path inputFile = inputFiles.isEmpty() ? null : Path.of(inputFiles.get(0));
         if (inputFile == null && command == null) {
             // bad input
             System.out.println("Input file or -c/--command option must be specified.");
@@ -88,18 +175,14 @@ public class BashpileMain implements Callable<Integer> {
         }
 
         // find transpiled filename
-        Path transpiledFilename;
+        final Path transpiledFilename;
         if (outputFile != null) {
             transpiledFilename = outputFile;
         } else {
-            String filename = inputFile != null && !inputFile.toString().equals("-") ? inputFile.toString() : "command";
+            final Path filename = inputFile != null && !inputFile.toString().equals("-")
+                    ? inputFile : Path.of("command");
             LOG.debug("Input file is: {}", filename);
-            final Matcher matcher = FILE_EXTENSION.matcher(filename);
-            if (matcher.find()) {
-                transpiledFilename = Path.of(matcher.group(1));
-            } else {
-                transpiledFilename = Path.of(filename + ".bash");
-            }
+            transpiledFilename = defaultOutputFile(filename);
         }
 
         // will overwrite
@@ -115,12 +198,20 @@ public class BashpileMain implements Callable<Integer> {
                 inputFile = temp;
             }
 
-            // transpile
-            String translation = inputFile != null ? BashpileMainHelper.transpileNioFile(inputFile)
-                    : BashpileMainHelper.transpileScript(Objects.requireNonNull(command));
-            final String bashScript = "#!/usr/bin/env bash\n\n" + translation;
-            Files.writeString(transpiledFilename, bashScript);
-            makeExecutable(transpiledFilename);
+            // transpile, STDIN's temp file would never be a cache hit
+            if ((noCache || temp != null) && inputFile != null) {
+                compileBashScript(inputFile, transpiledFilename, compiler);
+            } else if (noCache || temp != null) {
+                writeBashScript(transpiledFilename,
+                        BashpileMainHelper.transpileScript(Objects.requireNonNull(command), compiler), compiler);
+            } else if (inputFile != null) {
+                compileBashScript(inputFile, transpiledFilename, compileCache(), compiler);
+            } else {
+                // a command is one command line, small enough to translate in memory
+                writeBashScript(transpiledFilename,
+                        BashpileMainHelper.transpileScript(Objects.requireNonNull(command), compileCache(), compiler),
+                        compiler);
+            }
 
             // last line must be the filename we created
             LOG.info("Created file is:");
@@ -135,6 +226,148 @@ public class BashpileMain implements Callable<Integer> {
         }
     }
 
+    /** The input file without its extension, or with .bash appended if it has none */
+    /* package */ static @Nonnull Path defaultOutputFile(@Nonnull final Path inputFile) {
+        final String filename = inputFile.toString();
+        final Matcher matcher = FILE_EXTENSION.matcher(filename);
+        if (matcher.find()) {
+            return Path.of(matcher.group(1));
+        }
+        return Path.of(filename + ".bash");
+    }
+
+    /** Writes the translation with a Bash shebang line, formats it unless --no-shfmt and makes it executable */
+    /* package */ static void writeBashScript(
+            @Nonnull final Path transpiledFilename, @Nonnull final String translation,
+            @Nonnull final BashpileCompiler compiler) throws IOException {
+        try (final Writer writer = newBashScriptWriter(transpiledFilename)) {
+            writer.write(translation);
+        }
+        compiler.formatWithShfmt(transpiledFilename);
+        makeExecutable(transpiledFilename);
+    }
+
+    /**
+     * Translates inputFile straight into transpiledFilename, a top level statement at a time, so the whole
+     * translation is never in memory.  Then shellcheck reads the written script as its STDIN, it is formatted unless
+     * --no-shfmt and it is made executable.  Not cached, the compile cache stores whole translations.
+     */
+    /* package */ static void compileBashScript(
+            @Nonnull final Path inputFile, @Nonnull final Path transpiledFilename,
+            @Nonnull final BashpileCompiler compiler) throws IOException {
+        translateBashScript(inputFile, transpiledFilename, compiler);
+        compiler.formatWithShfmt(transpiledFilename);
+        makeExecutable(transpiledFilename);
+    }
+
+    /**
+     * Like {@link #compileBashScript(Path, Path, BashpileCompiler)} but a hit is copied from cache and a miss is
+     * copied into cache after it passed shellcheck.  Neither holds the whole translation in memory.  The cache holds
+     * the unformatted translation, so a hit is formatted again unless --no-shfmt.
+     */
+    /* package */ static void compileBashScript(
+            @Nonnull final Path inputFile, @Nonnull final Path transpiledFilename, @Nonnull final CompileCache cache,
+            @Nonnull final BashpileCompiler compiler) throws IOException {
+        final String key = BashpileMainHelper.cacheKey(inputFile);
+        final boolean hit;
+        try (final Writer writer = newBashScriptWriter(transpiledFilename)) {
+            hit = cache.writeTo(key, writer);
+        }
+        if (hit) {
+            LOG.debug("Compile cache hit for {}", key);
+        } else {
+            LOG.debug("Compile cache miss for {}", key);
+            translateBashScript(inputFile, transpiledFilename, compiler);
+            try (final InputStream translation = Files.newInputStream(transpiledFilename)) {
+                translation.skipNBytes(BASH_SHEBANG.getBytes(StandardCharsets.UTF_8).length);
+                cache.put(key, translation);
+            }
+        }
+        compiler.formatWithShfmt(transpiledFilename);
+        makeExecutable(transpiledFilename);
+    }
+
+    // helpers
+
+    /**
+     * The compiler for this run's options.  Only bpc itself (including --server and --watch) saves function
+     * translations between runs.
+     */
+    private @Nonnull BashpileCompiler compiler() {
+        final ShellcheckCache shellcheckCache = shellcheckFunctions
+                ? ShellcheckCache.ofDefaultDirectory().perFunction() : ShellcheckCache.ofDefaultDirectory();
+        final StatementCache statementCache = noCache ? null : StatementCache.ofDefaultDirectory();
+        return new BashpileCompiler(shellcheckCache, statementCache).withShfmt(!noShfmt);
+    }
+
+    /** Translates inputFile straight into transpiledFilename then checks it with shellcheck */
+    private static void translateBashScript(
+            @Nonnull final Path inputFile, @Nonnull final Path transpiledFilename,
+            @Nonnull final BashpileCompiler compiler) throws IOException {
+        try (final Writer writer = newBashScriptWriter(transpiledFilename)) {
+            BashpileMainHelper.translateNioFile(inputFile, writer, compiler);
+        }
+        compiler.assertNoShellcheckWarnings(transpiledFilename);
+    }
+
+    /** Several inputs, a directory or a glob that isn't the name of a file */
+    private boolean isBatch() {
+        if (inputFiles.size() > 1) {
+            return true;
+        }
+        if (inputFiles.isEmpty() || inputFiles.get(0).equals("-")) {
+            return false;
+        }
+        final Path input = Path.of(inputFiles.get(0));
+        return Files.isDirectory(input) || (!Files.exists(input) && GLOB_CHARACTERS.matcher(input.toString()).find());
+    }
+
+    /** Compiles every input, prints a line per script and a timing report.  Returns 1 if any compile failed. */
+    private int compileBatch(@Nonnull final BashpileCompiler compiler) throws IOException {
+        if (outputFile != null || command != null) {
+            System.out.println("-o/--outputFile and -c/--command can't be used with several input files.");
+            picocliCommandLine.usage(System.out);
+            return 1;
+        }
+        final CompileCache cache = noCache ? null : compileCache();
+        final BatchCompile batch = BatchCompile.of(inputFiles, compiler, cache, jobs);
+        final long start = System.nanoTime();
+        final List<BatchCompile.Result> results = batch.compileAll();
+        final Duration wallTime = Duration.ofNanos(System.nanoTime() - start);
+        results.forEach(System.out::println);
+        System.out.print(batch.report(results, wallTime));
+        return results.stream().allMatch(BatchCompile.Result::succeeded) ? 0 : 1;
+    }
+
+    /** Prints a line per compile until interrupted (e.g. Ctrl-C) */
+    private int watch(@Nonnull final BashpileCompiler compiler) throws IOException {
+        if (inputFiles.isEmpty() || inputFiles.contains("-") || outputFile != null || command != null) {
+            System.out.println("--watch needs input files, directories or globs and can't be used with -o or -c.");
+            picocliCommandLine.usage(System.out);
+            return 1;
+        }
+        final CompileCache cache = noCache ? null : compileCache();
+        try (final WatchCompile watchCompile = WatchCompile.of(inputFiles, compiler, cache, jobs)) {
+            watchCompile.watch(System.out::println);
+        }
+        return 0;
+    }
+
+    /** The default compile cache, its last hits and misses are written to the stats file when the JVM exits */
+    private static @Nonnull CompileCache compileCache() {
+        final CompileCache cache = CompileCache.ofDefaultDirectory();
+        Runtime.getRuntime().addShutdownHook(new Thread(cache::flushStats, "compile-cache-stats"));
+        return cache;
+    }
+
+    /** A buffered writer over a new or truncated transpiledFilename, the shebang line is already written */
+    private static @Nonnull Writer newBashScriptWriter(@Nonnull final Path transpiledFilename) throws IOException {
+        final FileChannel channel = FileChannel.open(transpiledFilename, CREATE, TRUNCATE_EXISTING, WRITE);
+        final Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+        writer.write(BASH_SHEBANG);
+        return writer;
+    }
+
     private static void makeExecutable(Path transpiledFilename) throws IOException {
         // make executable
         Set<PosixFilePermission> perms = new HashSet<>();
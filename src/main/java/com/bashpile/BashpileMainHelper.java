@@ -1,37 +1,21 @@
 package com.bashpile;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Duration;
 import java.util.List;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import javax.annotation.Nonnull;
 
-import com.bashpile.engine.BashTranslationEngine;
-import com.bashpile.engine.BashpileVisitor;
 import com.bashpile.exceptions.BashpileUncheckedAssertionException;
 import com.bashpile.exceptions.BashpileUncheckedException;
-import com.bashpile.shell.ExecutionResults;
+import com.bashpile.shell.CommandEnvironment;
 import com.google.common.annotations.VisibleForTesting;
-import org.antlr.v4.runtime.CharStream;
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.tree.ParseTree;
-import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import static com.bashpile.exceptions.Exceptions.asUncheckedFunction;
-import static com.bashpile.exceptions.Exceptions.asUncheckedSupplier;
-import static com.bashpile.shell.BashShell.runAndJoin;
-import static com.bashpile.shell.ExecutionResults.SUCCESS;
-
 public class BashpileMainHelper {
 
     // statics
@@ -40,6 +24,9 @@ public class BashpileMainHelper {
 
     private static final Logger LOG = LogManager.getLogger(BashpileMainHelper.class);
 
+    /** Compiles for the tests and for the overloads without a compiler, with no statement cache */
+    private static final BashpileCompiler DEFAULT_COMPILER = new BashpileCompiler();
+
     // class methods
 
     /**
@@ -49,11 +36,56 @@ public class BashpileMainHelper {
      */
     @VisibleForTesting
     public static @Nonnull String transpileNioFile(@Nonnull Path inputFile) throws IOException {
-        final InputStream inputStream = getSourceInputStream(inputFile);
-        final String sourceName = inputFile.toString();
-        final String parsed = parse(sourceName, inputStream);
-        final String formatted = format(parsed);
-        return assertNoShellcheckWarnings(formatted);
+        return transpileNioFile(inputFile, DEFAULT_COMPILER);
+    }
+
+    /**
+     * Returns the translation by compiler.
+     * @throws IOException on bad input file.
+     * @throws BashpileUncheckedAssertionException on shellcheck errors.
+     */
+    public static @Nonnull String transpileNioFile(@Nonnull Path inputFile, @Nonnull BashpileCompiler compiler)
+            throws IOException {
+        return compiler.compile(inputFile.toString(), getSource(inputFile));
+    }
+
+    /**
+     * Translates straight into writer, without holding the whole translation.  The translation is not checked with
+     * shellcheck.
+     * @throws IOException on bad input file or a failed write.
+     * @see BashpileCompiler#translate(String, String, Writer)
+     */
+    public static void translateNioFile(
+            @Nonnull Path inputFile, @Nonnull Writer writer, @Nonnull BashpileCompiler compiler) throws IOException {
+        compiler.translate(inputFile.toString(), getSource(inputFile), writer);
+    }
+
+    /**
+     * Returns the translation from the cache or transpiles and caches it.
+     * @see #transpileNioFile(Path, BashpileCompiler)
+     */
+    public static @Nonnull String transpileNioFile(
+            @Nonnull Path inputFile, @Nonnull CompileCache cache, @Nonnull BashpileCompiler compiler)
+            throws IOException {
+        return cache.computeIfAbsent(cacheKey(inputFile), () -> transpileNioFile(inputFile, compiler));
+    }
+
+    /** The {@link CompileCache#key(String, String)} of inputFile */
+    public static @Nonnull String cacheKey(@Nonnull Path inputFile) throws IOException {
+        return CompileCache.key(inputFile.toString(), getSource(inputFile));
+    }
+
+    /**
+     * Returns the translation from the cache or transpiles and caches it, resolving Linux commands in environment.
+     * @see #transpileNioFile(Path, CompileCache, BashpileCompiler)
+     */
+    public static @Nonnull String transpileNioFile(
+            @Nonnull Path inputFile, @Nonnull CompileCache cache, @Nonnull CommandEnvironment environment,
+            @Nonnull BashpileCompiler compiler) throws IOException {
+        final String source = getSource(inputFile);
+        final String key = CompileCache.key(inputFile.toString(), source, environment);
+        return cache.computeIfAbsent(
+                key, () -> compiler.withCommandEnvironment(environment).compile(inputFile.toString(), source));
     }
 
     /**
@@ -63,22 +95,52 @@ public class BashpileMainHelper {
      */
     @VisibleForTesting
     public static @Nonnull String transpileScript(@Nonnull String bashpileScript) throws IOException {
-        final InputStream inputStream = IOUtils.toInputStream(bashpileScript, StandardCharsets.UTF_8);
-        final String parsed = parse(bashpileScript, inputStream);
+        return transpileScript(bashpileScript, DEFAULT_COMPILER);
+    }
+
+    /**
+     * Returns the translation by compiler.
+     * @throws BashpileUncheckedAssertionException on shellcheck errors.
+     */
+    public static @Nonnull String transpileScript(
+            @Nonnull String bashpileScript, @Nonnull BashpileCompiler compiler) {
+        final String parsed = compiler.translate(bashpileScript, bashpileScript);
         LOG.debug("Parsed Bashpile script became:\n{}", parsed);
-        final String formatted = format(parsed);
-        return assertNoShellcheckWarnings(formatted);
+        return compiler.assertNoShellcheckWarnings(parsed);
+    }
+
+    /**
+     * Returns the translation from the cache or transpiles and caches it.
+     * @see #transpileScript(String, BashpileCompiler)
+     */
+    public static @Nonnull String transpileScript(
+            @Nonnull String bashpileScript, @Nonnull CompileCache cache, @Nonnull BashpileCompiler compiler)
+            throws IOException {
+        final String key = CompileCache.key(bashpileScript, bashpileScript);
+        return cache.computeIfAbsent(key, () -> transpileScript(bashpileScript, compiler));
+    }
+
+    /**
+     * Returns the translation from the cache or transpiles and caches it, resolving Linux commands in environment.
+     * @see #transpileScript(String, CompileCache, BashpileCompiler)
+     */
+    public static @Nonnull String transpileScript(
+            @Nonnull String bashpileScript, @Nonnull CompileCache cache, @Nonnull CommandEnvironment environment,
+            @Nonnull BashpileCompiler compiler) throws IOException {
+        final String key = CompileCache.key(bashpileScript, bashpileScript, environment);
+        return cache.computeIfAbsent(
+                key, () -> compiler.withCommandEnvironment(environment).compile(bashpileScript, bashpileScript));
     }
 
     // helpers
 
-    /** Returns an input stream of inputFile (without a Shebang line) or defaults to the bashpileScript as an IS */
-    private static @Nonnull InputStream getSourceInputStream(@Nonnull final Path inputFile) throws IOException {
+    /** Returns the text of inputFile without a Shebang line */
+    private static @Nonnull String getSource(@Nonnull final Path inputFile) throws IOException {
         List<String> lines = Files.readAllLines(findFile(inputFile));
-        if (SHEBANG.matcher(lines.get(0)).matches()) {
+        if (!lines.isEmpty() && SHEBANG.matcher(lines.get(0)).matches()) {
             lines = lines.subList(1, lines.size());
         }
-        return IOUtils.toInputStream(String.join("\n", lines), StandardCharsets.UTF_8);
+        return String.join("\n", lines);
     }
 
     private static @Nonnull Path findFile(@Nonnull final Path find) {
@@ -95,108 +157,4 @@ public class BashpileMainHelper {
                 path.getFileName(), Paths.get("").toAbsolutePath());
         throw new BashpileUncheckedException(message);
     }
-
-    /**
-     * These are the core antlr calls to run the lexer, parser, visitor and translation engine.
-     *
-     * @param origin The filename (if a file) or text (if just script lines) of the <code>is</code>.
-     * @param is The input stream holding the Bashpile that we parse.
-     * @return The generated shell script.
-     */
-    private static @Nonnull String parse(
-            @Nonnull final String origin, @Nonnull final InputStream is) throws IOException {
-        LOG.trace("Starting parse");
-        // lexer
-        final CharStream input = CharStreams.fromStream(is);
-        final BashpileLexer lexer = new BashpileLexer(input);
-        final CommonTokenStream tokens = new CommonTokenStream(lexer);
-
-        // parser
-        final BashpileParser parser = new BashpileParser(tokens);
-        final ParseTree tree = parser.program();
-
-        return transpile(origin, tree);
-    }
-
-    /** Returns bash text block */
-    private static @Nonnull String transpile(@Nonnull final String origin, @Nonnull final ParseTree tree) {
-        // visitor and engine linked in visitor constructor
-        final BashpileVisitor bashpileLogic = new BashpileVisitor(new BashTranslationEngine(origin));
-        return bashpileLogic.visit(tree).body();
-    }
-
-    /**
-     * Reformats the bashScript to Google Bash formatting conventions with an external shfmt program.
-     *
-     * @param bashScript The script to reformat.
-     * @return The reformatted Bash script.
-     */
-    private static @Nonnull String format(@Nonnull final String bashScript) {
-        final Path temp = asUncheckedSupplier(() -> Files.createTempFile("format_temp", ".bash"));
-        try {
-            Files.writeString(temp, bashScript);
-            if (runAndJoin("which shfmt").exitCode() != SUCCESS) {
-                LOG.warn("shfmt not found on PATH.  Skipping formatting (is it installed?)");
-                return bashScript;
-            }
-            final ExecutionResults shfmtResults = runAndJoin(
-                    "shfmt -i 2 -ci -bn %s".formatted(temp.toString()));
-            if (shfmtResults.exitCode() != SUCCESS) {
-                final String message = """
-                        Script was unable to format with shfmt.  Command: %s
-                        shfmt code: %d, output: %s
-                        JVM env PATH: %s
-                        Script:
-                        %s"""
-                        .stripIndent()
-                        .formatted(shfmtResults.stdin(), shfmtResults.exitCode(), shfmtResults.stdout(),
-                                System.getenv("PATH"), bashScript);
-                throw new BashpileUncheckedAssertionException(message);
-            }
-            return shfmtResults.stdout();
-        } catch (IOException e) {
-            throw new BashpileUncheckedException(e);
-        } finally {
-            // let filesystem percolate a bit
-            asUncheckedFunction(() -> Thread.sleep(Duration.ofMillis(20)));
-            asUncheckedSupplier(() -> Files.deleteIfExists(temp));
-        }
-    }
-
-    /**
-     * Ensures that the shellcheck program can find no warnings.
-     *
-     * @param translatedShellScript The Bash script
-     * @return The translatedShellScript for chaining.
-     */
-    public static @Nonnull String assertNoShellcheckWarnings(@Nonnull final String translatedShellScript) {
-        Path tempFile = null;
-        try {
-            if (runAndJoin("which shellcheck").exitCode() != SUCCESS) {
-                LOG.warn("shellcheck not found on PATH.  Skipping (is it installed?)");
-                return translatedShellScript;
-            }
-            tempFile = Files.createTempFile("assert", "bps");
-            Files.writeString(tempFile, translatedShellScript);
-            // ignore many errors that don't apply
-            final String excludes = Stream.of(2034, 2050, 2071, 2072, 2157)
-                    .map(i -> "--exclude=SC" + i).collect(Collectors.joining(" "));
-            final ExecutionResults shellcheckResults = runAndJoin(
-                    "shellcheck --shell=bash --severity=warning %s %s".formatted(excludes, tempFile));
-            if (shellcheckResults.exitCode() != SUCCESS) {
-                final String message = "Script failed shellcheck.  Script:\n%s\nShellcheck output:\n%s".formatted(
-                        translatedShellScript, shellcheckResults.stdout());
-                throw new BashpileUncheckedAssertionException(message);
-            }
-            return translatedShellScript;
-        } catch (IOException e) {
-            throw new BashpileUncheckedException(e);
-        } finally {
-            // delete tempFile
-            if (tempFile != null) {
-                final Path finalTempFile = tempFile;
-                asUncheckedSupplier(() -> Files.deleteIfExists(finalTempFile));
-            }
-        }
-    }
 }
@@ -0,0 +1,295 @@
+package com.bashpile;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.FileSystems;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.bashpile.exceptions.BashpileUncheckedException;
+import com.bashpile.shell.CommandEnvironment;
+import jdk.net.ExtendedSocketOptions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static com.bashpile.exceptions.Exceptions.asUncheckedFunction;
+import static com.bashpile.exceptions.Exceptions.asUncheckedSupplier;
+import static java.nio.file.attribute.PosixFilePermission.GROUP_READ;
+import static java.nio.file.attribute.PosixFilePermission.OTHERS_EXECUTE;
+
+/**
+ * A long-lived compile server listening on a Unix domain socket.  Started with `bpc --server`.
+ * <br>
+ * Keeping the JVM resident means the JIT, the ANTLR DFA cache and our own caches (e.g. for Linux commands) stay warm
+ * between compiles, so a client like `bpr` only pays for the compile itself.
+ * <br>
+ * The protocol is line based so that a thin client (e.g. `nc -U`) can talk to us.  A request is a verb line:
+ * <ul><li>ping - replies with "0" and "pong"</li>
+ * <li>stop - replies with "0" and shuts down the server</li>
+ * <li>file or command - followed by four more lines: the client's working directory, the client's PATH, the input file
+ *   and the output file.  For "command" the input file holds the Bashpile command text (like `bpc -c`).  Linux
+ *   commands are resolved in the client's working directory with the client's PATH.</li></ul>
+ * The reply is the exit code on the first line followed by any messages.
+ * Like `bpc` the last line of a successful compile is the created file.  The connection is closed after each reply.
+ * <br>
+ * Each connection is served on its own virtual thread and must send its request within {@link #REQUEST_TIMEOUT}, so
+ * a stalled client doesn't hold up anyone else.  We write files as our user, so only our user may connect: the socket's
+ * directory must be ours and closed to everyone else, and each client's peer credentials are checked.
+ */
+public class BashpileServer implements Closeable {
+
+    // statics
+
+    /** Overrides the default socket location */
+    public static final String SOCKET_ENV_VARIABLE = "BASHPILE_SOCKET";
+
+    /** How long a client has to send its whole request */
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final Logger LOG = LogManager.getLogger(BashpileServer.class);
+
+    /** The socket path from the BASHPILE_SOCKET environment variable or ~/.bashpile/compile.sock */
+    public static @Nonnull Path defaultSocketPath() {
+        final String fromEnvironment = System.getenv(SOCKET_ENV_VARIABLE);
+        if (Strings.isNotBlank(fromEnvironment)) {
+            return Path.of(fromEnvironment);
+        }
+        return Path.of(System.getProperty("user.home"), ".bashpile", "compile.sock");
+    }
+
+    // class fields
+
+    @Nonnull
+    private final Path socketPath;
+
+    @Nonnull
+    private final ServerSocketChannel serverChannel;
+
+    @Nonnull
+    private final BashpileCompiler compiler;
+
+    @Nonnull
+    private final CompileCache cache;
+
+    /** Our user, the only one we serve */
+    @Nonnull
+    private final String owner;
+
+    /** Closes the connections of clients that take longer than {@link #REQUEST_TIMEOUT} to send their request */
+    @Nonnull
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("compile-server-timeouts").daemon().factory());
+
+    private volatile boolean running = true;
+
+    // static initializers
+
+    /** Binds to socketPath, replacing any stale socket file from a previous server */
+    public static @Nonnull BashpileServer bind(@Nonnull final Path socketPath, @Nonnull final BashpileCompiler compiler)
+            throws IOException {
+        return bind(socketPath, compiler, CompileCache.ofDefaultDirectory());
+    }
+
+    /** Binds to socketPath and serves translations by compiler from cache */
+    public static @Nonnull BashpileServer bind(
+            @Nonnull final Path socketPath, @Nonnull final BashpileCompiler compiler, @Nonnull final CompileCache cache)
+            throws IOException {
+        final Path parent = socketPath.toAbsolutePath().getParent();
+        if (parent != null && !Files.exists(parent)) {
+            // only our user should be able to send us files to compile
+            Files.createDirectories(parent,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else if (parent != null) {
+            assertPrivate(parent);
+        }
+        Files.deleteIfExists(socketPath);
+        final ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.bind(UnixDomainSocketAddress.of(socketPath));
+        // the socket file is created by us, so it is owned by our effective user
+        final String owner = Files.getOwner(socketPath).getName();
+        return new BashpileServer(socketPath, channel, compiler, cache, owner);
+    }
+
+    // constructors
+
+    private BashpileServer(@Nonnull final Path socketPath, @Nonnull final ServerSocketChannel serverChannel,
+                           @Nonnull final BashpileCompiler compiler, @Nonnull final CompileCache cache,
+                           @Nonnull final String owner) {
+        this.socketPath = socketPath;
+        this.compiler = compiler;
+        this.serverChannel = serverChannel;
+        this.cache = cache;
+        this.owner = owner;
+    }
+
+    // instance methods
+
+    /**
+     * Accepts and serves requests until a "stop" request.  Each request is served on its own virtual thread, requests
+     * being served when we stop are finished first.
+     */
+    public void serve() throws IOException {
+        LOG.info("Compile server listening on {}", socketPath);
+        try (final ExecutorService requests = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (running) {
+                try {
+                    final SocketChannel client = serverChannel.accept();
+                    requests.execute(() -> serveConnection(client));
+                } catch (final IOException e) {
+                    if (running) {
+                        LOG.warn("Could not accept request", e);
+                    }
+                }
+            }
+        } finally {
+            timeouts.shutdownNow();
+        }
+    }
+
+    /** Serves one connection, then closes it */
+    private void serveConnection(@Nonnull final SocketChannel client) {
+        try (client) {
+            handle(client);
+        } catch (final IOException | RuntimeException e) {
+            if (running) {
+                LOG.warn("Could not serve request", e);
+            }
+        }
+    }
+
+    private void handle(@Nonnull final SocketChannel client) throws IOException {
+        final String peer = client.getOption(ExtendedSocketOptions.SO_PEERCRED).user().getName();
+        if (!owner.equals(peer)) {
+            LOG.warn("Refused a request from user {}", peer);
+            return;
+        }
+        // Unix domain socket channels have no SO_TIMEOUT, closing the channel interrupts a blocked read instead
+        final ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+            LOG.warn("Request not sent within {}, closing the connection", REQUEST_TIMEOUT);
+            asUncheckedFunction(client::close);
+        }, REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+        final PrintWriter writer = new PrintWriter(Channels.newOutputStream(client), false, StandardCharsets.UTF_8);
+        final String verb = Objects.requireNonNullElse(reader.readLine(), "").trim();
+        LOG.debug("Received {} request", verb);
+        switch (verb) {
+            case "ping" -> {
+                timeout.cancel(false);
+                writer.print("0\npong\n");
+            }
+            case "stop" -> {
+                timeout.cancel(false);
+                writer.print("0\nstopping\n");
+                writer.flush();
+                stop();
+            }
+            case "file", "command" -> {
+                try {
+                    final Path workingDirectory = Path.of(readField(reader, "working directory"));
+                    final String path = readField(reader, "PATH");
+                    final Path inputFile = workingDirectory.resolve(readField(reader, "input file"));
+                    final Path outputFile = workingDirectory.resolve(readField(reader, "output file"));
+                    timeout.cancel(false);
+                    final CommandEnvironment environment = new CommandEnvironment(workingDirectory, path);
+                    writer.print(compile(verb.equals("command"), inputFile, outputFile, environment));
+                } catch (final BashpileUncheckedException e) {
+                    writer.print("1\n%s\n".formatted(e.getMessage()));
+                }
+            }
+            default -> writer.print("1\nUnknown request '%s'\n".formatted(verb));
+        }
+        writer.flush();
+    }
+
+    /** Returns the reply text for a compile request */
+    private @Nonnull String compile(
+            final boolean commandMode, @Nonnull final Path inputFile, @Nonnull final Path outputFile,
+            @Nonnull final CommandEnvironment environment) {
+        try {
+            final String translation = commandMode
+                    ? BashpileMainHelper.transpileScript(Files.readString(inputFile), cache, environment, compiler)
+                    : BashpileMainHelper.transpileNioFile(inputFile, cache, environment, compiler);
+            BashpileMain.writeBashScript(outputFile, translation, compiler);
+            return "0\n%s\n".formatted(outputFile.toAbsolutePath());
+        } catch (final IOException | RuntimeException e) {
+            LOG.warn("Compile of {} failed", inputFile, e);
+            asUncheckedSupplier(() -> Files.deleteIfExists(outputFile));
+            return "1\n%s\n".formatted(Objects.requireNonNullElse(e.getMessage(), e.getClass().getName()));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        timeouts.shutdownNow();
+        cache.flushStats();
+        try {
+            serverChannel.close();
+        } finally {
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    /** Stops accepting requests, unblocks {@link #serve()} */
+    private void stop() throws IOException {
+        running = false;
+        serverChannel.close();
+    }
+
+    // helpers
+
+    /**
+     * Checks that directory is owned by our user and that no one else can use it, it may have been created by someone
+     * else before us.
+     *
+     * @throws BashpileUncheckedException if anyone else could connect to a socket in directory.
+     */
+    private static void assertPrivate(@Nonnull final Path directory) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+        final PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class);
+        final String user = System.getProperty("user.name");
+        final Set<PosixFilePermission> othersPermissions = EnumSet.range(GROUP_READ, OTHERS_EXECUTE);
+        othersPermissions.retainAll(attributes.permissions());
+        if (!attributes.owner().getName().equals(user) || !othersPermissions.isEmpty()) {
+            throw new BashpileUncheckedException(
+                    "Socket directory %s must be owned by %s with no group or other permissions (chmod 700), was %s %s"
+                            .formatted(directory, user, attributes.owner().getName(),
+                                    PosixFilePermissions.toString(attributes.permissions())));
+        }
+    }
+
+    private static @Nonnull String readField(@Nonnull final BufferedReader reader, @Nonnull final String fieldName)
+            throws IOException {
+        final @Nullable String line = reader.readLine();
+        if (Strings.isBlank(line)) {
+            throw new BashpileUncheckedException("Compile request was missing the " + fieldName);
+        }
+        return line;
+    }
+}
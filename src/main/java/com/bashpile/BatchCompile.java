@@ -0,0 +1,266 @@
+package com.bashpile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.bashpile.exceptions.BashpileUncheckedException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Compiles many Bashpile scripts in one JVM, e.g. `bpc scripts/ 'tools/**.bps' main.bps`.
+ * <br>
+ * Directories are searched for *.bps files.  Arguments with glob characters are matched against the files under the
+ * glob's leading directories, so a quoted glob works the same as one expanded by the shell.
+ * The scripts are compiled on a {@link ForkJoinPool} and share the compile cache, the command cache of {@link Lexers}
+ * and the shellcheck cache.  Each translation is saved next to its script like a single file compile.
+ */
+public class BatchCompile {
+
+    // statics
+
+    /** The extension of the scripts found in directories */
+    public static final String BASHPILE_EXTENSION = ".bps";
+
+    private static final Pattern GLOB_CHARACTERS = Pattern.compile("[*?\\[{]");
+
+    /** How many of the slowest compiles are listed in the report */
+    private static final int SLOWEST_COUNT = 3;
+
+    private static final Logger LOG = LogManager.getLogger(BatchCompile.class);
+
+    /**
+     * The outcome of compiling one script.
+     *
+     * @param output The created file, or null on failure.
+     * @param error Why the compile failed, or null on success.
+     */
+    public record Result(
+            @Nonnull Path input, @Nullable Path output, @Nonnull Duration elapsed, @Nullable String error) {
+
+        public boolean succeeded() {
+            return error == null;
+        }
+
+        /** One line for the per-file results */
+        @Override
+        public @Nonnull String toString() {
+            if (succeeded()) {
+                return "OK     %s -> %s (%d ms)".formatted(input, output, elapsed.toMillis());
+            }
+            return "FAILED %s (%d ms): %s".formatted(input, elapsed.toMillis(), error);
+        }
+    }
+
+    // class fields
+
+    @Nonnull
+    private final List<Path> inputs;
+
+    @Nonnull
+    private final BashpileCompiler compiler;
+
+    /** Null to always transpile */
+    @Nullable
+    private final CompileCache cache;
+
+    private final int parallelism;
+
+    // static initializers
+
+    /**
+     * Finds the scripts to compile.
+     *
+     * @param arguments Files, directories and globs.
+     * @param compiler Compiles each script.
+     * @param cache The compile cache, or null to always transpile.
+     * @param parallelism How many scripts to compile at once.
+     * @throws BashpileUncheckedException if an argument is not a file or directory and matches no files.
+     */
+    public static @Nonnull BatchCompile of(
+            @Nonnull final List<String> arguments, @Nonnull final BashpileCompiler compiler,
+            @Nullable final CompileCache cache, final int parallelism) throws IOException {
+        final Set<Path> inputs = new LinkedHashSet<>();
+        for (final String argument : arguments) {
+            final List<Path> found = expand(argument);
+            if (found.isEmpty()) {
+                throw new BashpileUncheckedException("No Bashpile scripts found for " + argument);
+            }
+            inputs.addAll(found);
+        }
+        return new BatchCompile(List.copyOf(inputs), compiler, cache, parallelism);
+    }
+
+    // constructors
+
+    private BatchCompile(@Nonnull final List<Path> inputs, @Nonnull final BashpileCompiler compiler,
+                         @Nullable final CompileCache cache, final int parallelism) {
+        this.inputs = inputs;
+        this.compiler = compiler;
+        this.cache = cache;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    // instance methods
+
+    public @Nonnull List<Path> inputs() {
+        return inputs;
+    }
+
+    /**
+     * Compiles every script.  A failed compile doesn't stop the others.
+     *
+     * @return The results, in the order of {@link #inputs()}.
+     */
+    public @Nonnull List<Result> compileAll() {
+        LOG.info("Compiling {} scripts on {} threads", inputs.size(), parallelism);
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            // a parallel stream started in a pool runs in that pool
+            return pool.submit(() -> inputs.parallelStream().map(this::compile).toList()).get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BashpileUncheckedException(e);
+        } catch (final ExecutionException e) {
+            throw new BashpileUncheckedException(e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A summary of the results, e.g. how many failed and the slowest scripts.
+     *
+     * @param wallTime How long {@link #compileAll()} took.
+     */
+    public @Nonnull String report(@Nonnull final List<Result> results, @Nonnull final Duration wallTime) {
+        final long failed = results.stream().filter(result -> !result.succeeded()).count();
+        final Duration compileTime = results.stream().map(Result::elapsed).reduce(Duration.ZERO, Duration::plus);
+        final String slowest = results.stream()
+                .sorted(Comparator.comparing(Result::elapsed).reversed())
+                .limit(SLOWEST_COUNT)
+                .map(result -> "%s (%d ms)".formatted(result.input(), result.elapsed().toMillis()))
+                .collect(Collectors.joining(", "));
+        return """
+                Compiled %d scripts: %d succeeded, %d failed
+                Wall time: %d ms, compile time: %d ms on %d threads
+                Slowest: %s
+                """.formatted(results.size(), results.size() - failed, failed,
+                wallTime.toMillis(), compileTime.toMillis(), parallelism, slowest);
+    }
+
+    // helpers
+
+    /** Compiles one script and saves its translation, a failure is reported in the result */
+    /* package */ @Nonnull Result compile(@Nonnull final Path input) {
+        final long start = System.nanoTime();
+        final Path output = BashpileMain.defaultOutputFile(input);
+        try {
+            if (cache != null) {
+                BashpileMain.writeBashScript(
+                        output, BashpileMainHelper.transpileNioFile(input, cache, compiler), compiler);
+            } else {
+                BashpileMain.compileBashScript(input, output, compiler);
+            }
+            return new Result(input, output.toAbsolutePath(), Duration.ofNanos(System.nanoTime() - start), null);
+        } catch (final IOException | RuntimeException e) {
+            LOG.debug("Compile of {} failed", input, e);
+            try {
+                Files.deleteIfExists(output);
+            } catch (final IOException deleteException) {
+                LOG.warn("Could not delete {}", output, deleteException);
+            }
+            // the first line, shellcheck failures go on to print the whole script
+            final String message = Objects.requireNonNullElse(e.getMessage(), e.getClass().getName());
+            final String firstLine = message.lines().findFirst().orElse(message);
+            return new Result(input, null, Duration.ofNanos(System.nanoTime() - start), firstLine);
+        }
+    }
+
+    /** The scripts an argument stands for, sorted for repeatable output */
+    private static @Nonnull List<Path> expand(@Nonnull final String argument) throws IOException {
+        final Path path = Path.of(argument);
+        if (Files.isRegularFile(path)) {
+            return List.of(path);
+        }
+        final Path root = searchRoot(argument);
+        if (!Files.isDirectory(root)) {
+            return List.of();
+        }
+        try (final Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                    .map(file -> withoutCurrentDirectory(root, file, argument))
+                    .filter(file -> matches(argument, file))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /** Where the scripts of an argument are found: the file, the directory or the leading directories of the glob */
+    /* package */ static @Nonnull Path searchRoot(@Nonnull final String argument) {
+        final Path path = Path.of(argument);
+        return isGlob(argument) ? globRoot(argument) : path;
+    }
+
+    /** If file is one of the scripts the argument stands for, including scripts created since the batch started */
+    /* package */ static boolean matches(@Nonnull final String argument, @Nonnull final Path file) {
+        final Path path = Path.of(argument);
+        if (isGlob(argument)) {
+            final Path root = globRoot(argument);
+            final PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + argument);
+            return matcher.matches(withoutCurrentDirectory(root, file, argument));
+        }
+        if (Files.isDirectory(path)) {
+            return file.toString().endsWith(BASHPILE_EXTENSION) && absolute(file).startsWith(absolute(path));
+        }
+        return absolute(file).equals(absolute(path));
+    }
+
+    /** Has glob characters and isn't the name of a file or directory */
+    private static boolean isGlob(@Nonnull final String argument) {
+        final Path path = Path.of(argument);
+        return GLOB_CHARACTERS.matcher(argument).find() && !Files.isRegularFile(path) && !Files.isDirectory(path);
+    }
+
+    private static @Nonnull Path absolute(@Nonnull final Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /** The leading directories of glob without glob characters, or the current directory */
+    private static @Nonnull Path globRoot(@Nonnull final String glob) {
+        final List<String> parts = new ArrayList<>();
+        for (final String part : glob.split("/", -1)) {
+            if (GLOB_CHARACTERS.matcher(part).find()) {
+                break;
+            }
+            parts.add(part);
+        }
+        if (parts.isEmpty()) {
+            return Path.of(".");
+        }
+        final String root = String.join("/", parts);
+        return Path.of(root.isEmpty() ? "/" : root);
+    }
+
+    /** Files.walk from "." gives paths like "./a.bps", which the glob "*.bps" wouldn't match */
+    private static @Nonnull Path withoutCurrentDirectory(
+            @Nonnull final Path root, @Nonnull final Path file, @Nonnull final String glob) {
+        return root.equals(Path.of(".")) && !glob.startsWith("./") ? root.relativize(file) : file;
+    }
+}
@@ -0,0 +1,427 @@
+package com.bashpile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+import javax.annotation.Nonnull;
+
+import com.bashpile.exceptions.ThrowingSupplier;
+import com.bashpile.shell.CommandCache;
+import com.bashpile.shell.CommandEnvironment;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A content addressed cache of translations that passed shellcheck.  They are not formatted with shfmt, that happens
+ * to the written script on every compile (hit or miss) unless `bpc --no-shfmt`, see
+ * {@link BashpileCompiler#formatWithShfmt(Path)}.
+ * <br>
+ * Entries are keyed by a hash of the source text, where it came from, the compiler build, the working directory and
+ * the {@link CommandCache#fingerprint()}.  The last two decide what is a Linux command: relative commands like `./cmd`
+ * resolve against the working directory, names against the PATH and the shell startup files.  Imports are part of the
+ * source text, the imported libraries themselves are sourced at runtime and don't change the translation.
+ * <br>
+ * Lives in $XDG_CACHE_HOME/bashpile (or ~/.cache/bashpile).  Entries older than {@link #MAX_AGE} are evicted and the
+ * least recently used entries are evicted when the cache grows over {@link #MAX_SIZE_BYTES}.  Hits and misses are
+ * written to the stats file in batches, see {@link #flushStats()}.
+ */
+public class CompileCache {
+
+    // statics
+
+    /** Entries unused for this long are evicted */
+    public static final Duration MAX_AGE = Duration.ofDays(30);
+
+    /** When the entries take more than this space the least recently used ones are evicted */
+    public static final long MAX_SIZE_BYTES = 64L * 1024 * 1024;
+
+    private static final String ENTRY_EXTENSION = ".bash";
+
+    private static final String HITS = "hits";
+
+    private static final String MISSES = "misses";
+
+    /** Lookups counted in memory before they are written to the stats file */
+    private static final int STATS_BATCH_SIZE = 100;
+
+    /** How long lookups are counted in memory before they are written to the stats file */
+    private static final Duration STATS_INTERVAL = Duration.ofSeconds(30);
+
+    private static final Logger LOG = LogManager.getLogger(CompileCache.class);
+
+    /** The default cache location, $XDG_CACHE_HOME/bashpile or ~/.cache/bashpile */
+    public static @Nonnull Path defaultDirectory() {
+        final String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+        final Path cacheHome = Strings.isNotBlank(xdgCacheHome)
+                ? Path.of(xdgCacheHome)
+                : Path.of(System.getProperty("user.home"), ".cache");
+        return cacheHome.resolve("bashpile");
+    }
+
+    /**
+     * Identifies this build of the compiler so a rebuilt compiler doesn't serve stale translations.  The version from
+     * the jar manifest and a hash of the build, see {@link #buildHash(Path)}.  Computed once.
+     */
+    public static @Nonnull String compilerVersion() {
+        return CompilerVersion.VALUE;
+    }
+
+    /**
+     * A hash of the compiled classes and resources.  Every file of a classes directory, since an incremental compile
+     * doesn't change the directory's modified time, or the names and CRCs of the entries of a jar.
+     *
+     * @param build A classes directory or a jar.
+     */
+    /* package */ static @Nonnull String buildHash(@Nonnull final Path build) throws IOException {
+        final Hasher hasher = Hashing.sha256().newHasher();
+        if (Files.isDirectory(build)) {
+            final List<Path> files;
+            try (final Stream<Path> walk = Files.walk(build)) {
+                files = walk.filter(Files::isRegularFile).sorted().toList();
+            }
+            for (final Path file : files) {
+                hasher.putString(build.relativize(file).toString(), StandardCharsets.UTF_8).putByte((byte) 0)
+                        .putBytes(Files.readAllBytes(file));
+            }
+        } else {
+            try (final ZipFile jar = new ZipFile(build.toFile())) {
+                // the CRCs are in the jar's central directory, so the entries aren't read
+                jar.stream().forEach(entry -> hasher.putString(entry.getName(), StandardCharsets.UTF_8)
+                        .putByte((byte) 0).putLong(entry.getCrc()).putLong(entry.getSize()));
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Creates the cache key.
+     *
+     * @param origin The input filename or command text, this is in the translation's header.
+     * @param source The Bashpile source text.
+     * @return A SHA-256 hex string.
+     */
+    public static @Nonnull String key(@Nonnull final String origin, @Nonnull final String source) {
+        return key(origin, source, CommandEnvironment.current());
+    }
+
+    /**
+     * Creates the cache key for a compile in environment.
+     *
+     * @param origin The input filename or command text, this is in the translation's header.
+     * @param source The Bashpile source text.
+     * @param environment Where Linux commands are resolved, e.g. a compile server's client's.
+     * @return A SHA-256 hex string.
+     */
+    public static @Nonnull String key(
+            @Nonnull final String origin, @Nonnull final String source, @Nonnull final CommandEnvironment environment) {
+        return Hashing.sha256().newHasher()
+                .putString(compilerVersion(), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(environment.workingDirectory().toString(), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(CommandCache.fingerprint(environment), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(origin, StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(source, StandardCharsets.UTF_8)
+                .hash().toString();
+    }
+
+    /** Holds the {@link #compilerVersion()}, hashing a jar or classes directory takes a few milliseconds */
+    private static final class CompilerVersion {
+
+        private static final String VALUE = identifyBuild();
+
+        /**
+         * A native image has no code source.  Its executable is rewritten by every build, so the executable's size
+         * and modified time identify it.  A build that can't be identified never shares translations.
+         */
+        private static @Nonnull String identifyBuild() {
+            final String version = Objects.requireNonNullElse(
+                    CompileCache.class.getPackage().getImplementationVersion(), "development");
+            try {
+                final CodeSource codeSource = CompileCache.class.getProtectionDomain().getCodeSource();
+                if (codeSource != null && codeSource.getLocation() != null) {
+                    return version + "@" + buildHash(Path.of(codeSource.getLocation().toURI()));
+                }
+                final Path executable = Path.of(ProcessHandle.current().info().command().orElseThrow());
+                return "%s@%d-%d".formatted(version, Files.size(executable),
+                        Files.getLastModifiedTime(executable).toMillis());
+            } catch (final IOException | URISyntaxException | RuntimeException e) {
+                LOG.warn("Could not identify the compiler build, translations won't be shared with other runs", e);
+                return version + "@" + UUID.randomUUID();
+            }
+        }
+    }
+
+    // class fields
+
+    @Nonnull
+    private final Path directory;
+
+    /** Hits not written to the stats file yet */
+    private long pendingHits = 0;
+
+    /** Misses not written to the stats file yet */
+    private long pendingMisses = 0;
+
+    @Nonnull
+    private Instant lastStatsWrite = Instant.now();
+
+    // static initializers
+
+    /** A cache in the {@link #defaultDirectory()} */
+    public static @Nonnull CompileCache ofDefaultDirectory() {
+        return new CompileCache(defaultDirectory());
+    }
+
+    // constructors
+
+    public CompileCache(@Nonnull final Path directory) {
+        this.directory = directory;
+    }
+
+    // instance methods
+
+    /**
+     * Returns the cached translation for key or creates, saves and returns one with translator.
+     * Problems with the cache itself are logged and otherwise ignored.
+     */
+    public @Nonnull String computeIfAbsent(
+            @Nonnull final String key, @Nonnull final ThrowingSupplier<String, IOException> translator)
+            throws IOException {
+        final Optional<String> cached = get(key);
+        if (cached.isPresent()) {
+            LOG.debug("Compile cache hit for {}", key);
+            return cached.get();
+        }
+        LOG.debug("Compile cache miss for {}", key);
+        final String translation = translator.get();
+        put(key, translation);
+        return translation;
+    }
+
+    /** Gets the cached translation and records a hit or a miss */
+    public @Nonnull Optional<String> get(@Nonnull final String key) {
+        final Path entry = entryPath(key);
+        try {
+            if (Files.isRegularFile(entry)) {
+                final String translation = Files.readString(entry);
+                // for least recently used eviction
+                Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+                countLookup(true);
+                return Optional.of(translation);
+            }
+            countLookup(false);
+        } catch (final IOException e) {
+            LOG.warn("Could not read compile cache entry {}", entry, e);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Copies the cached translation to writer and records a hit or a miss.  The translation is never read into memory.
+     *
+     * @return True on a hit, on a miss nothing was written.
+     * @throws IOException if writing failed.
+     */
+    public boolean writeTo(@Nonnull final String key, @Nonnull final Writer writer) throws IOException {
+        final Path entry = entryPath(key);
+        if (!Files.isRegularFile(entry)) {
+            countLookup(false);
+            return false;
+        }
+        try (final Reader reader = Files.newBufferedReader(entry)) {
+            // for least recently used eviction
+            Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+            reader.transferTo(writer);
+        } catch (final NoSuchFileException e) {
+            LOG.debug("Compile cache entry {} was evicted", entry);
+            countLookup(false);
+            return false;
+        }
+        countLookup(true);
+        return true;
+    }
+
+    /** Saves the translation read from the stream and evicts old entries */
+    public void put(@Nonnull final String key, @Nonnull final InputStream translation) {
+        final Path entry = entryPath(key);
+        try {
+            Files.createDirectories(entry.getParent());
+            // write then move so a concurrent reader never sees a partial entry
+            final Path temp = Files.createTempFile(entry.getParent(), key, ".tmp");
+            Files.copy(translation, temp, REPLACE_EXISTING);
+            Files.move(temp, entry, REPLACE_EXISTING, ATOMIC_MOVE);
+            evict();
+        } catch (final IOException e) {
+            LOG.warn("Could not write compile cache entry {}", entry, e);
+        }
+    }
+
+    /** Saves the translation and evicts old entries */
+    public void put(@Nonnull final String key, @Nonnull final String translation) {
+        final Path entry = entryPath(key);
+        try {
+            Files.createDirectories(entry.getParent());
+            // write then move so a concurrent reader never sees a partial entry
+            final Path temp = Files.createTempFile(entry.getParent(), key, ".tmp");
+            Files.writeString(temp, translation);
+            Files.move(temp, entry, REPLACE_EXISTING, ATOMIC_MOVE);
+            evict();
+        } catch (final IOException e) {
+            LOG.warn("Could not write compile cache entry {}", entry, e);
+        }
+    }
+
+    /** Removes entries older than {@link #MAX_AGE} then the oldest entries until under {@link #MAX_SIZE_BYTES} */
+    public synchronized void evict() throws IOException {
+        final List<Path> entries = entries();
+        final Instant expired = Instant.now().minus(MAX_AGE);
+        long totalSize = 0;
+        // newest first, so once we are over the size limit all the rest are evicted
+        for (final Path entry : entries) {
+            final boolean tooOld = Files.getLastModifiedTime(entry).toInstant().isBefore(expired);
+            totalSize += Files.size(entry);
+            if (tooOld || totalSize > MAX_SIZE_BYTES) {
+                LOG.debug("Evicting compile cache entry {}", entry);
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    /** A human-readable summary for `bpc --cache-stats` */
+    public @Nonnull String stats() throws IOException {
+        final List<Path> entries = entries();
+        long totalSize = 0;
+        for (final Path entry : entries) {
+            totalSize += Files.size(entry);
+        }
+        final Properties stats = readStats();
+        final long hits;
+        final long misses;
+        synchronized (this) {
+            hits = Long.parseLong(stats.getProperty(HITS, "0")) + pendingHits;
+            misses = Long.parseLong(stats.getProperty(MISSES, "0")) + pendingMisses;
+        }
+        final long lookups = hits + misses;
+        final double hitRate = lookups == 0 ? 0 : 100.0 * hits / lookups;
+        return """
+                Compile cache: %s
+                Entries: %d (%d KiB)
+                Hits: %d, misses: %d, hit rate: %.1f%%
+                """.formatted(directory, entries.size(), totalSize / 1024, hits, misses, hitRate);
+    }
+
+    /**
+     * Adds the hits and misses counted since the last write to the stats file.  Called every
+     * {@link #STATS_BATCH_SIZE} lookups or {@link #STATS_INTERVAL}, call when done with the cache so the last lookups
+     * are counted.  Locked since many bpc processes may share the cache, synchronized since a file lock can't be
+     * shared by the threads of a batch compile.  Problems are logged and otherwise ignored.
+     */
+    public synchronized void flushStats() {
+        if (pendingHits == 0 && pendingMisses == 0) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            try (final FileChannel channel = FileChannel.open(statsPath(), READ, WRITE, CREATE);
+                 final FileLock ignored = channel.lock()) {
+                final Properties stats = new Properties();
+                final Reader reader = Channels.newReader(channel, StandardCharsets.UTF_8);
+                stats.load(reader);
+                stats.setProperty(HITS, Long.toString(Long.parseLong(stats.getProperty(HITS, "0")) + pendingHits));
+                stats.setProperty(MISSES,
+                        Long.toString(Long.parseLong(stats.getProperty(MISSES, "0")) + pendingMisses));
+                channel.truncate(0);
+                channel.position(0);
+                final Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8);
+                stats.store(writer, "Bashpile compile cache statistics");
+                writer.flush();
+            }
+        } catch (final IOException e) {
+            LOG.warn("Could not write compile cache statistics {}", statsPath(), e);
+        }
+        pendingHits = 0;
+        pendingMisses = 0;
+        lastStatsWrite = Instant.now();
+    }
+
+    // helpers
+
+    private @Nonnull Path entryPath(@Nonnull final String key) {
+        return directory.resolve("scripts").resolve(key + ENTRY_EXTENSION);
+    }
+
+    /** Entries, most recently used first */
+    private @Nonnull List<Path> entries() throws IOException {
+        final Path scripts = directory.resolve("scripts");
+        if (!Files.isDirectory(scripts)) {
+            return List.of();
+        }
+        try (final Stream<Path> files = Files.list(scripts)) {
+            return files.filter(path -> path.toString().endsWith(ENTRY_EXTENSION))
+                    .sorted(Comparator.comparing(CompileCache::lastModified).reversed())
+                    .toList();
+        }
+    }
+
+    private static @Nonnull FileTime lastModified(@Nonnull final Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (final IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private synchronized void countLookup(final boolean hit) {
+        if (hit) {
+            pendingHits++;
+        } else {
+            pendingMisses++;
+        }
+        if (pendingHits + pendingMisses >= STATS_BATCH_SIZE
+                || lastStatsWrite.isBefore(Instant.now().minus(STATS_INTERVAL))) {
+            flushStats();
+        }
+    }
+
+    private @Nonnull Properties readStats() throws IOException {
+        final Properties stats = new Properties();
+        if (Files.exists(statsPath())) {
+            try (final Reader reader = Files.newBufferedReader(statsPath())) {
+                stats.load(reader);
+            }
+        }
+        return stats;
+    }
+
+    private @Nonnull Path statsPath() {
+        return directory.resolve("stats.properties");
+    }
+}
@@ -1,19 +1,28 @@
 package com.bashpile;
 
-import com.bashpile.shell.BashShell;
-import com.bashpile.shell.ExecutionResults;
+import com.bashpile.shell.CommandCache;
+import com.bashpile.shell.CommandEnvironment;
+import com.bashpile.shell.CommandResolver;
 import com.google.common.annotations.VisibleForTesting;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.misc.Interval;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,15 +31,28 @@ import static com.bashpile.shell.BashShell.isWindows;
 /**
  * Helper class for BashpileLexer.
  */
-// TODO find out why bpc target/bpr.bps runs "type -t commandString:" (trailing colon is incorrect)
 public class Lexers {
 
+    /** How many command environments (working directory and PATH) to remember the commands of */
+    private static final int MAX_ENVIRONMENTS = 16;
+
     /**
-     * Maps a Bash Command to if it is valid (installed, executable and reachable) or not.
+     * Maps a command environment to its map of a Bash Command to if it is valid (installed, executable and reachable)
+     * or not.  Keyed by the working directory and the {@link CommandCache#fingerprint(CommandEnvironment)}, so the
+     * commands are resolved again when the PATH or the shell startup files change.
      * <br>
-     * Is a Hashtable to support testing in parallel.
+     * Synchronized to support testing in parallel and the compile server.
      */
-    private static final Map<String, Boolean> COMMAND_TO_VALIDITY_CACHE = new Hashtable<>(100);
+    private static final Map<String, Map<String, Boolean>> ENVIRONMENT_TO_COMMANDS = Collections.synchronizedMap(
+            new LinkedHashMap<>(MAX_ENVIRONMENTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Map<String, Boolean>> eldest) {
+                    return size() > MAX_ENVIRONMENTS;
+                }
+            });
+
+    /** Saved between compiles, only consulted by {@link #resolveLinuxCommands(String, CommandEnvironment)} */
+    private static final CommandCache SAVED_COMMANDS = CommandCache.ofDefaultDirectory();
 
     /** A regex for a valid Bash identifier */
     private static final Pattern COMMAND_PATTERN = Pattern.compile("^[a-zA-Z_][a-zA-Z0-9_]*");
@@ -44,61 +66,134 @@ public class Lexers {
     private static final Pattern ASSIGN_PATTERN =
             Pattern.compile("^[a-zA-Z_][a-zA-Z0-9_]*=(\"[^\"]*\"|'[^']*'|[^ ]+|[0-9]+)+\\s*");
 
-    /** File is really a command */
-    private static final List<String> COMMAND_TYPES = List.of("alias", "function", "builtin", "file");
+    /**
+     * A regex for a Bashpile reassignment like `x = 5`, `x += 5` or `x[0] = 5`.  A Bash assignment has no space
+     * before the `=` and is a preamble (see {@link #ASSIGN_PATTERN}).
+     */
+    private static final Pattern REASSIGN_PATTERN =
+            Pattern.compile("^[a-zA-Z_][a-zA-Z0-9_]*(?:\\s+|\\[[^]]*]\\s*)\\+?=(?!=)");
 
     /** Should be excluded from being a Linux command */
     private static final List<String> BASHPILE_KEYWORDS = List.of("return", "readonly", "unset", "else-if");
 
+    private static final Logger LOG = LogManager.getLogger(Lexers.class);
+
     /**
-     * Checks if the command portion of the input Bash line is a valid Bash command.
-     * <br>
-     * Running 'type' to verify is expensive so we both check if the command is valid with a Regex and cache results.
+     * Checks if the command portion of the input Bash line is a valid Bash command in this JVM's working directory and
+     * PATH.
      *
      * @param charStream From the `_input` of a Semantic Predicate in the BashpileLexer
      * @return Checks if the parsed command is valid.
+     * @see LinuxCommands#isLinuxCommand(CharStream)
      */
     @SuppressWarnings("unused")
     public static boolean isLinuxCommand(@Nonnull final CharStream charStream) {
-        // guard
-        if (charStream.size() == 0) {
-            return false;
-        }
-
-        // body
-        boolean startOfLine = true;
-        // scan backwards until at start, the last newline or a character besides space or newline
-        int i = charStream.index() - 1;
-        while(i >= 0 && !Objects.equals(charStream.getText(Interval.of(i, i)), "\n")) {
-            String curr = charStream.getText(Interval.of(i, i));
-            if (!curr.equals(" ")) {
-                startOfLine = false;
-                break;
-            }
-            i--;
-        }
-        if (startOfLine) {
-            // chop off everything before charStream's index
-            return isLinuxCommand(charStream.getText(Interval.of(charStream.index(), charStream.size())));
-        } else {
-            return false;
-        }
+        return linuxCommands(CommandEnvironment.current()).isLinuxCommand(charStream);
     }
 
     /**
-     * Checks if the command portion of the input Bash line is a valid Bash command.
-     * Accepts Windows style filenames for when we are running under WSL.
-     * <br>
-     * Running 'type' to verify is slow so we both check if the command is valid with a Regex and cache results.
+     * Checks if the command portion of the input Bash line is a valid Bash command in this JVM's working directory and
+     * PATH.
      *
      * @param bashLine A line of Bash script to check.
      * @return Checks if the parsed command is valid.
+     * @see LinuxCommands#isLinuxCommand(String)
      */
     @VisibleForTesting
-    /* package */ static boolean isLinuxCommand(@Nonnull String bashLine) {
+    /* package */ static boolean isLinuxCommand(@Nonnull final String bashLine) {
+        return linuxCommands(CommandEnvironment.current()).isLinuxCommand(bashLine);
+    }
+
+    /**
+     * Resolves the command at the start of every line of the source in this JVM's working directory and PATH.
+     *
+     * @see #resolveLinuxCommands(String, CommandEnvironment)
+     */
+    public static @Nonnull LinuxCommands resolveLinuxCommands(@Nonnull final String source) {
+        return resolveLinuxCommands(source, CommandEnvironment.current());
+    }
+
+    /**
+     * Resolves the command at the start of every line of the source up front, with at most one shell for all of them.
+     * This keeps starting processes out of the lexer's semantic predicates.  Commands are resolved again if the PATH
+     * or the shell startup files changed, so a resident compiler (`bpc --server` or `bpc --watch`) sees newly
+     * installed tools and profile functions.
+     *
+     * @param source The whole Bashpile script.
+     * @param environment The working directory and PATH that the script will run with.
+     * @return The resolved commands, for {@link BashpileLexer#setLinuxCommands(LinuxCommands)}.
+     */
+    public static @Nonnull LinuxCommands resolveLinuxCommands(
+            @Nonnull final String source, @Nonnull final CommandEnvironment environment) {
+        final String fingerprint = CommandCache.fingerprint(environment);
+        final LinuxCommands linuxCommands = linuxCommands(environment, fingerprint);
+        final Map<String, Boolean> commandToValidity = linuxCommands.commandToValidity;
+        final Set<String> candidates = new LinkedHashSet<>();
+        source.lines()
+                .map(String::stripLeading)
+                .map(Lexers::toCommand)
+                .filter(command -> command != null && !commandToValidity.containsKey(command))
+                .distinct()
+                .forEach(command -> {
+                    if (!isCandidate(command)) {
+                        commandToValidity.put(command, false);
+                        return;
+                    }
+                    final Optional<Boolean> saved = command.contains("/")
+                            ? Optional.empty() : SAVED_COMMANDS.get(fingerprint, command);
+                    if (saved.isPresent()) {
+                        commandToValidity.put(command, saved.get());
+                    } else {
+                        candidates.add(command);
+                    }
+                });
+        try {
+            CommandResolver.resolveAll(candidates, environment).forEach((command, type) -> {
+                commandToValidity.put(command, type.isCommand());
+                SAVED_COMMANDS.put(fingerprint, command, type.isCommand());
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not resolve commands up front, will resolve them one at a time", e);
+        }
+        SAVED_COMMANDS.save();
+        return linuxCommands;
+    }
+
+    /** A human-readable summary of the command cache that is saved between compiles */
+    public static @Nonnull String savedCommandStats() {
+        return SAVED_COMMANDS.stats();
+    }
+
+    // helpers
+
+    private static @Nonnull LinuxCommands linuxCommands(@Nonnull final CommandEnvironment environment) {
+        return linuxCommands(environment, CommandCache.fingerprint(environment));
+    }
+
+    /** The commands resolved so far in environment, none if fingerprint is new */
+    private static @Nonnull LinuxCommands linuxCommands(
+            @Nonnull final CommandEnvironment environment, @Nonnull final String fingerprint) {
+        final String key = environment.workingDirectory() + "\0" + fingerprint;
+        final Map<String, Boolean> commandToValidity = ENVIRONMENT_TO_COMMANDS.computeIfAbsent(key, unused -> {
+            LOG.debug("Resolving Linux commands for {} with PATH and shell startup files {}",
+                    environment.workingDirectory(), fingerprint);
+            return new ConcurrentHashMap<>(100);
+        });
+        return new LinuxCommands(environment, commandToValidity);
+    }
+
+    /**
+     * Finds the command of a Bash line, skipping var=value preambles.
+     * Bashpile declarations (`names0: list<str> = ...`), headers (`else-if check:`) and reassignments are not
+     * commands, so their variable names are never resolved or saved.
+     *
+     * @return The command or null if the line starts with a space or is one of the Bashpile statements above.
+     */
+    @VisibleForTesting
+    /* package */ static @Nullable String toCommand(@Nonnull String bashLine) {
         // guard
-        if (StringUtils.isBlank(bashLine) || bashLine.startsWith(" ")) {
-            return false;
+        if (StringUtils.isBlank(bashLine) || bashLine.startsWith(" ") || REASSIGN_PATTERN.matcher(bashLine).find()) {
+            return null;
         }
 
         // check for var=value preambles and remove
@@ -110,9 +205,8 @@ public class Lexers {
 
         // split on whitespace or Bash command separator
         String command = bashLine.split("[ \n;]")[0];
-
-        if (COMMAND_TO_VALIDITY_CACHE.containsKey(command)) {
-            return COMMAND_TO_VALIDITY_CACHE.get(command);
+        if (command.endsWith(":")) {
+            return null;
         }
 
         if (isWindows()) {
@@ -125,28 +219,108 @@ public class Lexers {
                 command = "/mnt/%s/%s".formatted(driveLetter, relativePathFromDriveRoot);
             }
         }
+        return command;
+    }
+
+    /** Could be a command, needs to be resolved */
+    private static boolean isCandidate(@Nonnull final String command) {
+        return (COMMAND_PATTERN.matcher(command).matches() || FILE_PATTERN.matcher(command).matches())
+                && !BASHPILE_KEYWORDS.contains(command);
+    }
+
+    /**
+     * The Linux commands of one command environment, a lexer asks it which lines are shell lines.
+     *
+     * @see #resolveLinuxCommands(String, CommandEnvironment)
+     */
+    public static final class LinuxCommands {
+
+        @Nonnull
+        private final CommandEnvironment environment;
+
+        /** Shared by every compile in the environment */
+        @Nonnull
+        private final Map<String, Boolean> commandToValidity;
+
+        private LinuxCommands(
+                @Nonnull final CommandEnvironment environment, @Nonnull final Map<String, Boolean> commandToValidity) {
+            this.environment = environment;
+            this.commandToValidity = commandToValidity;
+        }
+
+        /**
+         * Checks if the command portion of the input Bash line is a valid Bash command.
+         * <br>
+         * Running 'type' to verify is expensive so we both check if the command is valid with a Regex and cache
+         * results.
+         *
+         * @param charStream From the `_input` of a Semantic Predicate in the BashpileLexer
+         * @return Checks if the parsed command is valid.
+         */
+        public boolean isLinuxCommand(@Nonnull final CharStream charStream) {
+            // guard
+            if (charStream.size() == 0) {
+                return false;
+            }
+
+            // body
+            boolean startOfLine = true;
+            // scan backwards until at start, the last newline or a character besides space or newline
+            int i = charStream.index() - 1;
+            while(i >= 0 && !Objects.equals(charStream.getText(Interval.of(i, i)), "\n")) {
+                String curr = charStream.getText(Interval.of(i, i));
+                if (!curr.equals(" ")) {
+                    startOfLine = false;
+                    break;
+                }
+                i--;
+            }
+            if (startOfLine) {
+                // chop off everything before charStream's index and after the line, copying the rest of the script for
+                // every line made lexing quadratic
+                int end = charStream.index();
+                while (end < charStream.size() && !Objects.equals(charStream.getText(Interval.of(end, end)), "\n")) {
+                    end++;
+                }
+                return isLinuxCommand(charStream.getText(Interval.of(charStream.index(), end)));
+            } else {
+                return false;
+            }
+        }
+
+        /**
+         * Checks if the command portion of the input Bash line is a valid Bash command.
+         * Accepts Windows style filenames for when we are running under WSL.
+         * <br>
+         * Resolving with 'type' is slow so we check if the command is valid with a Regex, resolve in process where we
+         * can (see {@link CommandResolver}) and cache results.
+         *
+         * @param bashLine A line of Bash script to check.
+         * @return Checks if the parsed command is valid.
+         * @see #resolveLinuxCommands(String, CommandEnvironment)
+         */
+        public boolean isLinuxCommand(@Nonnull final String bashLine) {
+            final String command = toCommand(bashLine);
+            if (command == null) {
+                return false;
+            }
+            final Boolean cached = commandToValidity.get(command);
+            if (cached != null) {
+                return cached;
+            }
 
-        try {
             // may need a 'and not find with createsStatementRegex' when we add file path recognition to shell lines
-            if (COMMAND_PATTERN.matcher(command).matches() || FILE_PATTERN.matcher(command).matches()) {
-                ExecutionResults results = BashShell.runAndJoin("type -t " + command);
-                // exclude keywords like 'function'
-
-                final String typeResults = results.stdout().trim();
-                boolean ret = results.exitCode() == ExecutionResults.SUCCESS
-                        && (COMMAND_TYPES.contains(typeResults))
-                        && !BASHPILE_KEYWORDS.contains(command);
-                COMMAND_TO_VALIDITY_CACHE.put(command, ret);
+            if (!isCandidate(command)) {
+                commandToValidity.put(command, false);
+                return false;
+            }
+            try {
+                final boolean ret = CommandResolver.resolve(command, environment).isCommand();
+                commandToValidity.put(command, ret);
                 return ret;
-            } else if (FILE_PATTERN.matcher(command).matches() && !BASHPILE_KEYWORDS.contains(command)) {
-                COMMAND_TO_VALIDITY_CACHE.put(command, true);
-                return true;
-            } else {
-                COMMAND_TO_VALIDITY_CACHE.put(command, false);
+            } catch (IOException e) {
                 return false;
             }
-        } catch (IOException e) {
-            return false;
         }
     }
 }
@@ -0,0 +1,200 @@
+package com.bashpile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Keeps the compiler resident and recompiles scripts as they are saved, for `bpc --watch`.
+ * <br>
+ * Takes the same files, directories and globs as a {@link BatchCompile}.  Everything is compiled once, then the
+ * directories of the scripts are watched with a {@link WatchService} and only the scripts that changed (or were
+ * created) are compiled again.  A save that leaves the text unchanged is skipped.
+ * <br>
+ * There is no import graph.  An import is translated from the library's name alone (see
+ * {@link com.bashpile.engine.BashTranslationEngine#importStatement}) and the compiled library is sourced when the
+ * importer runs, so the library's source is never read while compiling an importer.  If imports start reading the
+ * library at compile time (e.g. for its function types) importers will need recompiling too.
+ */
+public class WatchCompile implements Closeable {
+
+    // statics
+
+    /** Editors often save in several writes, this gathers them into one recompile */
+    private static final long SETTLE_MILLIS = 20;
+
+    private static final Logger LOG = LogManager.getLogger(WatchCompile.class);
+
+    // class fields
+
+    @Nonnull
+    private final List<String> arguments;
+
+    @Nonnull
+    private final BatchCompile batch;
+
+    @Nonnull
+    private final WatchService watchService;
+
+    /** What each watched directory's key is for */
+    @Nonnull
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    /** The source text of the last compile of each script, to skip saves that change nothing */
+    @Nonnull
+    private final Map<Path, String> lastSources = new HashMap<>();
+
+    // static initializers
+
+    /**
+     * Finds the scripts to compile like {@link BatchCompile#of(List, BashpileCompiler, CompileCache, int)}.
+     *
+     * @param compiler Compiles each script.
+     * @param cache The compile cache, or null to always transpile.
+     */
+    public static @Nonnull WatchCompile of(
+            @Nonnull final List<String> arguments, @Nonnull final BashpileCompiler compiler,
+            @Nullable final CompileCache cache, final int parallelism) throws IOException {
+        final BatchCompile batch = BatchCompile.of(arguments, compiler, cache, parallelism);
+        return new WatchCompile(arguments, batch, batch.inputs().get(0).getFileSystem().newWatchService());
+    }
+
+    // constructors
+
+    private WatchCompile(@Nonnull final List<String> arguments,
+                         @Nonnull final BatchCompile batch,
+                         @Nonnull final WatchService watchService) {
+        this.arguments = arguments;
+        this.batch = batch;
+        this.watchService = watchService;
+    }
+
+    // instance methods
+
+    /**
+     * Compiles everything then recompiles changed scripts until {@link #close()} or an interrupt.
+     *
+     * @param onResult Called with the result of each compile.
+     */
+    public void watch(@Nonnull final Consumer<BatchCompile.Result> onResult) throws IOException {
+        for (final String argument : arguments) {
+            registerTree(BatchCompile.searchRoot(argument));
+        }
+        for (final Path input : batch.inputs()) {
+            registerDirectory(absolute(input).getParent());
+        }
+        for (final Path input : batch.inputs()) {
+            readSource(input).ifPresent(source -> lastSources.put(absolute(input), source));
+        }
+        batch.compileAll().forEach(onResult);
+        LOG.info("Watching {} directories for changes", directories.size());
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Set<Path> changed = new LinkedHashSet<>();
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    changed.addAll(changedScripts(key));
+                    key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                for (final Path script : changed) {
+                    final Optional<String> source = readSource(script);
+                    // deleted, or saved without a change
+                    if (source.isEmpty() || source.get().equals(lastSources.get(absolute(script)))) {
+                        continue;
+                    }
+                    lastSources.put(absolute(script), source.get());
+                    onResult.accept(batch.compile(script));
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ClosedWatchServiceException e) {
+            LOG.debug("Watch closed");
+        }
+    }
+
+    /** Stops {@link #watch(Consumer)} */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    // helpers
+
+    /** The scripts of the key's events.  New directories under a watched directory are watched too. */
+    private @Nonnull Set<Path> changedScripts(@Nonnull final WatchKey key) throws IOException {
+        final Set<Path> changed = new LinkedHashSet<>();
+        final Path directory = directories.get(key);
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || directory == null) {
+                LOG.warn("Missed file changes, recompiling everything");
+                changed.addAll(batch.inputs());
+                continue;
+            }
+            final Path file = directory.resolve((Path) event.context());
+            if (Files.isDirectory(file)) {
+                registerTree(file);
+            } else if (arguments.stream().anyMatch(argument -> BatchCompile.matches(argument, file))) {
+                changed.add(file);
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+        return changed;
+    }
+
+    /** Watches the directory and the directories under it, a file argument's directory is registered on its own */
+    private void registerTree(@Nonnull final Path root) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (final Stream<Path> subdirectories = Files.walk(root)) {
+            for (final Path directory : subdirectories.filter(Files::isDirectory).toList()) {
+                registerDirectory(directory);
+            }
+        }
+    }
+
+    /** Registering a directory again gives the same key, the first path is kept since globs match against it */
+    private void registerDirectory(@Nonnull final Path directory) throws IOException {
+        directories.putIfAbsent(directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY), directory);
+    }
+
+    private static @Nonnull Path absolute(@Nonnull final Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    private static @Nonnull Optional<String> readSource(@Nonnull final Path script) {
+        try {
+            return Optional.of(Files.readString(script));
+        } catch (final IOException e) {
+            LOG.debug("Could not read {}", script, e);
+            return Optional.empty();
+        }
+    }
+}
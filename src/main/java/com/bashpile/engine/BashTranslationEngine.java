@@ -11,6 +11,8 @@ import javax.annotation.Nullable;
 import com.bashpile.Asserts;
 import com.bashpile.BashpileParser;
 import com.bashpile.Strings;
+import com.bashpile.engine.bast.BashNode;
+import com.bashpile.engine.bast.BashNode.*;
 import com.bashpile.engine.bast.ListOfTranslation;
 import com.bashpile.engine.bast.Translation;
 import com.bashpile.engine.strongtypes.FunctionTypeInfo;
@@ -35,14 +37,17 @@ import static com.bashpile.engine.strongtypes.Type.*;
 import static java.util.Objects.requireNonNull;
 
 /**
- * Translates to Bash5 with four spaces as a tab.
+ * Translates to Bash5 with two spaces as a tab.
+ * <br>
+ * Output is formatted like `shfmt -i 2 -ci -bn` so the external shfmt isn't needed.  Blocks indent their bodies one
+ * TAB, case patterns are indented inside the case and there are no spaces inside `$()` or `$(())`.
  */
 public class BashTranslationEngine implements TranslationEngine {
 
     // static variables
 
-    /** Four spaces */
-    public static final String TAB = "    ";
+    /** Two spaces */
+    public static final String TAB = Indented.TAB;
 
     private static final Map<String, String> binaryPrimaryTranslations = Map.of(
             "===", "==",
@@ -75,12 +80,19 @@ public class BashTranslationEngine implements TranslationEngine {
 
     private @Nullable BashTranslationEngineDelegate kotlinDelegate;
 
+    /** Translations of unchanged top level functions, or null to translate every function */
+    private final @Nullable StatementCache statementCache;
+
     // instance methods
 
     public BashTranslationEngine(@Nonnull final String origin) {
+        this(origin, null);
+    }
+
+    public BashTranslationEngine(@Nonnull final String origin, @Nullable final StatementCache statementCache) {
         // escape newlines -- origin may be multi-line script
         this.origin = StringEscapeUtils.escapeJava(origin);
-        TypecastUtils.engine = this;
+        this.statementCache = statementCache;
     }
 
     @Override
@@ -180,12 +192,11 @@ public class BashTranslationEngine implements TranslationEngine {
         final Translation comment = createCommentTranslation("while statement", lineNumber(ctx));
         final Translation gate = requireNonNull(visitor).visit(ctx.expression());
         final Translation bodyStatements = ctx.indentedStatements().statement().stream()
-                .map(visitor::visit).reduce(Translation::add).orElseThrow().lambdaBodyLines(x -> "    " + x);
-        final Translation whileTranslation = Translation.toStringTranslation("""
-                while %s; do
-                %sdone
-                """.formatted(gate.body(), bodyStatements.body()));
-        return comment.add(whileTranslation);
+                .map(visitor::visit).reduce(Translation::add).orElseThrow().indentBody();
+        final BashNode whileLoop = Text.of("while %s; do\n".formatted(gate.body()))
+                .concat(bodyStatements.bastData())
+                .concat(Text.of("done\n"));
+        return comment.add(new Translation(whileLoop, STR_TYPE, NORMAL));
     }
 
     @Override
@@ -207,7 +218,35 @@ public class BashTranslationEngine implements TranslationEngine {
     @Override
     public @Nonnull Translation functionDeclarationStatement(
             @Nonnull final BashpileParser.FunctionDeclarationStatementContext ctx) {
-        return requireNonNull(kotlinDelegate).functionDeclarationStatement(ctx, foundForwardDeclarations, typeStack);
+        final BashTranslationEngineDelegate delegate = requireNonNull(kotlinDelegate);
+        if (statementCache == null) {
+            return delegate.functionDeclarationStatement(ctx, foundForwardDeclarations, typeStack);
+        }
+
+        // the key has the types before this function is declared
+        final Optional<String> key = StatementCache.key(ctx, typeStack);
+        if (!delegate.declareFunction(ctx, foundForwardDeclarations, typeStack)) {
+            return UNKNOWN_TRANSLATION;
+        }
+        if (key.isEmpty()) {
+            return delegate.functionDefinition(ctx, typeStack);
+        }
+        final int firstLine = lineNumber(ctx);
+        final Optional<StatementCache.Entry> cached = statementCache.get(key.get(), anonBlockCounter);
+        if (cached.isPresent()) {
+            anonBlockCounter += cached.get().anonymousBlocks();
+            return toStringTranslation(cached.get().translationAt(firstLine));
+        }
+
+        final int firstAnonymousBlock = anonBlockCounter;
+        final int forwardDeclarations = foundForwardDeclarations.size();
+        final Translation translation = delegate.functionDefinition(ctx, typeStack);
+        // setups or hoisted functions would be lost on a cache hit
+        if (expressionSetups.isEmpty() && foundForwardDeclarations.size() == forwardDeclarations) {
+            statementCache.put(key.get(), new StatementCache.Entry(
+                    firstLine, firstAnonymousBlock, anonBlockCounter - firstAnonymousBlock, translation.body()));
+        }
+        return translation;
     }
 
     @Override
@@ -222,8 +261,10 @@ public class BashTranslationEngine implements TranslationEngine {
             final Translation blockStatements = visitBodyStatements(
                     ctx.functionBlock().statement(), requireNonNull(visitor));
             // define function and then call immediately with no arguments
-            final Translation selfCallingAnonymousFunction = toStringTranslation("%s () {\n%s}; %s\n"
-                    .formatted(anonymousFunctionName, blockStatements.body(), anonymousFunctionName));
+            final Translation selfCallingAnonymousFunction = new Translation(
+                    new FunctionDefinition(anonymousFunctionName, blockStatements.bastData())
+                            .concat(Text.of("; %s\n".formatted(anonymousFunctionName))),
+                    STR_TYPE, NORMAL);
             return comment.add(selfCallingAnonymousFunction);
         }
     }
@@ -238,42 +279,29 @@ public class BashTranslationEngine implements TranslationEngine {
             ifBlockStatements = visitBodyStatements(ctx.indentedStatements(0).statement(), visitor);
         }
 
+        BashNode conditional = Text.of("if %s; then\n".formatted(guard.body())).concat(ifBlockStatements.bastData());
+
         // handle else ifs
-        final AtomicReference<String> elseIfBlock = new AtomicReference<>();
-        elseIfBlock.set("");
-        ctx.elseIfClauses().forEach(elseIfCtx -> {
+        for (final BashpileParser.ElseIfClausesContext elseIfCtx : ctx.elseIfClauses()) {
             Translation guard2 = visitGuardingExpression(visitor.visit(elseIfCtx.expression()));
             Translation ifBlockStatements2;
             try (var ignored = typeStack.pushFrame()) {
                 ifBlockStatements2 = visitBodyStatements(elseIfCtx.indentedStatements().statement(), visitor);
             }
-            final String prev = elseIfBlock.get();
-            elseIfBlock.set(prev + """
-
-                    elif %s; then
-                    %s""".formatted(guard2, ifBlockStatements2).stripTrailing());
-        });
+            conditional = conditional.concat(Text.of("elif %s; then\n".formatted(guard2)))
+                    .concat(ifBlockStatements2.bastData());
+        }
 
         // handle else
-        String elseBlock = "";
         if (ctx.Else() != null) {
             Translation elseBlockStatements;
             try (var ignored = typeStack.pushFrame()) {
                 final int lastIndex = ctx.indentedStatements().size() - 1;
                 elseBlockStatements = visitBodyStatements(ctx.indentedStatements(lastIndex).statement(), visitor);
             }
-            elseBlock = """
-                    
-                    else
-                    %s""".formatted(elseBlockStatements).stripTrailing();
+            conditional = conditional.concat(Text.of("else\n")).concat(elseBlockStatements.bastData());
         }
-        final String ifBlock = ifBlockStatements.body().stripTrailing();
-        final String conditional = """
-                if %s; then
-                %s%s%s
-                fi
-                """.formatted(guard.body(), ifBlock, elseIfBlock, elseBlock);
-        return toStringTranslation(conditional);
+        return new Translation(conditional.concat(Text.of("fi\n")), STR_TYPE, NORMAL);
     }
 
     @SuppressWarnings("UnstableApiUsage") // for Streams.zip
@@ -299,12 +327,11 @@ public class BashTranslationEngine implements TranslationEngine {
                 .map(BashTranslationHelper::toCase)
                 .reduce(Translation::add)
                 .orElseThrow();
-        final String template = """
-                case %s in
-                %sesac
-                """.formatted(expressionTranslation.body(), cases.body());
+        final BashNode caseStatement = Text.of("case %s in\n".formatted(expressionTranslation.body()))
+                .concat(cases.bastData())
+                .concat(Text.of("esac\n"));
         final Translation comment = createCommentTranslation("switch statement", lineNumber(ctx));
-        return comment.add(toStringTranslation(template));
+        return comment.add(new Translation(caseStatement, STR_TYPE, NORMAL));
     }
 
     @Override
@@ -321,13 +348,13 @@ public class BashTranslationEngine implements TranslationEngine {
         Translation rhsExprTranslation = UNKNOWN_TRANSLATION;
         if (rhsExprExists) {
             rhsExprTranslation = requireNonNull(visitor).visit(ctx.expression());
-            if (rhsExprTranslation.metadata().contains(CONDITIONAL)) {
+            if (rhsExprTranslation.hasMetadata(CONDITIONAL)) {
                 rhsExprTranslation = rhsExprTranslation
                         .lambdaBody("$(if %s; then echo true; else echo false; fi)"::formatted)
                         .metadata(INLINE);
             }
             // add quotes if needed
-            if (rhsExprTranslation.isStr() && rhsExprTranslation.metadata().contains(NORMAL)) {
+            if (rhsExprTranslation.isStr() && rhsExprTranslation.hasMetadata(NORMAL)) {
                 // TODO call quoteBody and have quoteBody escape quotes
                 rhsExprTranslation = rhsExprTranslation.lambdaBody(str -> {
                     str = StringUtils.prependIfMissing(str, "\"");
@@ -349,8 +376,9 @@ public class BashTranslationEngine implements TranslationEngine {
             final Translation arrayOption = toStringTranslation("a").metadata(OPTION);
             modifiers = modifiers.add(arrayOption);
         }
+        final String options = modifiers.body().isBlank() ? "" : modifiers.body().strip() + " ";
         final Translation variableDeclaration =
-                toStringTranslation("declare %s %s\n".formatted(modifiers.body(), lhsVariableName));
+                toStringTranslation("declare %s%s\n".formatted(options, lhsVariableName));
 
         final boolean isListAssignment = lhsType.isList() && rhsExprTranslation.isList();
         if (isListAssignment && !rhsExprTranslation.isListOf()) {
@@ -379,7 +407,7 @@ public class BashTranslationEngine implements TranslationEngine {
         // get expression and it's type
         Translation rhsExprTranslation;
         rhsExprTranslation = requireNonNull(visitor).visit(ctx.expression());
-        if (rhsExprTranslation.metadata().contains(CONDITIONAL)) {
+        if (rhsExprTranslation.hasMetadata(CONDITIONAL)) {
             rhsExprTranslation = rhsExprTranslation
                     .lambdaBody("$(if %s; then echo true; else echo false; fi)"::formatted)
                     .metadata(INLINE);
@@ -445,8 +473,9 @@ public class BashTranslationEngine implements TranslationEngine {
         final int lineNumber = ctx.start.getLine();
         if (expressionTranslation.isInt()) {
             // arithmetic built-in when possible
-            final String body = "$((%s%s))".formatted(expressionTranslation.removeVariableBrackets(), opText);
-            return new Translation(body, INT_TYPE, List.of(CALCULATION));
+            final Arithmetic body = new Arithmetic(
+                    expressionTranslation.removeVariableBrackets().bastData().concat(Text.of(opText)));
+            return new Translation(body, INT_TYPE, CALCULATION);
         } else if (expressionTranslation.isNumeric()) {
             // bc tool can't assign to shell variables, only bc variables.
             // bc variables can't have uppercase, and to "export" them back to the shell we would need a whole
@@ -473,13 +502,16 @@ public class BashTranslationEngine implements TranslationEngine {
         switch (expression.type().mainTypeName()) {
             case EMPTY -> expression = expression.type(castTo); // usually for `source`d method returns
             case BOOL -> expression = TypecastUtils.typecastFromBool(expression, castTo, typecastError);
-            case NUMBER -> expression = TypecastUtils.typecastFromNumber(expression, castTo, lineNumber, typecastError);
+            case NUMBER ->
+                    expression = TypecastUtils.typecastFromNumber(this, expression, castTo, lineNumber, typecastError);
             case INT -> expression = TypecastUtils.typecastFromInt(expression, castTo, lineNumber, typecastError);
-            case FLOAT -> expression = TypecastUtils.typecastFromFloat(expression, castTo, lineNumber, typecastError);
-            case STR -> expression = TypecastUtils.typecastFromStr(expression, castTo, lineNumber, typecastError);
+            case FLOAT ->
+                    expression = TypecastUtils.typecastFromFloat(this, expression, castTo, lineNumber, typecastError);
+            case STR ->
+                    expression = TypecastUtils.typecastFromStr(this, expression, castTo, lineNumber, typecastError);
             case LIST -> expression = TypecastUtils.typecastFromList(expression, castTo, typecastError);
-            case UNKNOWN ->
-                    expression = TypecastUtils.typecastFromUnknown(expression, castTo, lineNumber, typecastError);
+            case UNKNOWN -> expression =
+                    TypecastUtils.typecastFromUnknown(this, expression, castTo, lineNumber, typecastError);
             case NOT_FOUND -> {
                 // for specifying a type for a variable assigned by a command, e.g. getopts creates OPTARG
             }
@@ -541,14 +573,13 @@ public class BashTranslationEngine implements TranslationEngine {
         // lookup return type of this function
         final Type retType = expectedTypes.returnType();
 
-        Translation ret = new Translation(functionName + argumentTranslations.body(), retType, List.of(NORMAL));
+        final Text call = Text.of(functionName + argumentTranslations.body());
         // suppress output if we are printing to output as part of a work-around to return a string
         // this covers the case of calling a function without using the return
         if (retType.isStr()) {
-            ret = ret.lambdaBody("%s >/dev/null"::formatted);
+            return new Translation(Command.of(call, Text.of(">/dev/null")), retType, NEEDS_INLINING_OFTEN);
         }
-        ret = ret.metadata(NEEDS_INLINING_OFTEN);
-        return ret;
+        return new Translation(call, retType, NEEDS_INLINING_OFTEN);
     }
 
     @Override
@@ -584,32 +615,36 @@ public class BashTranslationEngine implements TranslationEngine {
             return toStringTranslation("true");
         } // else make a non-trivial string or numeric primary
 
-        String body;
         primary = binaryPrimaryTranslations.getOrDefault(primary, primary);
-        String not = "";
+        final BashNode first = firstTranslation.unquoteBody().bastData();
+        final BashNode second = secondTranslation.unquoteBody().bastData();
         final boolean numeric = firstTranslation.type().isNumeric() && secondTranslation.type().isNumeric();
+        final TestExpression body;
         if (numeric) {
             // use bc to handle floats and avoid silly Bash operators (e.g. `-eq`) entirely
-            body = "[ \"$(bc <<< \"%s%s %s %s\")\" -eq 1 ]";
+            final BashNode calculation = first.concat(Text.of(" %s ".formatted(primary))).concat(second);
+            final BashNode bc = Text.of("bc <<<").concat(new Quoted(calculation));
+            body = new TestExpression(Command.of(
+                    new Quoted(new CommandSubstitution(bc, false)), Text.of("-eq"), Text.of("1")));
         } else {
             // string
-            body = "[ %s\"%s\" %s \"%s\" ]";
             // <= and >= not supported, so need to do ! > and ! <
             // all < and > must be escaped, so they will not be interpreted as redirects
+            boolean not = false;
             switch (primary) {
                 case "<=" -> {
-                    not = "! ";
+                    not = true;
                     primary = "\\>";
                 }
                 case ">=" -> {
-                    not = "! ";
+                    not = true;
                     primary = "\\<";
                 }
                 case "<", ">" -> primary = "\\" + primary;
             }
+            final Command test = Command.of(new Quoted(first), Text.of(primary), new Quoted(second));
+            body = new TestExpression(not ? Command.of(Text.of("!"), test) : test);
         }
-        body = body.formatted(not, firstTranslation.unquoteBody().body(), primary,
-                secondTranslation.unquoteBody().body());
         return new Translation(body, BOOL_TYPE, CONDITIONAL);
     }
 
@@ -665,9 +700,9 @@ public class BashTranslationEngine implements TranslationEngine {
         final Type type = typeStack.getVariableType(variableName);
         // list syntax is `listName[*]`
         // see https://www.masteringunixshell.net/qa35/bash-how-to-print-array.html
-        final String allIndexes = type.isBasic() ? "" : /* list */ "[*]";
+        final String allIndexes = type.isBasic() ? "" : /* list */ "*";
         // use ${var} syntax instead of $var for string concatenations, e.g. `${var}someText`
-        return new Translation("${%s%s}".formatted(ctx.getText(), allIndexes), type, NORMAL);
+        return new Translation(new Variable(ctx.getText(), allIndexes), type, NORMAL);
     }
 
     @Override
@@ -679,9 +714,9 @@ public class BashTranslationEngine implements TranslationEngine {
         Integer index = ContextUtils.getListAccessorIndex(ctx);
         if (index != null) {
             return new Translation(
-                    "${%s[%d]}".formatted(variableName, index), type.asContentsType().orElseThrow(), NORMAL);
+                    new Variable(variableName, index.toString()), type.asContentsType().orElseThrow(), NORMAL);
         } else {
-            return new Translation("${%s[@]}".formatted(variableName), type.asContentsType().orElseThrow(), NORMAL);
+            return new Translation(new Variable(variableName, "@"), type.asContentsType().orElseThrow(), NORMAL);
         }
 
     }
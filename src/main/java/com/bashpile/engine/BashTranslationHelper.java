@@ -2,6 +2,9 @@ package com.bashpile.engine;
 
 import com.bashpile.Asserts;
 import com.bashpile.BashpileParser;
+import com.bashpile.engine.bast.BashNode;
+import com.bashpile.engine.bast.BashNode.Indented;
+import com.bashpile.engine.bast.BashNode.Text;
 import com.bashpile.engine.bast.Translation;
 import com.bashpile.engine.strongtypes.Type;
 import com.bashpile.exceptions.BashpileUncheckedException;
@@ -24,7 +27,9 @@ import java.util.stream.Stream;
 import static com.bashpile.engine.BashTranslationEngine.TAB;
 import static com.bashpile.engine.bast.Translation.UNKNOWN_TRANSLATION;
 import static com.bashpile.engine.bast.Translation.toStringTranslation;
+import static com.bashpile.engine.strongtypes.TranslationMetadata.NORMAL;
 import static com.bashpile.engine.strongtypes.Type.NA_TYPE;
+import static com.bashpile.engine.strongtypes.Type.STR_TYPE;
 
 /**
  * Helper methods to {@link BashTranslationEngine}.
@@ -64,9 +69,9 @@ public class BashTranslationHelper {
             @Nonnull final BashpileVisitor visitor) {
         return statements.stream()
                 .map(visitor::visit)
-                .map(tr -> tr.lambdaBodyLines(str -> TAB + str))
                 .reduce(Translation::add)
-                .orElseThrow();
+                .orElseThrow()
+                .indentBody();
     }
 
     /* package */ static @Nonnull Translation createCommentTranslation(@Nonnull final String name, final int lineNumber) {
@@ -148,7 +153,7 @@ public class BashTranslationHelper {
             // so we need to explicitly check if the check returned true (1)
             expressionTranslation = expressionTranslation
                     .inlineAsNeeded()
-                    .lambdaBody("[ \"$(bc <<< \"%s == 0\")\" -eq 1 ]"::formatted);
+                    .lambdaBody("[ \"$(bc <<<\"%s == 0\")\" -eq 1 ]"::formatted);
         }
         return expressionTranslation
                 .lambdaBody(body -> {
@@ -173,16 +178,16 @@ public class BashTranslationHelper {
     /* package */ static Translation toCase(Pair<Translation, List<Translation>> patternAndStatementPair) {
         final Translation pattern = patternAndStatementPair.getLeft();
         final Translation statements = patternAndStatementPair.getRight().stream()
-                .map(tr -> tr.lambdaBodyLines(x -> "    " + x))
                 .reduce(Translation::add)
-                .orElseThrow();
-        // second string is indented so will be inline with the ';;'
-        final String template = """
-                %s)
-                %s
-                    ;;
-                """.formatted(pattern.body(), statements.body());
-        return toStringTranslation(template).lambdaBodyLines(x -> "    " + x);
+                .orElseThrow()
+                .indentBody();
+        // the ';;' is indented so will be inline with the statements
+        final BashNode caseClause = pattern.bastData()
+                .concat(Text.of(")\n"))
+                .concat(statements.bastData())
+                .concat(Text.of(TAB + ";;\n"));
+        // patterns are indented inside the case, like `shfmt -ci`
+        return new Translation(new Indented(caseClause), STR_TYPE, NORMAL);
     }
 
     // helpers to helpers
@@ -1,10 +1,13 @@
 package com.bashpile.engine;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Optional;
 import java.util.stream.IntStream;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import com.bashpile.Asserts;
 import com.bashpile.BashpileParser;
 import com.bashpile.BashpileParserBaseVisitor;
 import com.bashpile.engine.bast.Translation;
@@ -40,7 +43,8 @@ public class BashpileVisitor extends BashpileParserBaseVisitor<Translation> {
     }
 
     /**
-     * Do not modify.  Will be null before the first visit.
+     * Do not modify.  Will be null before the first visit.  After {@link #writeProgram} translates a top level statement
+     * its subtree is replaced by an empty statement.
      *
      * @return The root of the Bashpile context tree.
      */
@@ -96,6 +100,33 @@ public class BashpileVisitor extends BashpileParserBaseVisitor<Translation> {
                 .add(statementsTranslations);
     }
 
+    /**
+     * Like {@link #visitProgram} but writes the translation as it goes.  The header is written first, then each top level
+     * statement as soon as it is translated, and the statement's parse subtree is released.  The translations and the
+     * parse tree no longer in use can be garbage collected, so the memory to translate a program is proportional to
+     * its largest top level statement (usually a function) instead of the whole program.
+     * <br>
+     * Forward declarations still find the function declarations after them.
+     *
+     * @param writer Should be buffered.
+     */
+    public void writeProgram(@Nonnull final BashpileParser.ProgramContext ctx, @Nonnull final Writer writer)
+            throws IOException {
+        // save root for later usage
+        contextRoot = ctx;
+        Asserts.assertNotEmpty(ctx.statement());
+
+        translator.originHeader().add(translator.strictModeHeader()).render(writer);
+        for (int i = 0; i < ctx.getChildCount(); i++) {
+            if (ctx.getChild(i) instanceof BashpileParser.StatementContext statement) {
+                // this replaces the "preambles" concept
+                final Translation r = this.visit(statement);
+                translator.getExpressionSetup().add(r).render(writer);
+                ctx.children.set(i, new BashpileParser.StatementContext(ctx, statement.invokingState));
+            }
+        }
+    }
+
     // visit statements
 
     @Override
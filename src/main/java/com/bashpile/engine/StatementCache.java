@@ -0,0 +1,266 @@
+package com.bashpile.engine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.bashpile.BashpileParser;
+import com.bashpile.CompileCache;
+import com.bashpile.engine.strongtypes.TypeStack;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.runtime.tree.Trees;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Remembers the translations of top level function declarations so an unchanged function isn't translated again.
+ * <br>
+ * Entries are keyed by a hash of the function's tokens (with their types, so a name that became a Linux command is a
+ * change, and their lines relative to the function) and of the types its identifiers had when it was declared.
+ * Those types are all a function can look up, so editing one function only translates that function again, and the
+ * functions that use it when its parameters or return type changed.  A function moved to another line is served from
+ * the cache with the Bashpile line numbers in its comments moved too.
+ * <br>
+ * Entries are kept in memory for a resident compiler (`bpc --server`, `bpc --watch`) and in
+ * $XDG_CACHE_HOME/bashpile/statements for single-shot runs.  Entries unused for {@link CompileCache#MAX_AGE} are
+ * evicted from the directory.  Opt-in, only `bpc` (without --no-cache) gives its compiler a statement cache.
+ * <br>
+ * The key starts with the {@link CompileCache#compilerVersion()}, a hash of the compiler's classes, so a rebuilt
+ * compiler translates every function again.
+ */
+public class StatementCache {
+
+    // statics
+
+    private static final String ENTRY_EXTENSION = ".bash";
+
+    /** How many entries are kept in memory */
+    private static final int MAX_MEMORY_ENTRIES = 4096;
+
+    /** Listing the directory is slow with many entries, so eviction runs at most this often */
+    private static final Duration EVICTION_INTERVAL = Duration.ofHours(1);
+
+    private static final Pattern LINE_NUMBER_COMMENT =
+            Pattern.compile("^(\\s*# .*, Bashpile line )(\\d+)$", Pattern.MULTILINE);
+
+    /** Source text that would be mistaken for a line number comment when moving the function */
+    private static final String LINE_NUMBER_TEXT = "Bashpile line";
+
+    private static final Logger LOG = LogManager.getLogger(StatementCache.class);
+
+    /**
+     * A cached translation.
+     *
+     * @param firstLine The Bashpile line of the function when it was translated.
+     * @param firstAnonymousBlock The anonymous block counter when it was translated.
+     * @param anonymousBlocks How many anonymous blocks the function has, their names depend on the counter.
+     * @param translation The function's translation.
+     */
+    public record Entry(int firstLine, int firstAnonymousBlock, int anonymousBlocks, @Nonnull String translation) {
+
+        /** The translation with the line number comments moved to a function starting at firstLine */
+        public @Nonnull String translationAt(final int firstLine) {
+            if (firstLine == this.firstLine) {
+                return translation;
+            }
+            final int offset = firstLine - this.firstLine;
+            return LINE_NUMBER_COMMENT.matcher(translation).replaceAll(match ->
+                    Matcher.quoteReplacement(match.group(1) + (Integer.parseInt(match.group(2)) + offset)));
+        }
+
+        /** A first line of numbers then the translation */
+        private @Nonnull String serialize() {
+            return "%d %d %d\n%s".formatted(firstLine, firstAnonymousBlock, anonymousBlocks, translation);
+        }
+
+        private static @Nonnull Entry deserialize(@Nonnull final String text) {
+            final int newline = text.indexOf('\n');
+            final String[] numbers = text.substring(0, newline).split(" ");
+            return new Entry(Integer.parseInt(numbers[0]), Integer.parseInt(numbers[1]),
+                    Integer.parseInt(numbers[2]), text.substring(newline + 1));
+        }
+    }
+
+    /**
+     * Creates the cache key of a function declaration.  Call before the function is declared.
+     *
+     * @return A SHA-256 hex string, or empty if the function can't be cached.
+     */
+    public static @Nonnull Optional<String> key(
+            @Nonnull final BashpileParser.FunctionDeclarationStatementContext ctx, @Nonnull final TypeStack typeStack) {
+        final Token start = ctx.getStart();
+        final String source =
+                start.getInputStream().getText(Interval.of(start.getStartIndex(), ctx.getStop().getStopIndex()));
+        if (!typeStack.isGlobalScope() || source.contains(LINE_NUMBER_TEXT)) {
+            return Optional.empty();
+        }
+        final int firstLine = start.getLine();
+        final Hasher hasher = Hashing.sha256().newHasher()
+                .putString(CompileCache.compilerVersion(), StandardCharsets.UTF_8).putByte((byte) 0);
+        final SortedSet<String> ids = new TreeSet<>();
+        for (final ParseTree node : Trees.getDescendants(ctx)) {
+            if (node instanceof TerminalNode terminal) {
+                final Token token = terminal.getSymbol();
+                hasher.putInt(token.getType()).putInt(token.getLine() - firstLine)
+                        .putString(token.getText(), StandardCharsets.UTF_8).putByte((byte) 0);
+                if (token.getType() == BashpileParser.Id) {
+                    ids.add(token.getText());
+                }
+            }
+        }
+        // the types the function can look up
+        for (final String id : ids) {
+            hasher.putString(id, StandardCharsets.UTF_8).putByte((byte) 0)
+                    .putString(typeStack.getVariableType(id).toString(), StandardCharsets.UTF_8).putByte((byte) 0)
+                    .putString(typeStack.getFunctionTypes(id).toString(), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return Optional.of(hasher.hash().toString());
+    }
+
+    // class fields
+
+    @Nonnull
+    private final Path directory;
+
+    /** Least recently used first */
+    @Nonnull
+    private final Map<String, Entry> memory = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(@Nonnull final Map.Entry<String, Entry> eldest) {
+            return size() > MAX_MEMORY_ENTRIES;
+        }
+    });
+
+    @Nonnull
+    private volatile Instant lastEviction = Instant.MIN;
+
+    // static initializers
+
+    /** A cache in $XDG_CACHE_HOME/bashpile/statements */
+    public static @Nonnull StatementCache ofDefaultDirectory() {
+        return new StatementCache(CompileCache.defaultDirectory().resolve("statements"));
+    }
+
+    // constructors
+
+    public StatementCache(@Nonnull final Path directory) {
+        this.directory = directory;
+    }
+
+    // instance methods
+
+    /**
+     * Gets the entry from memory or the directory.
+     *
+     * @param anonymousBlockCounter The current anonymous block counter, an entry with anonymous blocks is only used
+     *                              when their names would be the same.
+     */
+    public @Nonnull Optional<Entry> get(@Nonnull final String key, final int anonymousBlockCounter) {
+        Entry entry = memory.get(key);
+        if (entry == null) {
+            entry = read(key);
+            if (entry != null) {
+                memory.put(key, entry);
+            }
+        }
+        if (entry == null
+                || (entry.anonymousBlocks() > 0 && entry.firstAnonymousBlock() != anonymousBlockCounter)) {
+            LOG.trace("Statement cache miss for {}", key);
+            return Optional.empty();
+        }
+        LOG.trace("Statement cache hit for {}", key);
+        return Optional.of(entry);
+    }
+
+    /** Saves the entry.  Problems with the directory are logged and otherwise ignored. */
+    public void put(@Nonnull final String key, @Nonnull final Entry entry) {
+        memory.put(key, entry);
+        final Path path = entryPath(key);
+        try {
+            Files.createDirectories(directory);
+            // write then move so a concurrent reader never sees a partial entry
+            final Path temp = Files.createTempFile(directory, key, ".tmp");
+            Files.writeString(temp, entry.serialize());
+            Files.move(temp, path, REPLACE_EXISTING, ATOMIC_MOVE);
+            if (lastEviction.isBefore(Instant.now().minus(EVICTION_INTERVAL))) {
+                lastEviction = Instant.now();
+                evict();
+            }
+        } catch (final IOException e) {
+            LOG.warn("Could not write statement cache entry {}", path, e);
+        }
+    }
+
+    /** A human-readable summary for `bpc --cache-stats` */
+    public @Nonnull String stats() throws IOException {
+        return """
+                Statement cache: %s
+                Functions: %d
+                """.formatted(directory, entries().size());
+    }
+
+    /** Removes entries older than {@link CompileCache#MAX_AGE} */
+    public void evict() throws IOException {
+        final Instant expired = Instant.now().minus(CompileCache.MAX_AGE);
+        for (final Path entry : entries()) {
+            if (Files.getLastModifiedTime(entry).toInstant().isBefore(expired)) {
+                LOG.debug("Evicting statement cache entry {}", entry);
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    // helpers
+
+    private @Nonnull Path entryPath(@Nonnull final String key) {
+        return directory.resolve(key + ENTRY_EXTENSION);
+    }
+
+    /** Reads the entry and touches it for eviction, or null */
+    private @Nullable Entry read(@Nonnull final String key) {
+        final Path path = entryPath(key);
+        try {
+            if (Files.isRegularFile(path)) {
+                final Entry entry = Entry.deserialize(Files.readString(path));
+                Files.setLastModifiedTime(path, FileTime.from(Instant.now()));
+                return entry;
+            }
+        } catch (final IOException | RuntimeException e) {
+            LOG.warn("Could not read statement cache entry {}", path, e);
+        }
+        return null;
+    }
+
+    private @Nonnull List<Path> entries() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(ENTRY_EXTENSION)).toList();
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.bashpile.engine;
 
 import com.bashpile.engine.bast.Translation;
+import com.bashpile.engine.strongtypes.TranslationMetadata;
 import com.bashpile.engine.strongtypes.Type;
 import com.bashpile.exceptions.TypeError;
 import org.apache.commons.lang3.StringUtils;
@@ -8,6 +9,7 @@ import org.apache.commons.lang3.StringUtils;
 import javax.annotation.Nonnull;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Set;
 
 import static com.bashpile.engine.strongtypes.TranslationMetadata.CALCULATION;
 import static com.bashpile.engine.strongtypes.TranslationMetadata.NORMAL;
@@ -18,8 +20,6 @@ import static com.bashpile.engine.strongtypes.Type.INT_TYPE;
 public class TypecastUtils {
     // TODO consistent C style number casts, we can't check for correctness of non-literals (but we allow them)
 
-    public static BashTranslationEngine engine = null;
-
     /* package */ static @Nonnull Translation typecastFromBool(
             @Nonnull Translation expression,
             @Nonnull final Type castTo,
@@ -34,13 +34,14 @@ public class TypecastUtils {
     }
 
     /* package */ static @Nonnull Translation typecastFromNumber(
+            @Nonnull final BashTranslationEngine engine,
             @Nonnull Translation expression,
             @Nonnull final Type castTo,
             final int lineNumber,
             @Nonnull final TypeError typecastError
     ) {
         switch (castTo.mainTypeName()) {
-            case INT -> expression = typecastToInt(expression, lineNumber);
+            case INT -> expression = typecastToInt(engine, expression, lineNumber);
             case FLOAT -> expression = expression.type(FLOAT_TYPE);
             default -> throw typecastError;
         }
@@ -52,7 +53,7 @@ public class TypecastUtils {
             @Nonnull final Type castTo,
             final int lineNumber,
             @Nonnull final TypeError typecastError) {
-        if (!expression.metadata().contains(CALCULATION)) {
+        if (!expression.hasMetadata(CALCULATION)) {
             // parse expression to a BigInteger
             try {
                 new BigInteger(expression.body());
@@ -76,6 +77,7 @@ public class TypecastUtils {
     }
 
     /* package */ static @Nonnull Translation typecastFromFloat(
+            @Nonnull final BashTranslationEngine engine,
             @Nonnull Translation expression,
             @Nonnull final Type castTo,
             final int lineNumber,
@@ -83,7 +85,7 @@ public class TypecastUtils {
 
         // cast
         switch (castTo.mainTypeName()) {
-            case INT -> expression = typecastToInt(expression, lineNumber);
+            case INT -> expression = typecastToInt(engine, expression, lineNumber);
             case FLOAT -> {}
             case STR -> expression = expression.quoteBody().type(STR_TYPE);
             // no typecast to bool or list
@@ -93,7 +95,10 @@ public class TypecastUtils {
     }
 
     // helper
-    private static @Nonnull Translation typecastToInt(@Nonnull Translation expression, final int lineNumber) {
+
+    /** Variables are converted with printf in a setup statement, added to the engine of the current compile */
+    private static @Nonnull Translation typecastToInt(
+            @Nonnull final BashTranslationEngine engine, @Nonnull Translation expression, final int lineNumber) {
         // parse expression as a BigDecimal to check for literal float
         expression = expression.unquoteBody();
         BigDecimal expressionValue = null;
@@ -111,8 +116,8 @@ public class TypecastUtils {
             if (!varName.matches("\\d")) {
                 String setupStatementText;
                 // only convert normal variables with printf (not calculations, etc.)
-                if (expression.metadata().isEmpty()
-                        || (expression.metadata().size() == 1 && expression.metadata().contains(NORMAL))) {
+                final Set<TranslationMetadata> metadata = expression.metadata();
+                if (metadata.isEmpty() || metadata.equals(Set.of(NORMAL))) {
                     setupStatementText = """
                             %s="$(printf '%%d' "%s" 2>/dev/null || true)"
                             """.formatted(varName, expression);
@@ -129,6 +134,7 @@ public class TypecastUtils {
     }
 
     /* package */ static @Nonnull Translation typecastFromStr(
+            @Nonnull final BashTranslationEngine engine,
             @Nonnull Translation expression,
             @Nonnull final Type castTo,
             final int lineNumber,
@@ -137,7 +143,7 @@ public class TypecastUtils {
             case BOOL -> {
                 expression = expression.unquoteBody();
                 if (Type.isNumberString(expression.body())) {
-                    expression = typecastFromFloat(expression, castTo, lineNumber, typecastError);
+                    expression = typecastFromFloat(engine, expression, castTo, lineNumber, typecastError);
                 } else if (expression.body().equalsIgnoreCase("true")
                         || expression.body().equalsIgnoreCase("false")) {
                     expression = expression.body(expression.body().toLowerCase()).type(castTo);
@@ -148,7 +154,7 @@ public class TypecastUtils {
                             Text was %s.""".formatted(expression.body()), lineNumber);
                 }
             }
-            case INT -> expression = typecastToInt(expression, lineNumber);
+            case INT -> expression = typecastToInt(engine, expression, lineNumber);
             case FLOAT -> {
                 expression = expression.unquoteBody().type(castTo);
                 // verify the body parses as a valid number for non-variables
@@ -185,13 +191,14 @@ public class TypecastUtils {
     }
 
     /* package */ static @Nonnull Translation typecastFromUnknown(
+            @Nonnull final BashTranslationEngine engine,
             @Nonnull Translation expression,
             @Nonnull final Type castTo,
             final int lineNumber,
             @Nonnull final TypeError typecastError) {
         switch (castTo.mainTypeName()) {
             case BOOL, STR, LIST -> expression = expression.type(castTo);
-            case INT -> expression = typecastToInt(expression, lineNumber);
+            case INT -> expression = typecastToInt(engine, expression, lineNumber);
             case FLOAT -> expression = expression.unquoteBody().type(castTo);
             default -> throw typecastError;
         }
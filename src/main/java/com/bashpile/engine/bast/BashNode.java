@@ -0,0 +1,388 @@
+package com.bashpile.engine.bast;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import javax.annotation.Nonnull;
+
+/**
+ * The Bash syntax tree of a {@link Translation}, rendered to text once.  Immutable.
+ * <br>
+ * The engine builds nodes for the Bash it needs to rewrite later (quotes, variables, command substitutions, arithmetic,
+ * tests, commands and functions), so e.g. unquoting or using all the elements of a list is a node rewrite instead of
+ * string surgery on rendered text.  Everything else is {@link Text}.  A {@link Concat} is O(1), so folding the
+ * statements of a program copies each character once, when the program is rendered.  Blocks are {@link Indented}
+ * while rendering, so a deeply nested statement isn't re-indented once per enclosing block.
+ */
+public sealed interface BashNode {
+
+    // statics
+
+    Text EMPTY = new Text("");
+
+    /** Writes the node in one pass, without recursion since a fold of many statements is a very deep tree */
+    static void render(@Nonnull final BashNode root, @Nonnull final Writer writer) throws IOException {
+        final Output output = new Output(writer);
+        final Deque<BashNode> pending = new ArrayDeque<>();
+        pending.push(root);
+        while (!pending.isEmpty()) {
+            pending.pop().renderStep(output, pending);
+        }
+        output.finish();
+    }
+
+    /** The Bash text */
+    static @Nonnull String render(@Nonnull final BashNode root) {
+        final StringWriter writer = new StringWriter();
+        try {
+            render(root, writer);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    // instance methods
+
+    /** Writes any text before the children and pushes the children, and any text after them, for later */
+    void renderStep(@Nonnull Output output, @Nonnull Deque<BashNode> pending) throws IOException;
+
+    /** Rebuilds the tree with the leaves ({@link Text} and {@link Variable}) replaced by rewrite */
+    @Nonnull BashNode mapLeaves(@Nonnull UnaryOperator<BashNode> rewrite);
+
+    /** Links the nodes in O(1) */
+    default @Nonnull BashNode concat(@Nonnull final BashNode other) {
+        if (other == EMPTY) {
+            return this;
+        } else if (this == EMPTY) {
+            return other;
+        }
+        return new Concat(this, other);
+    }
+
+    // render state
+
+    /**
+     * Where nodes are rendered to.  Indents lines inside of {@link Indented} nodes and drops their blank lines.
+     * Lines are buffered until their newline, a line is a small part of a program.
+     */
+    final class Output {
+
+        @Nonnull private final Writer writer;
+
+        @Nonnull private final StringBuilder line = new StringBuilder();
+
+        /** How many {@link Indented} nodes are open */
+        private int depth = 0;
+
+        /** The depth when the first character of the line was written */
+        private int lineDepth = 0;
+
+        private Output(@Nonnull final Writer writer) {
+            this.writer = writer;
+        }
+
+        public void write(@Nonnull final String text) throws IOException {
+            int start = 0;
+            int newline = text.indexOf('\n');
+            while (newline >= 0) {
+                append(text, start, newline);
+                endLine();
+                start = newline + 1;
+                newline = text.indexOf('\n', start);
+            }
+            append(text, start, text.length());
+        }
+
+        private void append(@Nonnull final String text, final int start, final int end) {
+            if (start == end) {
+                return;
+            }
+            if (line.isEmpty()) {
+                lineDepth = depth;
+            }
+            line.append(text, start, end);
+        }
+
+        private void indent() {
+            depth++;
+            if (!line.isEmpty()) {
+                // a block started mid-line is indented where it starts
+                line.append(Indented.TAB);
+            }
+        }
+
+        private void dedent() {
+            depth--;
+        }
+
+        private void endLine() throws IOException {
+            final int indents = line.isEmpty() ? depth : lineDepth;
+            if (indents == 0 || !line.chars().allMatch(Character::isWhitespace)) {
+                writeIndented(indents);
+                writer.write('\n');
+            }
+            line.setLength(0);
+        }
+
+        private void writeIndented(final int indents) throws IOException {
+            if (!line.isEmpty()) {
+                for (int i = 0; i < indents; i++) {
+                    writer.write(Indented.TAB);
+                }
+                writer.append(line);
+            }
+        }
+
+        /** Writes a last line without a newline */
+        private void finish() throws IOException {
+            writeIndented(lineDepth);
+            line.setLength(0);
+        }
+    }
+
+    // nodes
+
+    /** Literal Bash */
+    record Text(@Nonnull String text) implements BashNode {
+        public static @Nonnull Text of(@Nonnull final String text) {
+            return text.isEmpty() ? EMPTY : new Text(text);
+        }
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending)
+                throws IOException {
+            output.write(text);
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return rewrite.apply(this);
+        }
+    }
+
+    /** One node then another */
+    record Concat(@Nonnull BashNode first, @Nonnull BashNode second) implements BashNode {
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending) {
+            pending.push(second);
+            pending.push(first);
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return new Concat(first.mapLeaves(rewrite), second.mapLeaves(rewrite));
+        }
+    }
+
+    /** In double quotes, e.g. `"$1"` */
+    record Quoted(@Nonnull BashNode contents) implements BashNode {
+        private static final Text QUOTE = new Text("\"");
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending)
+                throws IOException {
+            output.write("\"");
+            pending.push(QUOTE);
+            pending.push(contents);
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return new Quoted(contents.mapLeaves(rewrite));
+        }
+    }
+
+    /** In parentheses, e.g. a subshell or an array */
+    record Parenthesized(@Nonnull BashNode contents) implements BashNode {
+        private static final Text CLOSE = new Text(")");
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending)
+                throws IOException {
+            output.write("(");
+            pending.push(CLOSE);
+            pending.push(contents);
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return new Parenthesized(contents.mapLeaves(rewrite));
+        }
+    }
+
+    /**
+     * A parameter expansion, e.g. `${name}`, `${name[2]}` or `${name[*]}`.
+     *
+     * @param index The array index, or empty for none.
+     */
+    record Variable(@Nonnull String name, @Nonnull String index) implements BashNode {
+        public static @Nonnull Variable of(@Nonnull final String name) {
+            return new Variable(name, "");
+        }
+
+        /** The variable without the `${}`, e.g. for arithmetic */
+        public @Nonnull String bareName() {
+            return index.isEmpty() ? name : "%s[%s]".formatted(name, index);
+        }
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending)
+                throws IOException {
+            output.write("${");
+            output.write(bareName());
+            output.write("}");
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return rewrite.apply(this);
+        }
+    }
+
+    /**
+     * A command substitution, e.g. `$(command)`.
+     *
+     * @param subshell If the command starts with a parenthesis, `$((` would start arithmetic so a space is added.
+     */
+    record CommandSubstitution(@Nonnull BashNode command, boolean subshell) implements BashNode {
+        private static final Text CLOSE = new Text(")");
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending)
+                throws IOException {
+            output.write(subshell ? "$( " : "$(");
+            pending.push(CLOSE);
+            pending.push(command);
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return new CommandSubstitution(command.mapLeaves(rewrite), subshell);
+        }
+    }
+
+    /** An arithmetic expansion, e.g. `$((1 + 2))` */
+    record Arithmetic(@Nonnull BashNode expression) implements BashNode {
+        private static final Text CLOSE = new Text("))");
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending)
+                throws IOException {
+            output.write("$((");
+            pending.push(CLOSE);
+            pending.push(expression);
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return new Arithmetic(expression.mapLeaves(rewrite));
+        }
+    }
+
+    /** A test command, e.g. `[ "$a" == "$b" ]` */
+    record TestExpression(@Nonnull BashNode expression) implements BashNode {
+        private static final Text CLOSE = new Text(" ]");
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending)
+                throws IOException {
+            output.write("[ ");
+            pending.push(CLOSE);
+            pending.push(expression);
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return new TestExpression(expression.mapLeaves(rewrite));
+        }
+    }
+
+    /**
+     * A block, every line of the body is indented by {@link #TAB} when rendered and blank lines are dropped.
+     * Nested blocks are indented once per level, in the same single pass as everything else.
+     */
+    record Indented(@Nonnull BashNode body) implements BashNode {
+        /** Two spaces */
+        public static final String TAB = "  ";
+
+        private static final Dedent DEDENT = new Dedent();
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending) {
+            output.indent();
+            pending.push(DEDENT);
+            pending.push(body);
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return new Indented(body.mapLeaves(rewrite));
+        }
+
+        /** Closes the innermost block, only used while rendering */
+        private record Dedent() implements BashNode {
+            @Override
+            public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending) {
+                output.dedent();
+            }
+
+            @Override
+            public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+                return this;
+            }
+        }
+    }
+
+    /** A simple command, the words are separated by spaces */
+    record Command(@Nonnull List<BashNode> words) implements BashNode {
+        private static final Text SPACE = new Text(" ");
+
+        public static @Nonnull Command of(@Nonnull final BashNode... words) {
+            return new Command(List.of(words));
+        }
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending) {
+            for (int i = words.size() - 1; i >= 0; i--) {
+                pending.push(words.get(i));
+                if (i > 0) {
+                    pending.push(SPACE);
+                }
+            }
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return new Command(words.stream().map(word -> word.mapLeaves(rewrite)).toList());
+        }
+    }
+
+    /**
+     * A function definition, without a newline after the closing brace.
+     *
+     * @param body The lines of the body, already indented and ending with a newline.
+     */
+    record FunctionDefinition(@Nonnull String name, @Nonnull BashNode body) implements BashNode {
+        private static final Text CLOSE = new Text("}");
+
+        @Override
+        public void renderStep(@Nonnull final Output output, @Nonnull final Deque<BashNode> pending)
+                throws IOException {
+            output.write(name);
+            output.write("() {\n");
+            pending.push(CLOSE);
+            pending.push(body);
+        }
+
+        @Override
+        public @Nonnull BashNode mapLeaves(@Nonnull final UnaryOperator<BashNode> rewrite) {
+            return new FunctionDefinition(name, body.mapLeaves(rewrite));
+        }
+    }
+}
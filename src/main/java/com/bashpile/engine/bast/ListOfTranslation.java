@@ -1,12 +1,16 @@
 package com.bashpile.engine.bast;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import javax.annotation.Nonnull;
 
+import com.bashpile.engine.bast.BashNode.Command;
+import com.bashpile.engine.bast.BashNode.Parenthesized;
+import com.bashpile.engine.bast.BashNode.Quoted;
 import com.bashpile.engine.strongtypes.TranslationMetadata;
 import com.bashpile.engine.strongtypes.Type;
 
@@ -41,11 +45,13 @@ public class ListOfTranslation extends Translation {
 
     @Override
     public @Nonnull String body() {
-        String data = translations.stream().map(Translation::body).collect(Collectors.joining(" "));
-        if (quoteBody) {
-            data = "\"%s\"".formatted(data);
-        }
-        return "(%s)".formatted(data);
+        return BashNode.render(bastData());
+    }
+
+    @Override
+    public @Nonnull BashNode bastData() {
+        final BashNode data = new Command(translations.stream().map(Translation::bastData).toList());
+        return new Parenthesized(quoteBody ? new Quoted(data) : data);
     }
 
     @Override
@@ -65,6 +71,12 @@ public class ListOfTranslation extends Translation {
         throw new UnsupportedOperationException("Not supported for ListTranslations");
     }
 
+    @Nonnull
+    @Override
+    public Translation body(@Nonnull BashNode nextBody) {
+        throw new UnsupportedOperationException("Not supported for ListTranslations");
+    }
+
     @Nonnull
     @Override
     public Translation unescapeBody() {
@@ -83,6 +95,12 @@ public class ListOfTranslation extends Translation {
         return this;
     }
 
+    @Nonnull
+    @Override
+    public Translation indentBody() {
+        throw new UnsupportedOperationException("Not supported for ListTranslations");
+    }
+
     @Override
     public @Nonnull Translation parenthesizeBody() {
         // always parenthesized
@@ -121,7 +139,7 @@ public class ListOfTranslation extends Translation {
 
     @Nonnull
     @Override
-    public Translation metadata(@Nonnull List<TranslationMetadata> meta) {
+    public Translation metadata(@Nonnull Collection<TranslationMetadata> meta) {
         throw new UnsupportedOperationException("Not supported for ListTranslations");
     }
 
@@ -148,7 +166,7 @@ public class ListOfTranslation extends Translation {
     }
 
     @Override
-    public @Nonnull List<TranslationMetadata> metadata() {
+    public @Nonnull Set<TranslationMetadata> metadata() {
         return super.metadata();
     }
 }
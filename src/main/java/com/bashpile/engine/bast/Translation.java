@@ -1,18 +1,22 @@
 package com.bashpile.engine.bast;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.bashpile.Strings;
+import com.bashpile.engine.bast.BashNode.*;
 import com.bashpile.engine.strongtypes.TranslationMetadata;
 import com.bashpile.engine.strongtypes.Type;
-import com.google.common.collect.Streams;
 import org.apache.commons.lang3.StringUtils;
 
 import static com.bashpile.Asserts.assertIsParagraph;
@@ -23,6 +27,13 @@ import static org.apache.commons.lang3.StringUtils.stripStart;
 
 /**
  * A target shell (e.g. Bash) translation of some Bashpile script.  Immutable.
+ * <br>
+ * The body is a {@link BashNode} tree so {@link #add(TreeNode)} is O(1), rewrites like {@link #unquoteBody()} work on
+ * nodes instead of rendered text, and a whole program is rendered once, to a String by {@link #body()} or straight to
+ * a Writer by {@link #render(Writer)}.
+ * <br>
+ * The metadata is a set, kept as a bitmask of {@link TranslationMetadata} ordinals, so adding translations doesn't
+ * allocate for metadata and checking it is a bit test.
  */
 public class Translation implements TreeNode<String> {
 
@@ -49,15 +60,22 @@ public class Translation implements TreeNode<String> {
 
     private static final Pattern FLOAT_PATTERN = Pattern.compile("\\d+(?:\\.\\d+)?");
 
+    private static final TranslationMetadata[] METADATA_VALUES = TranslationMetadata.values();
+
+    /** Characters removed from the start of an option when options are merged, e.g. `-r` and `-x` into `-rx` */
+    private static final String OPTION_STRIP_CHARS = " -";
+
     // class fields
 
-    @Nonnull private final String body;
+    @Nonnull private final BashNode bastData;
 
-    @Nonnull private final Type type;
+    /** The rendered bastData, built the first time it is needed.  A race between threads only renders it twice. */
+    @Nullable private String rendered;
 
-    @Nonnull private final List<TranslationMetadata> metadata;
+    @Nonnull private final Type type;
 
-    @Nonnull private final List<Translation> children = new ArrayList<>();
+    /** A bit per {@link TranslationMetadata} ordinal, there are far fewer than 32 */
+    private final int metadata;
 
     // static initializers
 
@@ -101,14 +119,14 @@ public class Translation implements TreeNode<String> {
     // constructors
 
     public Translation(@Nonnull final String text) {
-        this(text, UNKNOWN_TYPE, List.of());
+        this(Text.of(text), UNKNOWN_TYPE, 0);
     }
 
     public Translation(
             @Nonnull final String text,
             @Nonnull final Type type,
             @Nonnull final TranslationMetadata translationMetadata) {
-        this(text, type, List.of(translationMetadata));
+        this(Text.of(text), type, bit(translationMetadata));
     }
 
     /**
@@ -120,8 +138,31 @@ public class Translation implements TreeNode<String> {
     public Translation(
             @Nonnull final String body,
             @Nonnull final Type type,
-            @Nonnull final List<TranslationMetadata> metadata) {
-        this.body = body;
+            @Nonnull final Collection<TranslationMetadata> metadata) {
+        this(Text.of(body), type, bits(metadata));
+    }
+
+    public Translation(
+            @Nonnull final BashNode bastData,
+            @Nonnull final Type type,
+            @Nonnull final TranslationMetadata translationMetadata) {
+        this(bastData, type, bit(translationMetadata));
+    }
+
+    /**
+     * @param bastData The target shell script (e.g. Bash) syntax tree.
+     * @param type     The Bashpile type.  For Shell Strings and Command Substitutions this is the type of the result.
+     * @param metadata Further information on the type (e.g. is this a subshell?)
+     */
+    public Translation(
+            @Nonnull final BashNode bastData,
+            @Nonnull final Type type,
+            @Nonnull final Collection<TranslationMetadata> metadata) {
+        this(bastData, type, bits(metadata));
+    }
+
+    private Translation(@Nonnull final BashNode bastData, @Nonnull final Type type, final int metadata) {
+        this.bastData = bastData;
         this.type = type;
         this.metadata = metadata;
     }
@@ -136,27 +177,24 @@ public class Translation implements TreeNode<String> {
     // instance methods
 
     /**
-     * Concatenates other's body, type and metadata to this object's
+     * Concatenates other's body, type and metadata to this object's.  Two options are merged, e.g. `-r` and `-x` make
+     * `-rx`.
      */
     public @Nonnull Translation add(@Nonnull final TreeNode<String> node) {
-        // TODO TREES only concat on toString
-
-        // new style
         final Translation other = (Translation) node;
-        children.add(other);
-
-        if (!metadata.contains(OPTION) || !other.metadata.contains(OPTION)) {
-            // old style concat
-            final List<TranslationMetadata> nextMetadata =
-                    Streams.concat(metadata.stream(), other.metadata.stream()).toList();
-            // favor anything over UNKNOWN
-            Type nextType = type;
-            nextType = nextType.isUnknown() ? other.type : nextType;
-            // favor INT or FLOAT over NUMBER
-            nextType = nextType.isNumber() && other.type.isNumeric() ? other.type : nextType;
-            return new Translation(body + other.body, nextType, nextMetadata);
+        final int nextMetadata = metadata | other.metadata;
+        if (hasMetadata(OPTION) && other.hasMetadata(OPTION)) {
+            final String option = "-" + stripStart(rendered(), OPTION_STRIP_CHARS)
+                    + stripStart(other.rendered(), OPTION_STRIP_CHARS);
+            return new Translation(Text.of(option), type, nextMetadata);
         } // else
-        return this;
+
+        // favor anything over UNKNOWN
+        Type nextType = type;
+        nextType = nextType.isUnknown() ? other.type : nextType;
+        // favor INT or FLOAT over NUMBER
+        nextType = nextType.isNumber() && other.type.isNumeric() ? other.type : nextType;
+        return new Translation(bastData.concat(other.bastData), nextType, nextMetadata);
     }
 
     // body instance methods
@@ -165,6 +203,13 @@ public class Translation implements TreeNode<String> {
      * Replaces the body
      */
     public @Nonnull Translation body(@Nonnull final String nextBody) {
+        return new Translation(Text.of(nextBody), type, metadata);
+    }
+
+    /**
+     * Replaces the body
+     */
+    public @Nonnull Translation body(@Nonnull final BashNode nextBody) {
         return new Translation(nextBody, type, metadata);
     }
 
@@ -179,13 +224,16 @@ public class Translation implements TreeNode<String> {
      * Put quotes around body
      */
     public @Nonnull Translation quoteBody() {
-        return lambdaBody("\"%s\""::formatted);
+        return body(new Quoted(bastData));
     }
 
     /**
      * Remove quotes around body
      */
     public @Nonnull Translation unquoteBody() {
+        if (bastData instanceof Quoted quoted) {
+            return body(quoted.contents());
+        }
         return lambdaBody(Strings::unquote);
     }
 
@@ -193,13 +241,23 @@ public class Translation implements TreeNode<String> {
      * Put parenthesis around body
      */
     public @Nonnull Translation parenthesizeBody() {
-        return lambdaBody("(%s)"::formatted);
+        return body(new Parenthesized(bastData));
+    }
+
+    /**
+     * Indent body when rendered, see {@link Indented}
+     */
+    public @Nonnull Translation indentBody() {
+        return body(new Indented(bastData));
     }
 
     /**
      * Remove surrounding `${}`s.
      */
     public @Nonnull Translation removeVariableBrackets() {
+        if (bastData instanceof Variable variable) {
+            return body(Text.of(variable.bareName()));
+        }
         return lambdaBody(body -> {
             final String nextBody = stripStart(body, "${");
             return StringUtils.stripEnd(nextBody, "}");
@@ -212,11 +270,15 @@ public class Translation implements TreeNode<String> {
      * @return this
      */
     public @Nonnull Translation toTrueArray() {
-        Translation ret = lambdaBody(x -> x.replace("$*", "$@"));
-        if (type.isList()) {
-            return ret.lambdaBody(x -> x.replace("[*]", "[@]"));
-        } // else
-        return ret;
+        final boolean list = type.isList();
+        return body(bastData.mapLeaves(leaf -> switch (leaf) {
+            case Text text -> {
+                final String nextText = text.text().replace("$*", "$@");
+                yield Text.of(list ? nextText.replace("[*]", "[@]") : nextText);
+            }
+            case Variable variable when list && variable.index().equals("*") -> new Variable(variable.name(), "@");
+            default -> leaf;
+        }));
     }
 
     /**
@@ -225,29 +287,32 @@ public class Translation implements TreeNode<String> {
      * @return this
      */
     public @Nonnull Translation toStringArray() {
-        Translation ret = lambdaBody(x -> x.replace("$@", "$*"));
-        return ret.lambdaBody(x -> x.replace("[@]", "[*]"));
+        return body(bastData.mapLeaves(leaf -> switch (leaf) {
+            case Text text -> Text.of(text.text().replace("$@", "$*").replace("[@]", "[*]"));
+            case Variable variable when variable.index().equals("@") -> new Variable(variable.name(), "*");
+            default -> leaf;
+        }));
     }
 
     /**
      * Apply arbitrary function to body.  E.g. `str -> str`.
      */
     public @Nonnull Translation lambdaBody(@Nonnull final Function<String, String> lambda) {
-        return new Translation(lambda.apply(body), type, metadata);
+        return new Translation(Text.of(lambda.apply(rendered())), type, metadata);
     }
 
     /**
      * Apply arbitrary function to every line in the body.  A function is specified by the `str -> str` syntax.
      */
     public @Nonnull Translation lambdaBodyLines(@Nonnull final Function<String, String> lambda) {
-        return this.body(lambdaAllLines(body, lambda));
+        return this.body(lambdaAllLines(rendered(), lambda));
     }
 
     /**
      * Ensures body is a paragraph
      */
     public @Nonnull Translation assertParagraphBody() {
-        assertIsParagraph(body);
+        assertIsParagraph(rendered());
         return this;
     }
 
@@ -257,7 +322,7 @@ public class Translation implements TreeNode<String> {
      * Replaces the type.
      */
     public @Nonnull Translation type(@Nonnull final Type typecastType) {
-        return new Translation(body, typecastType, metadata);
+        return new Translation(bastData, typecastType, metadata);
     }
 
     /** Is the type basic (e.g. not a List, Hash or Ref)? */
@@ -305,18 +370,23 @@ public class Translation implements TreeNode<String> {
         return type.isStr();
     }
 
+    /** Does the metadata have meta? */
+    public boolean hasMetadata(@Nonnull final TranslationMetadata meta) {
+        return (metadata & bit(meta)) != 0;
+    }
+
     /**
      * Replaces the type metadata
      */
     public @Nonnull Translation metadata(@Nonnull final TranslationMetadata meta) {
-        return new Translation(body, type, List.of(meta));
+        return new Translation(bastData, type, bit(meta));
     }
 
     /**
      * Replaces the type metadata
      */
-    public @Nonnull Translation metadata(@Nonnull final List<TranslationMetadata> meta) {
-        return new Translation(body, type, meta);
+    public @Nonnull Translation metadata(@Nonnull final Collection<TranslationMetadata> meta) {
+        return new Translation(bastData, type, bits(meta));
     }
 
     /**
@@ -326,19 +396,29 @@ public class Translation implements TreeNode<String> {
      * @return Converts body to an inline and change the type metadata to {@link TranslationMetadata#INLINE}.
      */
     public @Nonnull Translation inlineAsNeeded() {
-        if (metadata.contains(NEEDS_INLINING_OFTEN)) {
+        if (hasMetadata(NEEDS_INLINING_OFTEN)) {
             // function calls may have redirect to /dev/null if only side effects needed
-            String nextBody = Strings.remove(body, ">/dev/null").stripTrailing();
+            final BashNode nextBody = withoutDevNullRedirect();
             // add INLINE and remove NEEDS INLINING OFTEN
-            var nextMetadata = new ArrayList<>(List.of(INLINE));
-            nextMetadata.addAll(metadata);
-            nextMetadata.remove(NEEDS_INLINING_OFTEN);
-            // in Bash $((subshell)) is an arithmetic operator in Bash but $( (subshell) ) isn't
-            return new Translation("$( %s )".formatted(nextBody), type, nextMetadata);
+            final int nextMetadata = (metadata | bit(INLINE)) & ~bit(NEEDS_INLINING_OFTEN);
+            // in Bash $((subshell)) is an arithmetic operator in Bash but $( (subshell)) isn't
+            final boolean subshell = BashNode.render(nextBody).startsWith("(");
+            return new Translation(new CommandSubstitution(nextBody, subshell), type, nextMetadata);
         } // else
         return this;
     }
 
+    /**
+     * Writes the body without building it as a String first, see {@link #getData()}.
+     */
+    public void render(@Nonnull final Writer writer) throws IOException {
+        if (hasMetadata(OPTION) || rendered != null) {
+            writer.write(getData());
+        } else {
+            BashNode.render(bastData(), writer);
+        }
+    }
+
     @Override
     public String toString() {
         return getData();
@@ -346,21 +426,39 @@ public class Translation implements TreeNode<String> {
 
     @Override
     public String getData() {
-        if (metadata.contains(OPTION) && children.stream().allMatch(tr -> tr.metadata.contains(OPTION))) {
-            final String stripChars = " -";
-            return "-" + stripStart(body, stripChars)
-                    + children.stream().map(tr -> stripStart(tr.body, stripChars)).collect(Collectors.joining());
+        if (hasMetadata(OPTION)) {
+            return "-" + stripStart(rendered(), OPTION_STRIP_CHARS);
         }
-        return body;
+        return rendered();
     }
 
     // helpers
 
+    private @Nonnull String rendered() {
+        final String built = rendered;
+        if (built != null) {
+            return built;
+        }
+        final String ret = BashNode.render(bastData);
+        rendered = ret;
+        return ret;
+    }
+
+    /** Drops a trailing `>/dev/null` word of a {@link Command}, or removes the redirect from the text */
+    private @Nonnull BashNode withoutDevNullRedirect() {
+        if (bastData instanceof Command command && !command.words().isEmpty()
+                && command.words().get(command.words().size() - 1) instanceof Text last
+                && last.text().equals(">/dev/null")) {
+            return new Command(List.copyOf(command.words().subList(0, command.words().size() - 1)));
+        }
+        return Text.of(Strings.remove(rendered(), ">/dev/null").stripTrailing());
+    }
+
     /** Tries to match tr's body to an INT or a NUMBER.  Defaults to String.  Doesn't modify non-unknown translations */
     private static @Nonnull Translation convertUnknownToDetectedType(Translation tr) {
-        if (tr.isUnknown() && INT_PATTERN.matcher(tr.body).matches()) {
+        if (tr.isUnknown() && INT_PATTERN.matcher(tr.rendered()).matches()) {
             return tr.type(INT_TYPE);
-        } else if (tr.isUnknown() && FLOAT_PATTERN.matcher(tr.body).matches()) {
+        } else if (tr.isUnknown() && FLOAT_PATTERN.matcher(tr.rendered()).matches()) {
             return tr.type(FLOAT_TYPE);
         } else if (tr.isUnknown()) {
             return tr.type(STR_TYPE);
@@ -369,16 +467,39 @@ public class Translation implements TreeNode<String> {
         }
     }
 
+    private static int bit(@Nonnull final TranslationMetadata meta) {
+        return 1 << meta.ordinal();
+    }
+
+    private static int bits(@Nonnull final Collection<TranslationMetadata> metadata) {
+        int ret = 0;
+        for (final TranslationMetadata meta : metadata) {
+            ret |= bit(meta);
+        }
+        return ret;
+    }
+
     public @Nonnull String body() {
         return getData();
     }
 
+    public @Nonnull BashNode bastData() {
+        return bastData;
+    }
+
     public @Nonnull Type type() {
         return type;
     }
 
-    public @Nonnull List<TranslationMetadata> metadata() {
-        return metadata;
+    /** A new set each call, see {@link #hasMetadata(TranslationMetadata)} to check for one value */
+    public @Nonnull Set<TranslationMetadata> metadata() {
+        final Set<TranslationMetadata> ret = EnumSet.noneOf(TranslationMetadata.class);
+        for (final TranslationMetadata meta : METADATA_VALUES) {
+            if (hasMetadata(meta)) {
+                ret.add(meta);
+            }
+        }
+        return ret;
     }
 
     @Override
@@ -386,14 +507,14 @@ public class Translation implements TreeNode<String> {
         if (obj == this) return true;
         if (obj == null || obj.getClass() != this.getClass()) return false;
         var that = (Translation) obj;
-        return Objects.equals(this.body, that.body) &&
+        return Objects.equals(this.rendered(), that.rendered()) &&
                 Objects.equals(this.type, that.type) &&
-                Objects.equals(this.metadata, that.metadata);
+                this.metadata == that.metadata;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(body, type, metadata);
+        return Objects.hash(rendered(), type, metadata);
     }
 
 }
@@ -89,6 +89,11 @@ public class TypeStack {
         return foundFunction != FunctionTypeInfo.EMPTY;
     }
 
+    /** Only the top level frame, e.g. not in a function or a block */
+    public boolean isGlobalScope() {
+        return frames.size() == 1;
+    }
+
     /**
      * Push a new stack frame.
      * <br>
@@ -45,7 +45,7 @@ public class Exceptions {
         try {
             return throwingSupplier.get();
         } catch (Exception ex) {
-            if (!ex.getMessage().contains("Stream closed")) {
+            if (!isClosedStream(ex)) {
                 throw new BashpileUncheckedException(ex);
             } // else ignore
             return null;
@@ -65,10 +65,17 @@ public class Exceptions {
         try {
             return throwingSupplier.get();
         } catch (Exception ex) {
-            if (!ex.getMessage().contains("Stream closed")) {
+            if (!isClosedStream(ex)) {
                 throw ex;
             } // else ignore
             return null;
         }
     }
+
+    // helpers
+
+    /** Some exceptions (e.g. TimeoutException) have no message */
+    private static boolean isClosedStream(@Nonnull final Exception ex) {
+        return ex.getMessage() != null && ex.getMessage().contains("Stream closed");
+    }
 }
@@ -3,8 +3,6 @@ package com.bashpile.shell;
 import com.bashpile.Strings;
 import com.bashpile.exceptions.BashpileUncheckedException;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -12,24 +10,15 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Objects;
-import java.util.regex.Pattern;
+import java.util.UUID;
 
 /**
  * Runs commands in Bash.  Runs `wsl bash` in Windows.
  */
 public class BashShell implements Closeable {
 
-    private static final Pattern BOGUS_SCREEN_LINE = Pattern.compile(
-            "your \\d+x\\d+ screen size is bogus. expect trouble\r?\n");
-
-    /**
-     * @see <a href="https://unix.stackexchange.com/questions/564981/what-is-this-3jh2j">Stack Exchange</a>
-     */
-    private static final Pattern CLEAR_CONTROL_CODE = Pattern.compile(".\\[3J.\\[H.\\[2J\r?\n");
-
     private static final Logger LOG = LogManager.getLogger(BashShell.class);
 
     @Nonnull
@@ -38,6 +27,16 @@ public class BashShell implements Closeable {
     @Nonnull
     private final String bashScript;
 
+    @Nonnull
+    private final ShellOutput stdout;
+
+    /** Null when STDERR is merged into STDOUT */
+    @Nullable
+    private final ShellOutput stderr;
+
+    /** When the shell was started, for the elapsed time */
+    private final long startNanos = System.nanoTime();
+
     /**
      * Executes @{link bashString} like it was at a Bash command prompt in spawned background threads.
      *
@@ -62,7 +61,70 @@ public class BashShell implements Closeable {
      */
     public static @Nonnull ExecutionResults runAndJoin(@Nonnull final String bashString, @Nullable final String[] args)
             throws IOException {
-        try(final BashShell shell = runAsync(bashString, args)) {
+        return runAndJoin(bashString, args, ShellOutput.retainTail());
+    }
+
+    /**
+     * Executes @{link bashString} like it was at a Bash command prompt, streaming the output as it is written.
+     *
+     * @param bashString We run these command(s) or text.  bashString may be large, like a whole program.
+     * @param args The arguments
+     * @param output Receives the output, its tail becomes the STDOUT of the results.
+     * @return The STDIN, the tail of STDOUT and exit code wrapped in an ExecutionResults object.
+     * @throws IOException and {@link BashpileUncheckedException} wrapping
+     *  ExecutionException, InterruptedException or TimeoutException.
+     */
+    public static @Nonnull ExecutionResults runAndJoin(
+            @Nonnull final String bashString, @Nullable final String[] args, @Nonnull final ShellOutput output)
+            throws IOException {
+        final BashWorkerPool pool = BashWorkerPool.instance();
+        if (pool != null) {
+            return pool.runAndJoin(bashString, args, output);
+        }
+        return runAndJoinUnpooled(bashString, args, output);
+    }
+
+    /**
+     * Executes @{link bashString} like it was at a Bash command prompt, streaming STDOUT and STDERR separately.
+     * Always runs in a new shell, the {@link BashWorkerPool} merges STDERR into STDOUT.
+     *
+     * @param stdout Receives STDOUT, its tail becomes the STDOUT of the results.
+     * @param stderr Receives STDERR, its tail becomes the STDERR of the results.
+     * @see #runAndJoin(String, String[], ShellOutput)
+     */
+    public static @Nonnull ExecutionResults runAndJoin(@Nonnull final String bashString,
+                                                      @Nullable final String[] args,
+                                                      @Nonnull final ShellOutput stdout,
+                                                      @Nonnull final ShellOutput stderr) throws IOException {
+        return runAndJoin(bashString, args, stdout, stderr, null);
+    }
+
+    /**
+     * Executes @{link bashString} like it was at a Bash command prompt, terminating it after timeout.
+     * Always runs in a new shell so a runaway script doesn't take a {@link BashWorkerPool} worker with it.
+     *
+     * @param stdout Receives STDOUT, its tail becomes the STDOUT of the results.
+     * @param stderr Receives STDERR, or null to merge STDERR into STDOUT.
+     * @param timeout When to terminate the whole process tree, or null to let it run.
+     * @return The results, with the output so far and an exit code of {@link ExecutionResults#TIMED_OUT} on a
+     *  timeout.
+     * @see #runAsync(String, String[], ShellOutput, ShellOutput, Duration)
+     */
+    public static @Nonnull ExecutionResults runAndJoin(@Nonnull final String bashString,
+                                                      @Nullable final String[] args,
+                                                      @Nonnull final ShellOutput stdout,
+                                                      @Nullable final ShellOutput stderr,
+                                                      @Nullable final Duration timeout) throws IOException {
+        try(final BashShell shell = runAsync(bashString, args, stdout, stderr, timeout)) {
+            return shell.join();
+        }
+    }
+
+    /** Runs in a new shell even when the {@link BashWorkerPool} is enabled */
+    /* package */ static @Nonnull ExecutionResults runAndJoinUnpooled(
+            @Nonnull final String bashString, @Nullable final String[] args, @Nonnull final ShellOutput output)
+            throws IOException {
+        try(final BashShell shell = runAsync(bashString, args, output)) {
             return shell.join();
         }
     }
@@ -79,6 +141,47 @@ public class BashShell implements Closeable {
      */
     public static @Nonnull BashShell runAsync(@Nonnull String bashString, @Nullable String[] args)
             throws IOException {
+        return runAsync(bashString, args, ShellOutput.retainTail());
+    }
+
+    /**
+     * Runs bashString like {@link #runAsync(String, String[])} and streams the output to output.
+     *
+     * @param output Receives the output (STDOUT and STDERR) as it is written.
+     */
+    public static @Nonnull BashShell runAsync(
+            @Nonnull String bashString, @Nullable String[] args, @Nonnull final ShellOutput output)
+            throws IOException {
+        return runAsync(bashString, args, output, null);
+    }
+
+    /**
+     * Runs bashString like {@link #runAsync(String, String[])} and streams STDOUT and STDERR as they are written.
+     *
+     * @param stdout Receives STDOUT.
+     * @param stderr Receives STDERR, or null to merge STDERR into STDOUT.
+     */
+    public static @Nonnull BashShell runAsync(@Nonnull String bashString,
+                                              @Nullable String[] args,
+                                              @Nonnull final ShellOutput stdout,
+                                              @Nullable final ShellOutput stderr) throws IOException {
+        return runAsync(bashString, args, stdout, stderr, null);
+    }
+
+    /**
+     * Runs bashString like {@link #runAsync(String, String[])} with a timeout.  When the timeout passes the shell, the
+     * inner login shell and everything they started get SIGTERM, then SIGKILL after
+     * {@link IoManager#TERMINATION_GRACE}.
+     *
+     * @param stdout Receives STDOUT.
+     * @param stderr Receives STDERR, or null to merge STDERR into STDOUT.
+     * @param timeout When to terminate the whole process tree, or null to let it run.
+     */
+    public static @Nonnull BashShell runAsync(@Nonnull String bashString,
+                                              @Nullable String[] args,
+                                              @Nonnull final ShellOutput stdout,
+                                              @Nullable final ShellOutput stderr,
+                                              @Nullable final Duration timeout) throws IOException {
         args = Objects.requireNonNullElse(args, new String[0]);
         // info for large runs, trace for small commands
         final String message = "Executing bash text:\n" + bashString;
@@ -89,21 +192,19 @@ public class BashShell implements Closeable {
         }
 
         // run our CommandLine process in background threads
-        final IoManager commandLine = IoManager.of(spawnLinuxProcess());
-        final BashShell processes = new BashShell(commandLine, bashString);
+        final IoManager commandLine = IoManager.of(spawnLinuxProcess(stderr == null), stdout, stderr, timeout);
+        final BashShell processes = new BashShell(commandLine, bashString, stdout, stderr);
 
         // on Windows 11 `set -e` causes an exit code of 1 unless we do a sub-shell
         // also the Linux process starts in the user's shell, which may not be Bash (e.g. zsh)
         commandLine.writeLn("bash --login");
 
         // this is the core of the method
-        final String filename = "bashshell.bash";
-        final Path filepath = Path.of(filename);
         if (args.length != 0) {
-            // write bashString to script file and execute script with args
-            Files.write(filepath, bashString.getBytes());
-            bashString = "chmod +x %s && ./%s %s; rm -f %s"
-                    .formatted(filename, filename, String.join(" ", args), filename);
+            // feed bashString to a child shell over a file descriptor so concurrent runs share no files
+            final String delimiter = "BASHPILE_SCRIPT_" + UUID.randomUUID().toString().replace("-", "");
+            bashString = "bash <(cat <<'%s'\n%s\n%s\n) %s"
+                    .formatted(delimiter, bashString, delimiter, String.join(" ", args));
         }
 
         // some OS's (Debian at least) drop the original PATH info during brew install
@@ -114,41 +215,49 @@ public class BashShell implements Closeable {
         commandLine.writeLn("exit $?");
         // exit from shell
         commandLine.writeLn("exit $?");
+        // start now, not on join
+        commandLine.flush();
         return processes;
     }
 
-    /* package */ BashShell(@Nonnull final IoManager ioManager, @Nonnull final String bashScript) {
+    /* package */ BashShell(@Nonnull final IoManager ioManager,
+                            @Nonnull final String bashScript,
+                            @Nonnull final ShellOutput stdout,
+                            @Nullable final ShellOutput stderr) {
         this.ioManager = ioManager;
         this.bashScript = bashScript;
+        this.stdout = stdout;
+        this.stderr = stderr;
     }
 
     /**
-     * This is the same as running `kill` on the async process.  You still need to call {@link #join()}
+     * This is the same as running `kill` on the async process, the inner login shell and everything they started.
+     * You still need to call {@link #join()}
      */
     public void sendTerminationSignal() {
         ioManager.sigterm();
     }
 
+    /**
+     * Sends SIGTERM to the whole process tree, then SIGKILL to what is still running after grace.
+     * You still need to call {@link #join()}
+     */
+    public void terminate(@Nonnull final Duration grace) {
+        ioManager.terminate(grace);
+    }
+
     /**
      * Shuts down the background threads gracefully
      *
-     * @return The ExecutionResults.
+     * @return The ExecutionResults, with the tails of the outputs as STDOUT and STDERR.
      */
     public @Nonnull ExecutionResults join() {
         // wait for background threads to complete
-        final Pair<Integer, String> ret = ioManager.join();
-
-        // munge stdout -- strip out inappropriate error lines
-        String stdout = ret.getValue();
-        LOG.trace("Shell output before processing: [{}]", stdout);
-        stdout = BOGUS_SCREEN_LINE.matcher(stdout).replaceAll("");
-        stdout = CLEAR_CONTROL_CODE.matcher(stdout).replaceAll("");
-        // replace trailing newline if it was stripped out earlier
-        if (!stdout.isEmpty()) {
-            stdout = StringUtils.appendIfMissing(stdout, "\n");
-        }
+        final int exitCode = ioManager.join();
 
-        return new ExecutionResults(bashScript, ret.getKey(), stdout);
+        final Duration elapsed = Duration.ofNanos(System.nanoTime() - startNanos);
+        return new ExecutionResults(
+                bashScript, exitCode, stdout.tail(), stderr != null ? stderr.tail() : "", elapsed);
     }
 
     @Override
@@ -167,13 +276,13 @@ public class BashShell implements Closeable {
 
     // helpers
 
-    private static @Nonnull Process spawnLinuxProcess() throws IOException {
+    private static @Nonnull Process spawnLinuxProcess(final boolean mergeStderr) throws IOException {
         ProcessBuilder linuxProcess = createProcessBuilder();
-        linuxProcess.redirectErrorStream(true);
+        linuxProcess.redirectErrorStream(mergeStderr);
         return linuxProcess.start();
     }
 
-    private static @Nonnull ProcessBuilder createProcessBuilder() {
+    /* package */ static @Nonnull ProcessBuilder createProcessBuilder() {
         final ProcessBuilder builder = new ProcessBuilder();
         if (isWindows()) {
             LOG.trace("Detected windows");
@@ -0,0 +1,273 @@
+package com.bashpile.shell;
+
+import com.bashpile.Strings;
+import com.bashpile.exceptions.BashpileUncheckedException;
+import org.apache.commons.lang3.function.FailableConsumer;
+import org.apache.commons.lang3.function.FailableRunnable;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived login Bash process that runs one script at a time for the {@link BashWorkerPool}.
+ * <br>
+ * A script is sent NUL terminated and piped into a child Bash, so `cd`, variables, traps and `exit` don't leak into
+ * the next script.  The child reads the script line by line like {@link BashShell} does, so an error only ends the
+ * line it is on.  The login profile's functions are exported to the children.  STDERR is merged into STDOUT, like
+ * {@link BashShell}.  The end of the output is marked by a sentinel line holding the exit code.
+ */
+/* package */ class BashWorker implements Closeable {
+
+    /** For the first sentinel, after the login profile has run */
+    private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(30);
+
+    /** For the health check */
+    private static final Duration PING_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * Chunks of up to {@link FailableStreamConsumer#CHUNK_CHARS} read ahead of the script's {@link ShellOutput}, past
+     * this the script blocks on its writes
+     */
+    private static final int READ_AHEAD_CHUNKS = 64;
+
+    /** Put on the reader's queue when the process's STDOUT closes */
+    private static final String END_OF_STREAM = new String("end of stream");
+
+    private static final Logger LOG = LogManager.getLogger(BashWorker.class);
+
+    /** The script was never sent to the worker, so it didn't run and can be run somewhere else */
+    /* package */ static class RequestNotSentException extends IOException {
+        /* package */ RequestNotSentException(@Nonnull final IOException cause) {
+            super("Could not send the script to the Bash worker", cause);
+        }
+    }
+
+    @Nonnull
+    private final Process process;
+
+    @Nonnull
+    private final BufferedWriter stdin;
+
+    /** STDOUT chunks from the reader thread, not split on lines */
+    @Nonnull
+    private final BlockingQueue<String> stdoutChunks = new LinkedBlockingQueue<>(READ_AHEAD_CHUNKS);
+
+    /** STDOUT taken from {@link #stdoutChunks} but not passed on yet, at most a chunk and the sentinel line */
+    @Nonnull
+    private final StringBuilder unread = new StringBuilder();
+
+    @Nonnull
+    private final Thread reader;
+
+    /** Unique to this worker so a script can't fake the end of its output by accident */
+    @Nonnull
+    private final String sentinel = "bashpile-worker-" + UUID.randomUUID() + ":";
+
+    private int uses = 0;
+
+    /** Spawns a worker and waits for its login shell to be ready */
+    public static @Nonnull BashWorker start() throws IOException {
+        final Process process = BashShell.createProcessBuilder().redirectErrorStream(true).start();
+        final BashWorker worker = new BashWorker(process);
+        try {
+            worker.awaitReady();
+        } catch (final IOException | RuntimeException e) {
+            worker.close();
+            throw e;
+        }
+        return worker;
+    }
+
+    private BashWorker(@Nonnull final Process process) {
+        this.process = process;
+        this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        final Reader stdout = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8);
+        reader = Thread.ofVirtual().name("bash-worker-reader").start(() -> {
+            try (stdout) {
+                final char[] buffer = new char[FailableStreamConsumer.CHUNK_CHARS];
+                int read;
+                while ((read = stdout.read(buffer)) != -1) {
+                    stdoutChunks.put(new String(buffer, 0, read));
+                }
+                stdoutChunks.put(END_OF_STREAM);
+            } catch (final IOException e) {
+                LOG.trace("Bash worker output closed", e);
+                stdoutChunks.offer(END_OF_STREAM);
+            } catch (final InterruptedException e) {
+                LOG.trace("Bash worker closed");
+            }
+        });
+    }
+
+    /**
+     * Runs bashString like {@link BashShell#runAndJoin(String, String[])}.
+     *
+     * @param timeout How long to wait for the script, or null to wait forever.
+     * @throws IOException when the worker died or timed out.  The worker can't be used again.
+     */
+    public @Nonnull ExecutionResults run(
+            @Nonnull final String bashString, @Nullable final String[] args, @Nullable final Duration timeout)
+            throws IOException {
+        return run(bashString, args, timeout, ShellOutput.retainTail());
+    }
+
+    /**
+     * Runs bashString like {@link BashShell#runAndJoin(String, String[], ShellOutput)}.
+     *
+     * @param timeout How long to wait for the script, or null to wait forever.
+     * @param output Receives the output as it is written.
+     * @throws RequestNotSentException when the worker died before it got the script.  The worker can't be used again.
+     * @throws IOException when the worker died or timed out while running the script, or output failed.  The worker
+     *   can't be used again.
+     */
+    public @Nonnull ExecutionResults run(
+            @Nonnull final String bashString,
+            @Nullable final String[] args,
+            @Nullable final Duration timeout,
+            @Nonnull final ShellOutput output) throws IOException {
+        uses++;
+        final long start = System.nanoTime();
+        // some OS's (Debian at least) drop the original PATH info during brew install
+        final String envPath = Strings.defaultString(System.getenv("PATH"), ".");
+        final StringBuilder request = new StringBuilder("export PATH=%s:$PATH\n".formatted(envPath));
+        if (args != null && args.length != 0) {
+            request.append("set -- ").append(String.join(" ", args)).append('\n');
+        }
+        request.append(bashString).append('\n').append('\0');
+        try {
+            stdin.write(request.toString());
+            stdin.flush();
+        } catch (final IOException e) {
+            // the worker only starts the script once it has read the closing NUL
+            throw new RequestNotSentException(e);
+        }
+
+        final long deadline = timeout != null ? System.nanoTime() + timeout.toNanos() : Long.MAX_VALUE;
+        final int exitCode = Integer.parseInt(readToSentinel(deadline, output::acceptTextAndCopy));
+        passOn(output::finish);
+        return new ExecutionResults(bashString, exitCode, output.tail(), Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    /** Alive and answering */
+    public boolean isHealthy() {
+        if (!process.isAlive()) {
+            return false;
+        }
+        try {
+            return run("true", null, PING_TIMEOUT).exitCode() == ExecutionResults.SUCCESS;
+        } catch (final IOException | RuntimeException e) {
+            LOG.debug("Bash worker failed its health check", e);
+            return false;
+        }
+    }
+
+    /** How many scripts this worker has run */
+    public int uses() {
+        return uses;
+    }
+
+    @Override
+    public void close() {
+        process.descendants().forEach(ProcessHandle::destroy);
+        process.destroy();
+        // the reader may be blocked on a full queue
+        reader.interrupt();
+    }
+
+    // helpers
+
+    private void awaitReady() throws IOException {
+        // on Windows 11 `set -e` causes an exit code of 1 unless we do a sub-shell
+        // also the Linux process starts in the user's shell, which may not be Bash (e.g. zsh)
+        stdin.write("bash --login\n");
+        stdin.write("bashpileFunctions=$(compgen -A function); "
+                + "[ -n \"$bashpileFunctions\" ] && export -f $bashpileFunctions\n");
+        stdin.write(("printf '%%s%%d\\n' '%1$s' 0; while IFS= read -r -d '' bashpileRequest; do "
+                + "printf '%%s' \"$bashpileRequest\" | bash 2>&1; printf '%%s%%d\\n' '%1$s' \"$?\"; done\n")
+                .formatted(sentinel));
+        stdin.flush();
+        final long deadline = System.nanoTime() + STARTUP_TIMEOUT.toNanos();
+        // skip anything the login profile printed
+        readToSentinel(deadline, text -> LOG.trace("Skipping login output"));
+    }
+
+    /**
+     * Passes the output to beforeSentinel until the sentinel line.  Output without a trailing newline ends up on the
+     * sentinel line, before the sentinel.
+     *
+     * @return The rest of the sentinel line, the exit code.
+     */
+    private @Nonnull String readToSentinel(
+            final long deadline, @Nonnull final FailableConsumer<String, Exception> beforeSentinel) throws IOException {
+        while (true) {
+            final int sentinelIndex = unread.indexOf(sentinel);
+            if (sentinelIndex == -1) {
+                // the end may be the start of the sentinel
+                passOn(unread.length() - sentinel.length() + 1, beforeSentinel);
+                unread.append(nextChunk(deadline));
+                continue;
+            }
+            passOn(sentinelIndex, beforeSentinel);
+            final int lineEnd = unread.indexOf("\n", sentinel.length());
+            if (lineEnd == -1) {
+                unread.append(nextChunk(deadline));
+                continue;
+            }
+            final String exitCode = unread.substring(sentinel.length(), lineEnd).trim();
+            unread.delete(0, lineEnd + 1);
+            return exitCode;
+        }
+    }
+
+    /** Passes on the first chars of {@link #unread}, if any */
+    private void passOn(final int chars, @Nonnull final FailableConsumer<String, Exception> consumer)
+            throws IOException {
+        if (chars > 0) {
+            final String text = unread.substring(0, chars);
+            unread.delete(0, chars);
+            passOn(() -> consumer.accept(text));
+        }
+    }
+
+    /** Runs a step of passing on the output, a failing consumer breaks the worker */
+    private static void passOn(@Nonnull final FailableRunnable<Exception> step) throws IOException {
+        try {
+            step.run();
+        } catch (final IOException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException("Could not pass on the Bash worker's output", e);
+        }
+    }
+
+    private @Nonnull String nextChunk(final long deadline) throws IOException {
+        try {
+            final String chunk = stdoutChunks.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (chunk == null) {
+                throw new IOException("Timed out waiting on the Bash worker");
+            }
+            //noinspection StringEquality -- checking for our marker instance
+            if (chunk == END_OF_STREAM) {
+                throw new IOException("Bash worker exited with " + process.waitFor());
+            }
+            return chunk;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BashpileUncheckedException(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.bashpile.shell;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An opt-in pool of warm {@link BashWorker}s behind {@link BashShell#runAndJoin(String, String[])}.
+ * Saves spawning a process and running the login profile for every call.
+ * <br>
+ * Enable with the system property `bashpile.shell.pool` or the environment variable BASHPILE_SHELL_POOL set to the
+ * number of workers (e.g. `mvn test -Dbashpile.shell.pool=4`).
+ * Workers idle for a while are health checked before use and workers are recycled after {@link #MAX_USES} scripts.
+ * <br>
+ * Unlike a new shell, nothing after a fatal error (e.g. a bad array subscript in posix mode) runs.  A new shell runs
+ * the rest of the script in its parent shell and usually exits with 0.
+ */
+/* package */ class BashWorkerPool {
+
+    // statics
+
+    /** Set to the number of workers to enable */
+    public static final String SIZE_PROPERTY = "bashpile.shell.pool";
+
+    /** Set to the number of workers to enable */
+    public static final String SIZE_ENV_VARIABLE = "BASHPILE_SHELL_POOL";
+
+    /** Recycle a worker after this many scripts, in case something leaked out of the subshells */
+    /* package */ static final int MAX_USES = 200;
+
+    /** Health check workers that have been idle this long */
+    private static final Duration HEALTH_CHECK_AFTER = Duration.ofSeconds(10);
+
+    private static final Logger LOG = LogManager.getLogger(BashWorkerPool.class);
+
+    /** Null when pooling is off */
+    @Nullable
+    private static final BashWorkerPool INSTANCE = createInstance();
+
+    /** The pool or null if pooling is off */
+    public static @Nullable BashWorkerPool instance() {
+        return INSTANCE;
+    }
+
+    // class fields
+
+    private final int size;
+
+    /** Workers ready for a script */
+    @Nonnull
+    private final BlockingQueue<BashWorker> idleWorkers = new LinkedBlockingQueue<>();
+
+    /** When each idle worker was last used */
+    @Nonnull
+    private final Map<BashWorker, Instant> lastUsed = new ConcurrentHashMap<>();
+
+    /** Idle plus in use */
+    @Nonnull
+    private final AtomicInteger workerCount = new AtomicInteger();
+
+    // constructors
+
+    /* package */ BashWorkerPool(final int size) {
+        this.size = size;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    // instance methods
+
+    /**
+     * Runs bashString on a warm worker like {@link BashShell#runAndJoin(String, String[])}.
+     * If the worker breaks before it gets the script, the script is run with a new unpooled shell instead.  A worker
+     * that breaks after that may have run some or all of the script, so it is discarded and the error is thrown rather
+     * than running the script twice.
+     */
+    public @Nonnull ExecutionResults runAndJoin(@Nonnull final String bashString, @Nullable final String[] args)
+            throws IOException {
+        return runAndJoin(bashString, args, ShellOutput.retainTail());
+    }
+
+    /** Runs bashString on a warm worker like {@link BashShell#runAndJoin(String, String[], ShellOutput)} */
+    public @Nonnull ExecutionResults runAndJoin(
+            @Nonnull final String bashString, @Nullable final String[] args, @Nonnull final ShellOutput output)
+            throws IOException {
+        final BashWorker worker;
+        try {
+            worker = acquire();
+        } catch (final IOException e) {
+            LOG.warn("Could not start a Bash worker, running unpooled", e);
+            return BashShell.runAndJoinUnpooled(bashString, args, output);
+        }
+        try {
+            final ExecutionResults results = worker.run(bashString, args, null, output);
+            release(worker);
+            return results;
+        } catch (final BashWorker.RequestNotSentException e) {
+            LOG.warn("Bash worker failed before it got the script, running unpooled", e);
+            discard(worker);
+            return BashShell.runAndJoinUnpooled(bashString, args, output);
+        } catch (final IOException | RuntimeException e) {
+            LOG.warn("Bash worker failed while running the script", e);
+            discard(worker);
+            throw e;
+        }
+    }
+
+    /** Stops all the idle workers */
+    public void close() {
+        BashWorker worker;
+        while ((worker = idleWorkers.poll()) != null) {
+            discard(worker);
+        }
+    }
+
+    // helpers
+
+    private static @Nullable BashWorkerPool createInstance() {
+        final String setting = System.getProperty(SIZE_PROPERTY, System.getenv(SIZE_ENV_VARIABLE));
+        if (setting == null || setting.isBlank()) {
+            return null;
+        }
+        try {
+            final int size = Integer.parseInt(setting.trim());
+            LOG.info("Using a pool of {} Bash workers", size);
+            return size > 0 ? new BashWorkerPool(size) : null;
+        } catch (final NumberFormatException e) {
+            LOG.warn("{} should be a number of workers but was {}", SIZE_PROPERTY, setting);
+            return null;
+        }
+    }
+
+    private @Nonnull BashWorker acquire() throws IOException {
+        while (true) {
+            BashWorker worker = idleWorkers.poll();
+            if (worker == null && workerCount.incrementAndGet() <= size) {
+                try {
+                    return BashWorker.start();
+                } catch (final IOException | RuntimeException e) {
+                    workerCount.decrementAndGet();
+                    throw e;
+                }
+            } else if (worker == null) {
+                workerCount.decrementAndGet();
+                try {
+                    worker = idleWorkers.take();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+
+            final Instant idleSince = lastUsed.remove(worker);
+            final boolean needsCheck = idleSince == null
+                    || idleSince.plus(HEALTH_CHECK_AFTER).isBefore(Instant.now());
+            if (!needsCheck || worker.isHealthy()) {
+                return worker;
+            }
+            LOG.debug("Replacing an unhealthy Bash worker");
+            discard(worker);
+        }
+    }
+
+    private void release(@Nonnull final BashWorker worker) {
+        if (worker.uses() >= MAX_USES) {
+            LOG.trace("Recycling a Bash worker");
+            discard(worker);
+            return;
+        }
+        lastUsed.put(worker, Instant.now());
+        idleWorkers.add(worker);
+    }
+
+    private void discard(@Nonnull final BashWorker worker) {
+        lastUsed.remove(worker);
+        worker.close();
+        workerCount.decrementAndGet();
+    }
+}
@@ -0,0 +1,291 @@
+package com.bashpile.shell;
+
+import com.bashpile.CompileCache;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Command resolutions (is it a Linux command or not) saved between compiles, in
+ * $XDG_CACHE_HOME/bashpile/commands.properties.
+ * <br>
+ * Only bare command names are saved since paths depend on the working directory.  All saved results are dropped when
+ * the fingerprint changes.  The fingerprint covers the PATH, the modified times of the PATH directories (a command was
+ * installed or removed) and the contents of the Bash startup files (aliases and functions).
+ * <br>
+ * Results are saved with the fingerprint they were resolved under, so a resident compiler that calls
+ * {@link #refresh(String)} before each compile never saves results from before a change as valid after it.  A compile
+ * server compiles for clients with different PATHs, it passes each client's fingerprint to
+ * {@link #get(String, String)} and {@link #put(String, String, boolean)}.
+ */
+public class CommandCache {
+
+    // statics
+
+    private static final String FINGERPRINT = "bashpile.fingerprint";
+
+    private static final String HITS = "bashpile.hits";
+
+    private static final String MISSES = "bashpile.misses";
+
+    /** A login shell reads these, they may define aliases and functions or change the PATH */
+    private static final List<String> STARTUP_FILES = List.of(
+            "/etc/profile", "/etc/profile.d", "/etc/bash.bashrc", "~/.bash_profile", "~/.bash_login", "~/.profile",
+            "~/.bashrc");
+
+    private static final Logger LOG = LogManager.getLogger(CommandCache.class);
+
+    /** A hash of everything that can change how a command name resolves */
+    public static @Nonnull String fingerprint() {
+        return fingerprint(CommandEnvironment.current());
+    }
+
+    /** A hash of everything that can change how a command name resolves with environment's PATH */
+    public static @Nonnull String fingerprint(@Nonnull final CommandEnvironment environment) {
+        final String home = System.getProperty("user.home");
+        final List<Path> startupFiles = STARTUP_FILES.stream()
+                .map(startupFile -> Path.of(startupFile.replaceFirst("^~", home)))
+                .toList();
+        return fingerprint(environment.path(), startupFiles);
+    }
+
+    /**
+     * A hash of the PATH, the modified times of its directories and the contents of the startup files.
+     *
+     * @param startupFiles Files, or directories of files (e.g. /etc/profile.d).
+     */
+    /* package */ static @Nonnull String fingerprint(
+            @Nonnull final String path, @Nonnull final List<Path> startupFiles) {
+        final Hasher hasher = Hashing.sha256().newHasher().putString(path, StandardCharsets.UTF_8);
+        for (final String directory : path.split(File.pathSeparator)) {
+            // installing or removing a command changes its directory
+            hasher.putLong(lastModifiedMillis(directory));
+        }
+        for (final Path startupFile : startupFiles) {
+            putContents(hasher, startupFile);
+        }
+        return hasher.hash().toString();
+    }
+
+    // class fields
+
+    @Nonnull
+    private final Path file;
+
+    /** Maps a command name to if it is a Linux command, null until loaded */
+    private Map<String, Boolean> commands;
+
+    /** The fingerprint that the commands were resolved under, null until loaded */
+    @Nullable
+    private String loadedFingerprint;
+
+    private long hits;
+
+    private long misses;
+
+    private boolean dirty = false;
+
+    // static initializers
+
+    /** A cache in the {@link CompileCache#defaultDirectory()} */
+    public static @Nonnull CommandCache ofDefaultDirectory() {
+        return new CommandCache(CompileCache.defaultDirectory().resolve("commands.properties"));
+    }
+
+    // constructors
+
+    public CommandCache(@Nonnull final Path file) {
+        this.file = file;
+    }
+
+    // instance methods
+
+    /** The saved result resolved under fingerprint, see {@link #refresh(String)} and {@link #get(String)} */
+    public synchronized @Nonnull Optional<Boolean> get(
+            @Nonnull final String fingerprint, @Nonnull final String command) {
+        refresh(fingerprint);
+        return get(command);
+    }
+
+    /** Saves the result resolved under fingerprint, see {@link #refresh(String)} and {@link #put(String, boolean)} */
+    public synchronized void put(
+            @Nonnull final String fingerprint, @Nonnull final String command, final boolean isCommand) {
+        refresh(fingerprint);
+        put(command, isCommand);
+    }
+
+    /** The saved result, counts a hit or a miss */
+    public synchronized @Nonnull Optional<Boolean> get(@Nonnull final String command) {
+        load();
+        final Boolean isCommand = commands.get(command);
+        if (isCommand != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        dirty = true;
+        return Optional.ofNullable(isCommand);
+    }
+
+    /** Saves the result on the next {@link #save()}.  Paths are ignored. */
+    public synchronized void put(@Nonnull final String command, final boolean isCommand) {
+        if (command.contains("/") || command.startsWith("bashpile.")) {
+            return;
+        }
+        load();
+        commands.put(command, isCommand);
+        dirty = true;
+    }
+
+    /**
+     * Drops the commands when they were resolved under another fingerprint, e.g. the PATH changed since they were
+     * loaded.  Call before each compile.
+     *
+     * @param fingerprint The current {@link #fingerprint()}.
+     * @return True if commands were dropped.
+     */
+    public synchronized boolean refresh(@Nonnull final String fingerprint) {
+        if (commands == null) {
+            load(fingerprint);
+            return false;
+        }
+        if (fingerprint.equals(loadedFingerprint)) {
+            return false;
+        }
+        LOG.debug("PATH or shell startup files changed, dropping resolved commands");
+        commands = new HashMap<>();
+        loadedFingerprint = fingerprint;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Writes the results and counts if they changed, with the fingerprint they were resolved under.  Problems are
+     * logged and otherwise ignored.
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        final Properties properties = new Properties();
+        commands.forEach((command, isCommand) -> properties.setProperty(command, isCommand.toString()));
+        properties.setProperty(FINGERPRINT, Objects.requireNonNull(loadedFingerprint));
+        properties.setProperty(HITS, Long.toString(hits));
+        properties.setProperty(MISSES, Long.toString(misses));
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            // write then move so a concurrent compile never reads a partial file
+            final Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), "commands", ".tmp");
+            try (final Writer writer = Files.newBufferedWriter(temp)) {
+                properties.store(writer, "Bashpile command cache");
+            }
+            Files.move(temp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            dirty = false;
+        } catch (final IOException e) {
+            LOG.warn("Could not save command cache {}", file, e);
+        }
+    }
+
+    /** A human-readable summary for `bpc --cache-stats` */
+    public synchronized @Nonnull String stats() {
+        load();
+        final long lookups = hits + misses;
+        final double hitRate = lookups == 0 ? 0 : 100.0 * hits / lookups;
+        return """
+                Command cache: %s
+                Commands: %d
+                Hits: %d, misses: %d, hit rate: %.1f%%
+                """.formatted(file, commands.size(), hits, misses, hitRate);
+    }
+
+    // helpers
+
+    /** Loads once with the current fingerprint */
+    private void load() {
+        if (commands == null) {
+            load(fingerprint());
+        }
+    }
+
+    /** Keeps the counts but not the commands when the saved fingerprint isn't fingerprint */
+    private void load(@Nonnull final String fingerprint) {
+        commands = new HashMap<>();
+        loadedFingerprint = fingerprint;
+        if (!Files.exists(file)) {
+            return;
+        }
+        final Properties properties = new Properties();
+        try (final Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        } catch (final IOException | IllegalArgumentException e) {
+            LOG.warn("Could not read command cache {}", file, e);
+            return;
+        }
+        hits = Long.parseLong(properties.getProperty(HITS, "0"));
+        misses = Long.parseLong(properties.getProperty(MISSES, "0"));
+        if (!fingerprint.equals(properties.getProperty(FINGERPRINT))) {
+            LOG.debug("PATH or shell startup files changed, dropping saved commands");
+            dirty = true;
+            return;
+        }
+        properties.stringPropertyNames().stream()
+                .filter(name -> !name.startsWith("bashpile."))
+                .forEach(name -> commands.put(name, Boolean.parseBoolean(properties.getProperty(name))));
+    }
+
+    /**
+     * Hashes the file, or the names and contents of the files in the directory.  Editing a file doesn't change the
+     * modified time of its directory.
+     */
+    private static void putContents(@Nonnull final Hasher hasher, @Nonnull final Path startupFile) {
+        try {
+            if (Files.isDirectory(startupFile)) {
+                final List<Path> files;
+                try (final Stream<Path> listing = Files.list(startupFile)) {
+                    files = listing.filter(Files::isRegularFile).sorted().toList();
+                }
+                for (final Path file : files) {
+                    hasher.putString(file.getFileName().toString(), StandardCharsets.UTF_8).putByte((byte) 0)
+                            .putBytes(Files.readAllBytes(file));
+                }
+            } else if (Files.isRegularFile(startupFile)) {
+                hasher.putBytes(Files.readAllBytes(startupFile));
+            } else {
+                hasher.putLong(-1);
+            }
+        } catch (final IOException e) {
+            // unreadable, so our login shells can't read it either
+            hasher.putLong(-2);
+        }
+    }
+
+    private static long lastModifiedMillis(@Nonnull final String filename) {
+        try {
+            return Files.getLastModifiedTime(Path.of(filename)).toMillis();
+        } catch (final IOException | InvalidPathException e) {
+            return -1;
+        }
+    }
+}
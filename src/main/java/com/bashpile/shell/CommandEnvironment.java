@@ -0,0 +1,31 @@
+package com.bashpile.shell;
+
+import javax.annotation.Nonnull;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Where commands are looked up: relative commands like `./cmd` against the working directory, command names on the
+ * PATH.  Usually this JVM's, a compile server compiles with its client's.
+ *
+ * @param workingDirectory An absolute path.
+ * @param path The PATH environment variable.
+ */
+public record CommandEnvironment(@Nonnull Path workingDirectory, @Nonnull String path) {
+
+    /** This JVM's working directory and PATH */
+    public static @Nonnull CommandEnvironment current() {
+        return new CommandEnvironment(
+                Path.of("").toAbsolutePath(), Objects.requireNonNullElse(System.getenv("PATH"), ""));
+    }
+
+    public CommandEnvironment(@Nonnull final Path workingDirectory, @Nonnull final String path) {
+        this.workingDirectory = workingDirectory.toAbsolutePath().normalize();
+        this.path = path;
+    }
+
+    /** The command as a path, relative paths are resolved against the working directory */
+    public @Nonnull Path resolve(@Nonnull final String command) {
+        return workingDirectory.resolve(command);
+    }
+}
@@ -0,0 +1,215 @@
+package com.bashpile.shell;
+
+import com.bashpile.Strings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Answers the question `type -t` answers (alias, keyword, function, builtin, file or not found) without starting a
+ * shell where we can.
+ * <br>
+ * Keywords and builtins come from a table, paths and commands on the PATH are checked on the file system.
+ * Only the login shell knows its aliases and functions, so a name we can't find is resolved with `type -t`.
+ * Everything is resolved in a {@link CommandEnvironment}, this JVM's unless another one is given.
+ */
+public class CommandResolver {
+
+    /** The results of `type -t`, plus UNKNOWN when only a shell can tell */
+    public enum CommandType {
+        ALIAS, KEYWORD, FUNCTION, BUILTIN, FILE, NOT_FOUND, UNKNOWN;
+
+        /** Parses the output of `type -t`.  Blank (or unexpected) output means not found. */
+        public static @Nonnull CommandType fromTypeOutput(@Nonnull final String typeOutput) {
+            final String trimmed = typeOutput.trim();
+            return Arrays.stream(values())
+                    .filter(type -> type.name().toLowerCase().equals(trimmed))
+                    .findFirst()
+                    .orElse(NOT_FOUND);
+        }
+
+        /** Can be run as a command, keywords like 'if' are not */
+        public boolean isCommand() {
+            return this == ALIAS || this == FUNCTION || this == BUILTIN || this == FILE;
+        }
+    }
+
+    /** From `compgen -k` in Bash 5 */
+    private static final Set<String> KEYWORDS = Set.of(
+            "if", "then", "else", "elif", "fi", "case", "esac", "for", "select", "while", "until", "do", "done", "in",
+            "function", "time", "{", "}", "!", "[[", "]]", "coproc");
+
+    /** From `compgen -b` in Bash 5 */
+    private static final Set<String> BUILTINS = Set.of(
+            ".", ":", "[", "alias", "bg", "bind", "break", "builtin", "caller", "cd", "command", "compgen", "complete",
+            "compopt", "continue", "declare", "dirs", "disown", "echo", "enable", "eval", "exec", "exit", "export",
+            "false", "fc", "fg", "getopts", "hash", "help", "history", "jobs", "kill", "let", "local", "logout",
+            "mapfile", "popd", "printf", "pushd", "pwd", "read", "readarray", "readonly", "return", "set", "shift",
+            "shopt", "source", "suspend", "test", "times", "trap", "true", "type", "typeset", "ulimit", "umask",
+            "unalias", "unset", "wait");
+
+    /** Starts each line of `type -t` results from the shell */
+    private static final String TYPE_MARKER = "bashpile-type:";
+
+    private static final Logger LOG = LogManager.getLogger(CommandResolver.class);
+
+    /**
+     * Resolves in process, falling back to `type -t` in a login shell.
+     *
+     * @param command A command name or a path.  Must already be validated as a name or path.
+     * @return The type, never {@link CommandType#UNKNOWN}.
+     */
+    public static @Nonnull CommandType resolve(@Nonnull final String command) throws IOException {
+        return resolve(command, CommandEnvironment.current());
+    }
+
+    /** Resolves in environment, see {@link #resolve(String)} */
+    public static @Nonnull CommandType resolve(
+            @Nonnull final String command, @Nonnull final CommandEnvironment environment) throws IOException {
+        return resolveAll(List.of(command), environment).getOrDefault(command, CommandType.NOT_FOUND);
+    }
+
+    /**
+     * Resolves in process, falling back to one login shell for all the commands that need it.
+     *
+     * @param commands Command names or paths.
+     * @return The types, never {@link CommandType#UNKNOWN}.
+     */
+    public static @Nonnull Map<String, CommandType> resolveAll(@Nonnull final Collection<String> commands)
+            throws IOException {
+        return resolveAll(commands, CommandEnvironment.current());
+    }
+
+    /**
+     * Resolves in environment, see {@link #resolveAll(Collection)}.  When environment isn't this JVM's the login shell
+     * runs in its working directory with its PATH.
+     */
+    public static @Nonnull Map<String, CommandType> resolveAll(
+            @Nonnull final Collection<String> commands, @Nonnull final CommandEnvironment environment)
+            throws IOException {
+        final Map<String, CommandType> ret = new HashMap<>(commands.size());
+        final List<String> needShell = new ArrayList<>();
+        for (final String command : commands) {
+            final CommandType type = resolveInProcess(command, environment);
+            if (type == CommandType.UNKNOWN) {
+                needShell.add(command);
+            } else {
+                ret.put(command, type);
+            }
+        }
+        if (needShell.isEmpty()) {
+            return ret;
+        }
+
+        LOG.debug("Resolving {} commands with the shell", needShell.size());
+        // one marked line per command, a login profile may print to STDOUT too
+        final String quotedCommands = needShell.stream()
+                .map(CommandResolver::quote)
+                .collect(Collectors.joining(" "));
+        final String environmentSetup = environment.equals(CommandEnvironment.current()) ? ""
+                : "cd %s && PATH=%s && ".formatted(
+                        quote(environment.workingDirectory().toString()), quote(environment.path()));
+        final String script = "%sfor command in %s; do printf '%s%%s\\n' \"$(type -t -- \"$command\")\"; done"
+                .formatted(environmentSetup, quotedCommands, TYPE_MARKER);
+        final List<String> types = BashShell.runAndJoin(script).stdoutLines().stream()
+                .filter(line -> line.startsWith(TYPE_MARKER))
+                .map(line -> line.substring(TYPE_MARKER.length()))
+                .toList();
+        if (types.size() != needShell.size()) {
+            LOG.warn("Expected {} command types but got {}", needShell.size(), types.size());
+            return ret;
+        }
+        for (int i = 0; i < needShell.size(); i++) {
+            ret.put(needShell.get(i), CommandType.fromTypeOutput(types.get(i)));
+        }
+        return ret;
+    }
+
+    /**
+     * Resolves without a shell.
+     *
+     * @return UNKNOWN when the command may be an alias or function from the login shell.
+     */
+    public static @Nonnull CommandType resolveInProcess(@Nonnull final String command) {
+        return resolveInProcess(command, CommandEnvironment.current());
+    }
+
+    /** Resolves in environment without a shell, see {@link #resolveInProcess(String)} */
+    public static @Nonnull CommandType resolveInProcess(
+            @Nonnull final String command, @Nonnull final CommandEnvironment environment) {
+        if (BashShell.isWindows()) {
+            // PATH and file checks would be against Windows, not WSL
+            return CommandType.UNKNOWN;
+        }
+        if (KEYWORDS.contains(command)) {
+            return CommandType.KEYWORD;
+        }
+        if (BUILTINS.contains(command)) {
+            return CommandType.BUILTIN;
+        }
+        // aliases can't have a slash, so a path is a file or nothing
+        if (command.contains("/")) {
+            return isExecutableFile(command, environment) ? CommandType.FILE : CommandType.NOT_FOUND;
+        }
+        // the login shell may add to the PATH, define aliases or define functions
+        return findOnPath(command, environment).isPresent() ? CommandType.FILE : CommandType.UNKNOWN;
+    }
+
+    /**
+     * Finds an executable on the JVM's PATH, like `which` but without a shell.
+     *
+     * @param command A command name.
+     * @return The first match or empty.
+     */
+    public static @Nonnull Optional<Path> findOnPath(@Nonnull final String command) {
+        return findOnPath(command, CommandEnvironment.current());
+    }
+
+    /** Finds an executable on the environment's PATH, see {@link #findOnPath(String)} */
+    public static @Nonnull Optional<Path> findOnPath(
+            @Nonnull final String command, @Nonnull final CommandEnvironment environment) {
+        return pathDirectories(environment).stream()
+                .map(directory -> directory + File.separator + command)
+                .filter(filename -> isExecutableFile(filename, environment))
+                .map(environment::resolve)
+                .findFirst();
+    }
+
+    // helpers
+
+    private static @Nonnull List<String> pathDirectories(@Nonnull final CommandEnvironment environment) {
+        return Arrays.stream(environment.path().split(File.pathSeparator)).filter(Strings::isNotBlank).toList();
+    }
+
+    /** Relative filenames are in the environment's working directory */
+    private static boolean isExecutableFile(
+            @Nonnull final String filename, @Nonnull final CommandEnvironment environment) {
+        try {
+            final Path path = environment.resolve(filename);
+            return Files.isRegularFile(path) && Files.isExecutable(path);
+        } catch (final InvalidPathException e) {
+            return false;
+        }
+    }
+
+    /** In single quotes for Bash */
+    private static @Nonnull String quote(@Nonnull final String text) {
+        return "'" + text.replace("'", "'\\''") + "'";
+    }
+}
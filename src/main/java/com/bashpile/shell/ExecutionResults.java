@@ -1,12 +1,17 @@
 package com.bashpile.shell;
 
 import javax.annotation.Nonnull;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Pattern;
 
-/** Holds STDIN, the Linux exit code and STDOUT */
-public record ExecutionResults(@Nonnull String stdin, int exitCode, @Nonnull String stdout) {
+/**
+ * Holds STDIN, the Linux exit code, STDOUT, STDERR and how long the run took.
+ * STDERR is empty when it was merged into STDOUT.
+ */
+public record ExecutionResults(
+        @Nonnull String stdin, int exitCode, @Nonnull String stdout, @Nonnull String stderr, @Nonnull Duration elapsed) {
 
     /** The Linux exit code indicating success -- 0 */
     public static final int SUCCESS = 0;
@@ -14,16 +19,36 @@ public record ExecutionResults(@Nonnull String stdin, int exitCode, @Nonnull Str
     /** Unknown or non-specific failure */
     public static final int GENERIC_FAILURE = 1;
 
+    /** The run was terminated for taking too long -- 124, like the timeout command */
+    public static final int TIMED_OUT = 124;
+
     /** The Linux errored exit code indicating a command not found -- 127 */
     public static final int COMMAND_NOT_FOUND = 127;
 
     private static final Pattern WINDOWS_LINE_ENDINGS = Pattern.compile("\r\n");
 
-    public ExecutionResults(@Nonnull final String stdin, final int exitCode, @Nonnull final String stdout) {
+    public ExecutionResults(@Nonnull final String stdin,
+                            final int exitCode,
+                            @Nonnull final String stdout,
+                            @Nonnull final String stderr,
+                            @Nonnull final Duration elapsed) {
         // convert windows line ending to Linux line endings
         this.stdin = WINDOWS_LINE_ENDINGS.matcher(stdin).replaceAll("\n");
         this.exitCode = exitCode;
         this.stdout = WINDOWS_LINE_ENDINGS.matcher(stdout).replaceAll("\n");
+        this.stderr = WINDOWS_LINE_ENDINGS.matcher(stderr).replaceAll("\n");
+        this.elapsed = elapsed;
+    }
+
+    /** For when STDERR was merged into STDOUT */
+    public ExecutionResults(
+            @Nonnull final String stdin, final int exitCode, @Nonnull final String stdout, @Nonnull final Duration elapsed) {
+        this(stdin, exitCode, stdout, "", elapsed);
+    }
+
+    /** For when STDERR was merged into STDOUT and the time doesn't matter */
+    public ExecutionResults(@Nonnull final String stdin, final int exitCode, @Nonnull final String stdout) {
+        this(stdin, exitCode, stdout, "", Duration.ZERO);
     }
 
     /**
@@ -0,0 +1,190 @@
+package com.bashpile.shell;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.bashpile.shell.ExecutionResults.SUCCESS;
+
+/**
+ * An external program like shfmt or shellcheck, run directly instead of through a login shell.
+ * <br>
+ * Programs are found once per process.  Text is piped in on STDIN, so no temp files are needed.  A file can be the STDIN
+ * instead, so a large script doesn't have to be read into memory.
+ */
+public class ExternalTool {
+
+    // statics
+
+    /** Program name to the tool, or empty if it isn't installed */
+    private static final Map<String, Optional<ExternalTool>> FOUND = new ConcurrentHashMap<>();
+
+    private static final Logger LOG = LogManager.getLogger(ExternalTool.class);
+
+    // class fields
+
+    @Nonnull
+    private final String name;
+
+    /** The command line up to the arguments */
+    @Nonnull
+    private final List<String> command;
+
+    // static initializers
+
+    /**
+     * Finds the program on the JVM's PATH, then with `command -v` in a login shell.  Only looks once per process,
+     * unless several threads look for it at once.
+     *
+     * @param name The program name, e.g. shfmt.
+     * @return The tool or empty if it isn't installed.
+     */
+    public static @Nonnull Optional<ExternalTool> find(@Nonnull final String name) {
+        final Optional<ExternalTool> found = FOUND.get(name);
+        if (found != null) {
+            return found;
+        }
+        // not in computeIfAbsent, holding the map's lock while the login shell runs would pin a virtual thread's
+        // carrier and the shell's output pumps may need that carrier
+        final Optional<ExternalTool> located = locate(name);
+        return Objects.requireNonNullElse(FOUND.putIfAbsent(name, located), located);
+    }
+
+    // constructors
+
+    private ExternalTool(@Nonnull final String name, @Nonnull final List<String> command) {
+        this.name = name;
+        this.command = command;
+    }
+
+    // instance methods
+
+    public @Nonnull String name() {
+        return name;
+    }
+
+    /** The path of the program */
+    /* package */ @Nonnull String executable() {
+        return command.get(command.size() - 1);
+    }
+
+    /**
+     * Pipes text through the program.
+     *
+     * @param stdin The text for the program's STDIN.
+     * @param args The program's arguments.
+     * @return The command line, the exit code and the STDOUT (merged with STDERR).
+     * @throws IOException if the program could not be started.
+     */
+    public @Nonnull ExecutionResults run(@Nonnull final String stdin, @Nonnull final String... args)
+            throws IOException {
+        final List<String> commandLine = commandLine(args);
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(commandLine).redirectErrorStream(true).start();
+
+        // write on another thread so a full STDOUT pipe can't block us
+        final Thread writer = Thread.ofVirtual().name(name + "-stdin").start(() -> {
+            try (final Writer processStdin = process.outputWriter(StandardCharsets.UTF_8)) {
+                processStdin.write(stdin);
+            } catch (final IOException e) {
+                // the program may exit without reading everything
+                LOG.trace("Could not write all of STDIN to {}", name, e);
+            }
+        });
+        return collect(process, commandLine, start, writer);
+    }
+
+    /**
+     * Runs the program with a file as its STDIN.  The program reads the file itself, we never hold it in memory.
+     *
+     * @param stdinFile The file for the program's STDIN.
+     * @param args The program's arguments.
+     * @return The command line, the exit code and the STDOUT (merged with STDERR).
+     * @throws IOException if the program could not be started.
+     */
+    public @Nonnull ExecutionResults run(@Nonnull final Path stdinFile, @Nonnull final String... args)
+            throws IOException {
+        final List<String> commandLine = commandLine(args);
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(commandLine)
+                .redirectInput(stdinFile.toFile())
+                .redirectErrorStream(true)
+                .start();
+        return collect(process, commandLine, start, null);
+    }
+
+    // helpers
+
+    private @Nonnull List<String> commandLine(@Nonnull final String... args) {
+        final List<String> commandLine = new ArrayList<>(command);
+        commandLine.addAll(List.of(args));
+        return commandLine;
+    }
+
+    /**
+     * Reads the STDOUT and waits for the program to exit.
+     *
+     * @param writer The thread writing the STDIN, if any.
+     */
+    private @Nonnull ExecutionResults collect(
+            @Nonnull final Process process, @Nonnull final List<String> commandLine, final long start,
+            @Nullable final Thread writer) throws IOException {
+        final String stdout;
+        try (final InputStream processStdout = process.getInputStream()) {
+            stdout = new String(processStdout.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        final int exitCode;
+        try {
+            exitCode = process.waitFor();
+            if (writer != null) {
+                writer.join();
+            }
+        } catch (final InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting on " + name, e);
+        }
+        final Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+        LOG.debug("{} took {} ms", name, elapsed.toMillis());
+        return new ExecutionResults(String.join(" ", commandLine), exitCode, stdout, elapsed);
+    }
+
+    private static @Nonnull Optional<ExternalTool> locate(@Nonnull final String name) {
+        if (!BashShell.isWindows()) {
+            final Optional<ExternalTool> onPath = CommandResolver.findOnPath(name)
+                    .map(path -> new ExternalTool(name, List.of(path.toString())));
+            if (onPath.isPresent()) {
+                return onPath;
+            }
+        }
+
+        // the login profile may add to the PATH (e.g. Homebrew)
+        try {
+            final ExecutionResults results = BashShell.runAndJoin("command -v " + name);
+            final List<String> lines = results.stdoutLines();
+            final String path = lines.get(lines.size() - 1).trim();
+            if (results.exitCode() != SUCCESS || !path.startsWith("/")) {
+                return Optional.empty();
+            }
+            final List<String> command = BashShell.isWindows() ? List.of("wsl", path) : List.of(path);
+            return Optional.of(new ExternalTool(name, command));
+        } catch (final IOException e) {
+            LOG.warn("Could not look for {}", name, e);
+            return Optional.empty();
+        }
+    }
+}
@@ -2,21 +2,23 @@ package com.bashpile.shell;
 
 import com.bashpile.exceptions.BashpileUncheckedException;
 import org.apache.commons.lang3.function.FailableConsumer;
-import org.apache.commons.lang3.stream.Streams;
 
 import javax.annotation.Nonnull;
-import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.time.Duration;
+import java.io.Reader;
 
 /**
- * Applies consumer to each inputStream line.  Exceptions are handled both in the stream and the consumer.
+ * Applies consumer to each chunk of text read from inputStream, at most {@link #CHUNK_CHARS} characters and not split
+ * on lines.  Exceptions are handled both in the stream and the consumer.
  * <br>
  * Adapted from <a href="https://www.baeldung.com/run-shell-command-in-java">a tutorial</a>.
  */
 /* package */ class FailableStreamConsumer implements Runnable {
 
+    /** The most characters read at once */
+    /* package */ static final int CHUNK_CHARS = 8192;
+
     private final InputStream inputStream;
 
     private final FailableConsumer<String, Exception> consumer;
@@ -29,11 +31,14 @@ import java.time.Duration;
 
     @Override
     public void run() {
-        final BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
+        final Reader reader = new InputStreamReader(inputStream);
+        final char[] buffer = new char[CHUNK_CHARS];
         try {
-            // give a little time for the inputStream to populate
-            Thread.sleep(Duration.ofMillis(10));
-            Streams.stream(bufferedReader.lines()).forEach(consumer);
+            int read;
+            // blocks until the first output is written
+            while ((read = reader.read(buffer)) != -1) {
+                consumer.accept(new String(buffer, 0, read));
+            }
         } catch (Exception e) {
             throw new BashpileUncheckedException(e);
         }
@@ -1,39 +1,51 @@
 package com.bashpile.shell;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
 import static com.bashpile.Strings.appendIfMissing;
 import static com.bashpile.exceptions.Exceptions.*;
 
 /**
  * Handles I/O and closing resources on a running child {@link Process}.<br>
- * Spawns an additional thread to consume (read) the child process's STDOUT.<br>
+ * Pumps the child process's STDOUT (and STDERR, unless it is merged into STDOUT) into {@link ShellOutput}s on virtual
+ * threads, so hundreds of running scripts don't need hundreds of platform threads.  The pipes are read with
+ * {@link ProcessPipeInputStream}, which doesn't block a carrier thread.<br>
+ * Terminates the whole process tree (e.g. the inner login shell and the script's commands) on a timeout.<br>
  * <br>
- * Create with {@link #of(Process)}.  Write to the process's STDIN with {@link #writeLn(String)} and get results with
- * {@link #join()}.
+ * Create with {@link #of(Process, ShellOutput, ShellOutput, Duration)}.  Write to the process's STDIN with
+ * {@link #writeLn(String)} and wait for the exit code with {@link #join()}.
  */
 /* package */ class IoManager implements Closeable {
 
+    /** How long a timed out process tree has between SIGTERM and SIGKILL */
+    public static final Duration TERMINATION_GRACE = Duration.ofSeconds(2);
+
+    /** Runs the stream pumps of every child process, a virtual thread each */
+    private static final ExecutorService PUMPS =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("bash-pump-", 0).factory());
+
     private final static Logger LOG = LogManager.getLogger(IoManager.class);
 
     /** The wrapped child process */
     @Nonnull
     private final Process childProcess;
 
-    /** This runs our child process's STDOUT stream reader */
-    @Nonnull
-    private final ExecutorService executorService;
-
     /**
      * This pipes output from the parent process to the input of the child process.
      *
@@ -42,39 +54,56 @@ import static com.bashpile.exceptions.Exceptions.*;
     @Nonnull
     private final BufferedWriter childStdInWriter;
 
-    /** We need this reference to the buffer to get the final stdout contents */
+    /** We just need this to wait for the STDOUT pump to finish */
     @Nonnull
-    private final ByteArrayOutputStream childStdOutBuffer;
+    private final Future<?> childStdOutPump;
 
-    /** This is a writer to the {@link #childStdOutBuffer} */
-    @Nonnull
-    private final PrintStream childStdOutWriter;
+    /** Null when STDERR is merged into STDOUT */
+    @Nullable
+    private final Future<?> childStdErrPump;
 
-    /** We just need this to close down the STDOUT stream reader */
-    @Nonnull
-    private final Future<?> childStdOutReaderFuture;
+    /** Set when the timeout terminated the process tree */
+    private volatile boolean timedOut = false;
 
-    public static @Nonnull IoManager of(@Nonnull final Process childProcess) {
-        final ByteArrayOutputStream childStdOutBuffer = new ByteArrayOutputStream();
+    /**
+     * Starts pumping the output of childProcess.
+     *
+     * @param childStdOut Receives the child's STDOUT as it is read.
+     * @param childStdErr Receives the child's STDERR as it is read, or null if the process merges STDERR into STDOUT.
+     * @param timeout When to terminate the process tree, or null to let it run.
+     */
+    public static @Nonnull IoManager of(@Nonnull final Process childProcess,
+                                        @Nonnull final ShellOutput childStdOut,
+                                        @Nullable final ShellOutput childStdErr,
+                                        @Nullable final Duration timeout) {
+        // childProcess.getInputStream() actually returns the STDOUT of the child process
+        final Future<?> childStdOutPump = pump(childProcess, childProcess.getInputStream(), childStdOut);
+        final Future<?> childStdErrPump =
+                childStdErr != null ? pump(childProcess, childProcess.getErrorStream(), childStdErr) : null;
         // childProcess.outputWriter() is confusing -- it returns a writer for the child process's STDIN
-        return new IoManager(childProcess, Executors.newSingleThreadExecutor(), childProcess.outputWriter(),
-                childStdOutBuffer, new PrintStream(childStdOutBuffer));
+        final IoManager ioManager =
+                new IoManager(childProcess, childProcess.outputWriter(), childStdOutPump, childStdErrPump);
+        if (timeout != null) {
+            // a shared timer instead of a waiting thread per process
+            var ignored = childProcess.onExit().orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS).exceptionally(e -> {
+                LOG.info("Process {} timed out after {}, terminating", childProcess.pid(), timeout);
+                ioManager.timedOut = true;
+                // don't hold up the timer's thread during the grace period
+                Thread.ofVirtual().name("bash-timeout").start(() -> ioManager.terminate(TERMINATION_GRACE));
+                return null;
+            });
+        }
+        return ioManager;
     }
 
     private IoManager(@Nonnull final Process childProcess,
-                      @Nonnull final ExecutorService executorService,
                       @Nonnull final BufferedWriter childStdInWriter,
-                      @Nonnull final ByteArrayOutputStream childStdOutBuffer,
-                      @Nonnull final PrintStream childStdOutWriter) {
+                      @Nonnull final Future<?> childStdOutPump,
+                      @Nullable final Future<?> childStdErrPump) {
         this.childProcess = childProcess;
-        this.executorService = executorService;
         this.childStdInWriter = childStdInWriter;
-        this.childStdOutBuffer = childStdOutBuffer;
-        this.childStdOutWriter = childStdOutWriter;
-        // childProcess.getInputStream() actually returns the STDOUT of the child process
-        final FailableStreamConsumer failableStreamConsumer =
-                new FailableStreamConsumer(childProcess.getInputStream(), childStdOutWriter::println);
-        this.childStdOutReaderFuture = executorService.submit(failableStreamConsumer);
+        this.childStdOutPump = childStdOutPump;
+        this.childStdErrPump = childStdErrPump;
     }
 
     public void writeLn(@Nonnull final String text) throws IOException {
@@ -82,42 +111,61 @@ import static com.bashpile.exceptions.Exceptions.*;
         childStdInWriter.write(paragraph);
     }
 
-    /** Sends the Termination Linux Signal (15) to our async process */
+    /** Sends the Termination Linux Signal (15) to our async process and all of its descendants */
     public void sigterm() {
         // destroy sends SIGTERM
-        childProcess.destroy();
+        processTree().forEach(ProcessHandle::destroy);
     }
 
-    /** Joins to both background threads (process and STDOUT stream reader) */
-    public @Nonnull Pair<Integer, String> join() {
-        flush();
+    /**
+     * Sends SIGTERM to the process and all of its descendants, then SIGKILL to those still running after grace.
+     * Blocks for up to grace.
+     */
+    public void terminate(@Nonnull final Duration grace) {
+        final List<ProcessHandle> processTree = processTree();
+        processTree.forEach(ProcessHandle::destroy);
+        final CompletableFuture<?> allExited = CompletableFuture.allOf(
+                processTree.stream().map(ProcessHandle::onExit).toArray(CompletableFuture[]::new));
+        try {
+            allExited.get(grace.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (final TimeoutException | ExecutionException e) {
+            LOG.info("Process tree of {} ignored SIGTERM, sending SIGKILL", childProcess.pid());
+            processTree.stream().filter(ProcessHandle::isAlive).forEach(ProcessHandle::destroyForcibly);
+        } catch (final InterruptedException e) {
+            processTree.stream().filter(ProcessHandle::isAlive).forEach(ProcessHandle::destroyForcibly);
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        // join to threads
-        final int exitCode = asUncheckedSupplier(childProcess::waitFor);
-        var ignored = asUncheckedIgnoreClosedStreams(() -> childStdOutReaderFuture.get(10, TimeUnit.SECONDS));
+    /**
+     * Waits for the process and for the pumps to pass on all of its output.
+     *
+     * @return The exit code, or {@link ExecutionResults#TIMED_OUT} when the timeout terminated the process.
+     */
+    public int join() {
+        flush();
 
-        return Pair.of(exitCode, childStdOutBuffer.toString());
+        // join to threads, onExit parks a virtual thread where waitFor would pin its carrier
+        final int exitCode = asUncheckedSupplier(() -> childProcess.onExit().get().exitValue());
+        var ignored = asUncheckedIgnoreClosedStreams(() -> childStdOutPump.get(10, TimeUnit.SECONDS));
+        if (childStdErrPump != null) {
+            ignored = asUncheckedIgnoreClosedStreams(() -> childStdErrPump.get(10, TimeUnit.SECONDS));
+        }
+        return timedOut ? ExecutionResults.TIMED_OUT : exitCode;
     }
 
-    private void flush() {
+    /** Sends what was written to the child's STDIN.  Problems show up as a failed script. */
+    public void flush() {
         try {
             childStdInWriter.flush();
         } catch (IOException e) {
             // ignore
         }
-
-        try {
-            childStdOutBuffer.flush();
-        } catch (IOException e) {
-            // ignore
-        }
-
-        childStdOutWriter.flush();
     }
 
     @Override
     public void close() {
-        // shut down the background threads
+        // wait for the pumps
         if (childProcess.isAlive()) {
             try {
                 var ignored = ignoreClosedStreams(this::join);
@@ -135,21 +183,23 @@ import static com.bashpile.exceptions.Exceptions.*;
         } finally {
             IOUtils.closeQuietly(childStdInWriter);
         }
+    }
 
-        // close everything else
-        try {
-            // so many resources to deal with
-            ignoreClosedStreams(() -> { childStdOutBuffer.flush(); return ""; });
-            ignoreClosedStreams(() -> { childStdOutWriter.flush(); return ""; });
+    // helpers
 
-            ignoreClosedStreams(() -> { executorService.close(); return ""; });
-            ignoreClosedStreams(() -> { childStdOutBuffer.close(); return ""; });
-            ignoreClosedStreams(() -> { childStdOutWriter.close(); return ""; });
-        } catch (Exception e) {
-            LOG.warn(e);
-        } finally {
-            IOUtils.closeQuietly(childStdOutBuffer, childStdOutWriter);
-            executorService.close();  // executorService didn't qualify for closeQuietly
-        }
+    /** The descendants then the process itself.  Found up front since orphans are adopted by init. */
+    private @Nonnull List<ProcessHandle> processTree() {
+        return Stream.concat(childProcess.descendants(), Stream.of(childProcess.toHandle())).toList();
+    }
+
+    /** Reads the child's stream into output on a pump thread */
+    private static @Nonnull Future<?> pump(
+            @Nonnull final Process childProcess, @Nonnull final InputStream stream, @Nonnull final ShellOutput output) {
+        final FailableStreamConsumer failableStreamConsumer = new FailableStreamConsumer(
+                output.tee(new ProcessPipeInputStream(childProcess, stream)), output::acceptText);
+        return PUMPS.submit(() -> {
+            failableStreamConsumer.run();
+            asUncheckedSupplier(() -> { output.finish(); return ""; });
+        });
     }
 }
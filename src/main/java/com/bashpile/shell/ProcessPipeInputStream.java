@@ -0,0 +1,86 @@
+package com.bashpile.shell;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a running child process's STDOUT or STDERR pipe without blocking in the read, so a virtual thread can pump it.
+ * <br>
+ * A blocking pipe read holds an OS thread even on a virtual thread: the JDK pins the carrier and adds another carrier
+ * to make up for it, up to 256.  So hundreds of running scripts would starve the virtual thread scheduler.  Instead we
+ * only read what is {@link InputStream#available() available} and park while the pipe is empty, which unmounts a
+ * virtual thread.  Once the process has exited the JDK has drained its pipe, so reads no longer block.
+ * <br>
+ * The exit unparks the reader, so the last read returns as soon as the process is gone.  Output while the process
+ * runs is still polled for: a line can wait up to {@link #MAX_WAIT} and an idle pump wakes about 100 times a second.
+ * That is the price of not holding an OS thread per pipe, there is no non-blocking pipe read to wait on instead.
+ */
+/* package */ class ProcessPipeInputStream extends FilterInputStream {
+
+    /** The first wait on an empty pipe, doubled up to {@link #MAX_WAIT} while the pipe stays empty */
+    private static final Duration MIN_WAIT = Duration.ofMillis(1);
+
+    /** Adds at most this much latency to a line of output */
+    private static final Duration MAX_WAIT = Duration.ofMillis(10);
+
+    @Nonnull
+    private final Process process;
+
+    /** The thread waiting in {@link #read(byte[], int, int)}, for the process exit to unpark */
+    @Nullable
+    private volatile Thread reader;
+
+    /**
+     * @param process The child process.
+     * @param pipe The process's STDOUT or STDERR.
+     */
+    public ProcessPipeInputStream(@Nonnull final Process process, @Nonnull final InputStream pipe) {
+        super(pipe);
+        this.process = process;
+        process.onExit().thenRun(() -> {
+            final Thread waiting = reader;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        });
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] single = new byte[1];
+        final int read = read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@Nonnull final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        Duration wait = MIN_WAIT;
+        // set before checking isAlive, so an exit after the check still unparks us
+        reader = Thread.currentThread();
+        try {
+            while (process.isAlive()) {
+                final int available = in.available();
+                if (available > 0) {
+                    return in.read(buffer, offset, Math.min(length, available));
+                }
+                LockSupport.parkNanos(this, wait.toNanos());
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted waiting on the output of process " + process.pid());
+                }
+                wait = wait.multipliedBy(2).compareTo(MAX_WAIT) < 0 ? wait.multipliedBy(2) : MAX_WAIT;
+            }
+        } finally {
+            reader = null;
+        }
+        return in.read(buffer, offset, length);
+    }
+}
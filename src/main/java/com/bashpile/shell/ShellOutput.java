@@ -0,0 +1,254 @@
+package com.bashpile.shell;
+
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.commons.lang3.function.FailableConsumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Where the output of a running script goes.
+ * <br>
+ * Output is read in chunks and split into lines here, so a huge line without a newline is never buffered whole: only
+ * the last {@link #MAX_LINE_CHARS} characters of a line are kept.  Lines are scrubbed of terminal noise as they arrive
+ * and given to the {@link #onLine line consumers}, the raw bytes are copied to the {@link #onChunk chunk stream} and
+ * only a bounded tail is kept for the {@link ExecutionResults}.
+ * Consumers run on the thread reading the child's STDOUT.  A slow consumer stops the reads, the pipe fills up and the
+ * child blocks on its next write, so output never piles up in memory.
+ */
+public class ShellOutput {
+
+    // statics
+
+    /** The tail kept by {@link #retainTail()}, far more than tests or command substitutions need */
+    public static final int DEFAULT_TAIL_CHARS = 16 * 1024 * 1024;
+
+    /** The most of one line that is kept, the start of a longer line is dropped */
+    public static final int MAX_LINE_CHARS = DEFAULT_TAIL_CHARS;
+
+    private static final Pattern BOGUS_SCREEN_LINE = Pattern.compile(
+            "your \\d+x\\d+ screen size is bogus. expect trouble\r?$");
+
+    /**
+     * @see <a href="https://unix.stackexchange.com/questions/564981/what-is-this-3jh2j">Stack Exchange</a>
+     */
+    private static final Pattern CLEAR_CONTROL_CODE = Pattern.compile(".\\[3J.\\[H.\\[2J\r?$");
+
+    // class fields
+
+    private final int maxTailChars;
+
+    @Nonnull
+    private final List<FailableConsumer<String, Exception>> lineConsumers = new ArrayList<>();
+
+    @Nullable
+    private OutputStream chunks;
+
+    /** The last lines, each ending with a newline */
+    @Nonnull
+    private final Deque<String> tail = new ArrayDeque<>();
+
+    private long tailChars = 0;
+
+    private long droppedChars = 0;
+
+    /** Text read after the last line break, in the pieces it was read in */
+    @Nonnull
+    private final Deque<String> partialLine = new ArrayDeque<>();
+
+    private long partialLineChars = 0;
+
+    /** The last character read was a carriage return, so a line feed next ends no line */
+    private boolean afterCarriageReturn = false;
+
+    /** Text before scrubbed noise, the noise took the newline so this continues on the next line */
+    @Nullable
+    private String unfinishedLine;
+
+    // static initializers
+
+    /** Keeps the last {@link #DEFAULT_TAIL_CHARS} characters */
+    public static @Nonnull ShellOutput retainTail() {
+        return retainTail(DEFAULT_TAIL_CHARS);
+    }
+
+    /** Keeps the last maxChars characters, or nothing for 0 */
+    public static @Nonnull ShellOutput retainTail(final int maxChars) {
+        return new ShellOutput(maxChars);
+    }
+
+    // constructors
+
+    private ShellOutput(final int maxTailChars) {
+        this.maxTailChars = maxTailChars;
+    }
+
+    // instance methods
+
+    /** Adds a consumer of each scrubbed line, without its newline */
+    public @Nonnull ShellOutput onLine(@Nonnull final FailableConsumer<String, Exception> lineConsumer) {
+        lineConsumers.add(lineConsumer);
+        return this;
+    }
+
+    /** Copies the raw output, before scrubbing, to chunkStream as it is read.  The stream is not closed. */
+    public @Nonnull ShellOutput onChunk(@Nonnull final OutputStream chunkStream) {
+        chunks = chunks == null ? chunkStream : new TeeOutputStream(chunks, chunkStream);
+        return this;
+    }
+
+    /** The kept lines, each ending with a newline */
+    public synchronized @Nonnull String tail() {
+        return String.join("", tail);
+    }
+
+    /** How many characters fell out of the tail */
+    public synchronized long droppedChars() {
+        return droppedChars;
+    }
+
+    /** Copies everything read from childStdout to the {@link #onChunk chunk stream} */
+    /* package */ @Nonnull InputStream tee(@Nonnull final InputStream childStdout) {
+        return chunks == null ? childStdout : new TeeInputStream(childStdout, chunks);
+    }
+
+    /**
+     * Splits a chunk of output into lines like {@link java.io.BufferedReader#readLine()} and accepts each one.  The
+     * text after the last line break continues in the next chunk.
+     */
+    /* package */ synchronized void acceptText(@Nonnull final String text) throws Exception {
+        int lineStart = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '\n' && afterCarriageReturn) {
+                // the rest of a \r\n
+                afterCarriageReturn = false;
+                lineStart = i + 1;
+                continue;
+            }
+            afterCarriageReturn = c == '\r';
+            if (c == '\n' || c == '\r') {
+                appendToPartialLine(text.substring(lineStart, i));
+                accept(takePartialLine());
+                lineStart = i + 1;
+            }
+        }
+        appendToPartialLine(text.substring(lineStart));
+    }
+
+    /** For output that isn't read through {@link #tee}, copies the text to the {@link #onChunk chunk stream} too */
+    /* package */ synchronized void acceptTextAndCopy(@Nonnull final String text) throws Exception {
+        if (chunks != null) {
+            chunks.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        acceptText(text);
+    }
+
+    /** Scrubs one line of output (without its newline) and passes it on */
+    /* package */ synchronized void accept(@Nonnull final String rawLine) throws Exception {
+        final String line = lineEnd(unfinishedLine != null ? unfinishedLine + rawLine : rawLine);
+        unfinishedLine = null;
+        for (final Pattern noise : List.of(BOGUS_SCREEN_LINE, CLEAR_CONTROL_CODE)) {
+            final Matcher matcher = noise.matcher(line);
+            if (matcher.find()) {
+                unfinishedLine = line.substring(0, matcher.start());
+                return;
+            }
+        }
+        emit(line);
+    }
+
+    /** Passes on any unfinished line at the end of the output */
+    /* package */ synchronized void finish() throws Exception {
+        if (partialLineChars > 0) {
+            accept(takePartialLine());
+        }
+        afterCarriageReturn = false;
+        if (unfinishedLine != null && !unfinishedLine.isEmpty()) {
+            emit(unfinishedLine);
+        }
+        unfinishedLine = null;
+        if (chunks != null) {
+            chunks.flush();
+        }
+    }
+
+    // helpers
+
+    /** Appends text, then drops the start of the line while it is over {@link #MAX_LINE_CHARS} */
+    private void appendToPartialLine(@Nonnull final String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        partialLine.addLast(text);
+        partialLineChars += text.length();
+        while (partialLineChars > MAX_LINE_CHARS) {
+            final String oldest = partialLine.removeFirst();
+            final long excess = partialLineChars - MAX_LINE_CHARS;
+            if (oldest.length() > excess) {
+                partialLine.addFirst(oldest.substring((int) excess));
+                partialLineChars -= excess;
+                droppedChars += excess;
+            } else {
+                partialLineChars -= oldest.length();
+                droppedChars += oldest.length();
+            }
+        }
+    }
+
+    private @Nonnull String takePartialLine() {
+        final String line = String.join("", partialLine);
+        partialLine.clear();
+        partialLineChars = 0;
+        return line;
+    }
+
+    /** The last {@link #MAX_LINE_CHARS} characters of line */
+    private @Nonnull String lineEnd(@Nonnull final String line) {
+        final int excess = line.length() - MAX_LINE_CHARS;
+        if (excess <= 0) {
+            return line;
+        }
+        droppedChars += excess;
+        return line.substring(excess);
+    }
+
+    private void emit(@Nonnull final String line) throws Exception {
+        for (final FailableConsumer<String, Exception> lineConsumer : lineConsumers) {
+            lineConsumer.accept(line);
+        }
+        if (maxTailChars > 0) {
+            retain(line + "\n");
+        } else {
+            droppedChars += line.length() + 1;
+        }
+    }
+
+    /** Keeps the line, drops the oldest lines (or the start of a huge line) while over {@link #maxTailChars} */
+    private void retain(@Nonnull final String line) {
+        tail.addLast(line);
+        tailChars += line.length();
+        while (tailChars > maxTailChars) {
+            final String oldest = tail.removeFirst();
+            final long excess = tailChars - maxTailChars;
+            if (tail.isEmpty()) {
+                tail.addFirst(oldest.substring((int) excess));
+                tailChars -= excess;
+                droppedChars += excess;
+            } else {
+                tailChars -= oldest.length();
+                droppedChars += oldest.length();
+            }
+        }
+    }
+}
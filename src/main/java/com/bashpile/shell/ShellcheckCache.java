@@ -0,0 +1,374 @@
+package com.bashpile.shell;
+
+import com.bashpile.CompileCache;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.bashpile.shell.ExecutionResults.SUCCESS;
+
+/**
+ * Remembers generated scripts that passed shellcheck so an identical script isn't checked again, in
+ * $XDG_CACHE_HOME/bashpile/shellcheck.
+ * <br>
+ * Entries are empty files named for a hash of the script, the shellcheck arguments and the shellcheck binary (its path,
+ * size and modified time stand in for the version without starting shellcheck).  The generated timestamp and the
+ * Bashpile line numbers in comments are left out of the hash since they can't change what shellcheck finds.
+ * <br>
+ * With {@link #perFunction()} each top level function is remembered on its own.  Only the changed functions and the
+ * top level code are checked, already verified functions are replaced by stubs.  Warnings that an edit causes in an
+ * unchanged function (e.g. it uses a global that is no longer assigned) are not found this way.
+ * Entries unused for {@link CompileCache#MAX_AGE} are evicted.
+ */
+public class ShellcheckCache {
+
+    // statics
+
+    private static final String ENTRY_EXTENSION = ".ok";
+
+    /** A top level function declaration, the body ends on a line with only a closing brace */
+    private static final Pattern FUNCTION_START = Pattern.compile("^([a-zA-Z_][a-zA-Z0-9_]*)\\(\\) \\{$");
+
+    private static final Pattern GENERATED_COMMENT = Pattern.compile("^# Generated from .*$", Pattern.MULTILINE);
+
+    private static final Pattern LINE_NUMBER_COMMENT =
+            Pattern.compile("^(\\s*# .*, Bashpile line )\\d+$", Pattern.MULTILINE);
+
+    private static final Logger LOG = LogManager.getLogger(ShellcheckCache.class);
+
+    // class fields
+
+    @Nonnull
+    private final Path directory;
+
+    private final boolean perFunction;
+
+    // static initializers
+
+    /** A whole script cache in the {@link CompileCache#defaultDirectory()} */
+    public static @Nonnull ShellcheckCache ofDefaultDirectory() {
+        return new ShellcheckCache(CompileCache.defaultDirectory().resolve("shellcheck"), false);
+    }
+
+    // constructors
+
+    public ShellcheckCache(@Nonnull final Path directory, final boolean perFunction) {
+        this.directory = directory;
+        this.perFunction = perFunction;
+    }
+
+    // instance methods
+
+    /** The same cache, verifying function by function */
+    public @Nonnull ShellcheckCache perFunction() {
+        return new ShellcheckCache(directory, true);
+    }
+
+    /**
+     * Runs shellcheck on the script unless it passed before.
+     *
+     * @param shellcheck The shellcheck program.
+     * @param script The generated Bash script.
+     * @param args The shellcheck arguments, the script is written to STDIN.
+     * @return The shellcheck results, a success with no output when it was skipped.
+     * @throws IOException if shellcheck could not be started.
+     */
+    public @Nonnull ExecutionResults check(
+            @Nonnull final ExternalTool shellcheck, @Nonnull final String script, @Nonnull final String... args)
+            throws IOException {
+        final String toolHash = toolHash(shellcheck, args);
+        final String scriptKey = key(toolHash, "script", script);
+        if (isVerified(scriptKey)) {
+            LOG.debug("Shellcheck cache hit for {}", scriptKey);
+            return new ExecutionResults(shellcheck.name() + " (cached)", SUCCESS, "");
+        }
+
+        List<Segment> segments = List.of();
+        if (perFunction) {
+            segments = segments(script);
+            final ExecutionResults results = checkChangedFunctions(shellcheck, toolHash, segments, args);
+            if (results.exitCode() == SUCCESS) {
+                markVerified(scriptKey);
+                evictQuietly();
+                return results;
+            }
+            // check everything for warnings with the script's own line numbers
+        }
+
+        LOG.debug("Shellcheck cache miss for {}", scriptKey);
+        final ExecutionResults results = shellcheck.run(script, args);
+        if (results.exitCode() == SUCCESS) {
+            markVerified(scriptKey);
+            if (perFunction) {
+                markVerified(topLevelKey(toolHash, segments));
+                segments.stream().filter(Segment::isFunction).forEach(segment -> markVerified(segment.key(toolHash)));
+            }
+        }
+        evictQuietly();
+        return results;
+    }
+
+    /**
+     * Runs shellcheck on the script file unless it passed before.  The file is hashed a line at a time and shellcheck
+     * reads it as its STDIN, so a large script is never held in memory.  Verifying function by function splits the
+     * script up, so then the file is read into memory.
+     *
+     * @param shellcheck The shellcheck program.
+     * @param scriptFile The generated Bash script.
+     * @param args The shellcheck arguments, the script is its STDIN.
+     * @return The shellcheck results, a success with no output when it was skipped.
+     * @throws IOException if the file could not be read or shellcheck could not be started.
+     * @see #check(ExternalTool, String, String...)
+     */
+    public @Nonnull ExecutionResults check(
+            @Nonnull final ExternalTool shellcheck, @Nonnull final Path scriptFile, @Nonnull final String... args)
+            throws IOException {
+        if (perFunction) {
+            return check(shellcheck, Files.readString(scriptFile), args);
+        }
+        final String scriptKey = key(toolHash(shellcheck, args), "script", scriptFile);
+        if (isVerified(scriptKey)) {
+            LOG.debug("Shellcheck cache hit for {}", scriptKey);
+            return new ExecutionResults(shellcheck.name() + " (cached)", SUCCESS, "");
+        }
+
+        LOG.debug("Shellcheck cache miss for {}", scriptKey);
+        final ExecutionResults results = shellcheck.run(scriptFile, args);
+        if (results.exitCode() == SUCCESS) {
+            markVerified(scriptKey);
+        }
+        evictQuietly();
+        return results;
+    }
+
+    /** A human-readable summary for `bpc --cache-stats` */
+    public @Nonnull String stats() throws IOException {
+        return """
+                Shellcheck cache: %s
+                Verified: %d
+                """.formatted(directory, entries().size());
+    }
+
+    /** Removes entries older than {@link CompileCache#MAX_AGE} */
+    public void evict() throws IOException {
+        final Instant expired = Instant.now().minus(CompileCache.MAX_AGE);
+        for (final Path entry : entries()) {
+            if (Files.getLastModifiedTime(entry).toInstant().isBefore(expired)) {
+                LOG.debug("Evicting shellcheck cache entry {}", entry);
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    // helpers
+
+    /** A function or the top level code between functions */
+    private record Segment(@Nullable String functionName, @Nonnull String text) {
+        private boolean isFunction() {
+            return functionName != null;
+        }
+
+        private @Nonnull String key(@Nonnull final String toolHash) {
+            return ShellcheckCache.key(toolHash, "function", text);
+        }
+    }
+
+    /**
+     * Checks the top level code with the changed functions and stubs of the verified ones.
+     * @return A success when everything is verified, or the shellcheck results of the reduced script.
+     */
+    private @Nonnull ExecutionResults checkChangedFunctions(
+            @Nonnull final ExternalTool shellcheck,
+            @Nonnull final String toolHash,
+            @Nonnull final List<Segment> segments,
+            @Nonnull final String... args) throws IOException {
+        final StringBuilder reduced = new StringBuilder();
+        final List<String> unverified = new ArrayList<>();
+        for (final Segment segment : segments) {
+            if (!segment.isFunction()) {
+                reduced.append(segment.text());
+                continue;
+            }
+            final String key = segment.key(toolHash);
+            if (isVerified(key)) {
+                reduced.append("%s() { :; }\n".formatted(segment.functionName()));
+            } else {
+                unverified.add(key);
+                reduced.append(segment.text());
+            }
+        }
+        final String topLevelKey = topLevelKey(toolHash, segments);
+        if (unverified.isEmpty() && isVerified(topLevelKey)) {
+            LOG.debug("Shellcheck cache hit for every function and the top level code");
+            return new ExecutionResults(shellcheck.name() + " (cached)", SUCCESS, "");
+        }
+
+        LOG.debug("Shellcheck cache miss for {} functions", unverified.size());
+        final ExecutionResults results = shellcheck.run(reduced.toString(), args);
+        if (results.exitCode() == SUCCESS) {
+            markVerified(topLevelKey);
+            unverified.forEach(this::markVerified);
+        }
+        return results;
+    }
+
+    /**
+     * Splits the script into top level functions and the code between them.
+     * A function without a lone closing brace (e.g. an anonymous block that is called on the same line) is top level.
+     */
+    private static @Nonnull List<Segment> segments(@Nonnull final String script) {
+        final List<Segment> segments = new ArrayList<>();
+        final StringBuilder topLevel = new StringBuilder();
+        final String[] lines = script.split("\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            final Matcher functionStart = FUNCTION_START.matcher(lines[i]);
+            int end = i + 1;
+            while (functionStart.matches() && end < lines.length && !lines[end].startsWith("}")) {
+                end++;
+            }
+            if (!functionStart.matches() || end == lines.length || !lines[end].equals("}")) {
+                topLevel.append(lines[i]).append(i < lines.length - 1 ? "\n" : "");
+                continue;
+            }
+            if (!topLevel.isEmpty()) {
+                segments.add(new Segment(null, topLevel.toString()));
+                topLevel.setLength(0);
+            }
+            final String function = String.join("\n", List.of(lines).subList(i, end + 1)) + "\n";
+            segments.add(new Segment(functionStart.group(1), function));
+            i = end;
+        }
+        if (!topLevel.isEmpty()) {
+            segments.add(new Segment(null, topLevel.toString()));
+        }
+        return segments;
+    }
+
+    /** All the code between the functions */
+    private static @Nonnull String topLevelKey(@Nonnull final String toolHash, @Nonnull final List<Segment> segments) {
+        final String topLevel = segments.stream()
+                .filter(segment -> !segment.isFunction())
+                .map(Segment::text)
+                .collect(Collectors.joining());
+        return key(toolHash, "top level", topLevel);
+    }
+
+    /** Hashes what shellcheck is and how it runs */
+    private static @Nonnull String toolHash(@Nonnull final ExternalTool shellcheck, @Nonnull final String... args) {
+        final String executable = shellcheck.executable();
+        final Hasher hasher = Hashing.sha256().newHasher()
+                .putString(executable, StandardCharsets.UTF_8).putByte((byte) 0);
+        try {
+            final Path path = Path.of(executable);
+            hasher.putLong(Files.size(path)).putLong(Files.getLastModifiedTime(path).toMillis());
+        } catch (final IOException | InvalidPathException e) {
+            // e.g. a path inside WSL, the path alone will have to do
+            LOG.trace("Could not read {}", executable, e);
+        }
+        for (final String arg : args) {
+            hasher.putString(arg, StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    private static @Nonnull String key(
+            @Nonnull final String toolHash, @Nonnull final String kind, @Nonnull final String text) {
+        return keyHasher(toolHash, kind).putString(normalize(text), StandardCharsets.UTF_8).hash().toString();
+    }
+
+    /** The same key as the file's text would have, read a line at a time */
+    private static @Nonnull String key(
+            @Nonnull final String toolHash, @Nonnull final String kind, @Nonnull final Path file) throws IOException {
+        final Hasher hasher = keyHasher(toolHash, kind);
+        try (final Reader reader = Files.newBufferedReader(file)) {
+            final StringBuilder line = new StringBuilder();
+            int next;
+            while ((next = reader.read()) != -1) {
+                if (next != '\n') {
+                    line.append((char) next);
+                    continue;
+                }
+                // the comments are matched within a line, so normalizing line by line is the same
+                hasher.putString(normalize(line.toString()), StandardCharsets.UTF_8).putByte((byte) '\n');
+                line.setLength(0);
+            }
+            hasher.putString(normalize(line.toString()), StandardCharsets.UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    private static @Nonnull Hasher keyHasher(@Nonnull final String toolHash, @Nonnull final String kind) {
+        return Hashing.sha256().newHasher()
+                .putString(toolHash, StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(kind, StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+
+    /** Leaves out the generated timestamp and the Bashpile line numbers */
+    private static @Nonnull String normalize(@Nonnull final String text) {
+        final String normalized = GENERATED_COMMENT.matcher(text).replaceAll("# Generated");
+        return LINE_NUMBER_COMMENT.matcher(normalized).replaceAll("$1");
+    }
+
+    /** If the key's entry exists, touches it for eviction */
+    private boolean isVerified(@Nonnull final String key) {
+        final Path entry = directory.resolve(key + ENTRY_EXTENSION);
+        try {
+            if (Files.isRegularFile(entry)) {
+                Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+                return true;
+            }
+        } catch (final IOException e) {
+            LOG.warn("Could not read shellcheck cache entry {}", entry, e);
+        }
+        return false;
+    }
+
+    /** Creates the key's entry.  Problems are logged and otherwise ignored. */
+    private void markVerified(@Nonnull final String key) {
+        final Path entry = directory.resolve(key + ENTRY_EXTENSION);
+        try {
+            Files.createDirectories(directory);
+            Files.createFile(entry);
+        } catch (final FileAlreadyExistsException e) {
+            LOG.trace("Another compile verified {}", key);
+        } catch (final IOException e) {
+            LOG.warn("Could not write shellcheck cache entry {}", entry, e);
+        }
+    }
+
+    private void evictQuietly() {
+        try {
+            evict();
+        } catch (final IOException e) {
+            LOG.warn("Could not evict shellcheck cache entries in {}", directory, e);
+        }
+    }
+
+    private @Nonnull List<Path> entries() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(ENTRY_EXTENSION)).toList();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import com.bashpile.BashpileParser.LiteralContext
 import com.bashpile.BashpileParser.UnaryPrimaryExpressionContext
 import com.bashpile.Strings
 import com.bashpile.engine.BashTranslationHelper.*
+import com.bashpile.engine.bast.BashNode
 import com.bashpile.engine.bast.Translation
 import com.bashpile.engine.bast.Translation.toStringTranslation
 import com.bashpile.engine.strongtypes.FunctionTypeInfo
@@ -61,10 +62,26 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
         typeStack: TypeStack
     ): Translation {
         LOG.trace("In functionDeclarationStatement")
+        if (!declareFunction(ctx, foundForwardDeclarations, typeStack)) {
+            return Translation.UNKNOWN_TRANSLATION
+        }
+        return functionDefinition(ctx, typeStack)
+    }
+
+    /**
+     * Registers the function's parameter types and return type.
+     *
+     * @return false if the function was already translated as part of a forward declaration.
+     */
+    fun declareFunction(
+        ctx: BashpileParser.FunctionDeclarationStatementContext,
+        foundForwardDeclarations: Set<String>,
+        typeStack: TypeStack
+    ): Boolean {
         // guard - avoid translating twice if was part of a forward declaration
         val functionName = ctx.Id().text
         if (foundForwardDeclarations.contains(functionName)) {
-            return Translation.UNKNOWN_TRANSLATION
+            return false
         }
 
         // guard - check for double declaration
@@ -86,6 +103,14 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
                     }.toList()
         val retType: Type = Type.valueOf(ctx.complexType())
         typeStack.putFunctionTypes(functionName, FunctionTypeInfo(typeList, retType))
+        return true
+    }
+
+    /** Translates a function declared with [declareFunction] */
+    fun functionDefinition(ctx: BashpileParser.FunctionDeclarationStatementContext, typeStack: TypeStack): Translation {
+        val functionName = ctx.Id().text
+        val parameters = ctx.paramaters().typedId()
+        val defaultedParameters = ctx.paramaters().defaultedTypedId()
 
         // Create final translation and variables
         return typeStack.pushFrame().use { _ ->
@@ -107,16 +132,16 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
                         // special handling for lists with 'read -a'
                         if (type.isList) {
                             return@mapIndexed "declare -x IFS=$' ';" +
-                                    " read -r -a $varName <<< \"$$i\"; declare -x IFS=$'\\n\\t';"
+                                    " read -r -a $varName <<<\"$$i\"; declare -x IFS=$'\\n\\t'"
                         }
 
                         // normal processing
                         // don't add 'i' for Bash integer, that munges an empty optional argument to 0 automatically
-                        "declare $varName=$$i; $varName=${'$'}{$varName:=${idDefaultPair.second}};"
-                    }.joinToString(" ", "set +u; ", "set -u;") // some args may be unset
-                BashTranslationEngine.TAB + paramDeclarations + "\n"
+                        "declare $varName=$$i; $varName=${'$'}{$varName:=${idDefaultPair.second}}"
+                    }.joinToString("; ", "set +u; ", "; set -u") // some args may be unset
+                paramDeclarations + "\n"
             } else {
-                BashTranslationEngine.TAB + "# no parameters to function" + "\n"
+                "# no parameters to function" + "\n"
             }
 
             // create statements for the body of the function
@@ -124,22 +149,17 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
                 ctx.functionBlock().statement(), ctx.functionBlock().returnPsudoStatement()
             )
                 .map { visitor.visit(it) }
-                .map { tr: Translation -> tr.lambdaBodyLines { BashTranslationEngine.TAB + it }
-                    .lambdaBody { it.replace("exit 1", "return 1") }
-                }.reduce { obj: Translation, other: Translation? -> obj.add(other!!) }
+                .reduce { obj: Translation, other: Translation? -> obj.add(other!!) }
                 .orElseThrow()
+            val blockBody = blockStatements.bastData().mapLeaves {
+                if (it is BashNode.Text) BashNode.Text.of(it.text.replace("exit 1", "return 1")) else it
+            }
 
-            // put it all together in one big translation
-            namedParams = Asserts.assertIsLine(namedParams).removeSuffix("\n")
-            val blockBody = Asserts.assertIsParagraph(blockStatements.body()).removeSuffix("\n")
-            // 2nd+ lines of blockbody will have a bad indent, but that's why we go over with shfmt
-            val functionText = """
-                $functionName () {
-                $namedParams
-                $blockBody
-                }
-                """.trimMargin() + "\n"
-            val functionDeclaration = toStringTranslation(functionText)
+            // put it all together in one big translation, indented when rendered
+            namedParams = Asserts.assertIsLine(namedParams)
+            val body = BashNode.Indented(BashNode.Text.of(namedParams).concat(blockBody))
+            val function = BashNode.FunctionDefinition(functionName, body)
+            val functionDeclaration = Translation(function.concat(BashNode.Text.of("\n")), Type.STR_TYPE, NORMAL)
             val comment = createCommentTranslation("function declaration", lineNumber(ctx))
             comment.add(functionDeclaration)
         }
@@ -159,7 +179,7 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
             .map(requireNonNull(visitor)::visit)
             .map{ tr: Translation -> tr.inlineAsNeeded() }
             .map { tr: Translation ->
-                if (tr.isBasicType && !tr.isListAccess && !tr.metadata().contains(CONDITIONAL)) {
+                if (tr.isBasicType && !tr.isListAccess && !tr.hasMetadata(CONDITIONAL)) {
                     tr.body("""
                         printf -- "${tr.unquoteBody().body()}\n"
                         
@@ -214,10 +234,10 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
         val returnLineLambda = { str: String ->
             if (functionTypes.returnsStr() || ctx.expression() is BashpileParser.NumberExpressionContext) {
                 "printf -- \"${Strings.unquote(str)}\"\n"
-            } else if (exprTranslation.type() == Type.INT_TYPE && exprTranslation.metadata().contains(CALCULATION)) {
+            } else if (exprTranslation.type() == Type.INT_TYPE && exprTranslation.hasMetadata(CALCULATION)) {
                 // Avoid interpreting $(( )) results as a command
                 "printf -- $str\n"
-            } else if (exprTranslation.isNumeric && exprTranslation.metadata().contains(NORMAL)) {
+            } else if (exprTranslation.isNumeric && exprTranslation.hasMetadata(NORMAL)) {
                 // plain number type such as int or float equaling 42
                 "printf -- $str\n"
             } else {
@@ -251,27 +271,29 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
         return if (Translation.areIntExpressions(first, second)) {
             // Integers, we can use the $(( )) syntax
             childTranslations = childTranslations.map {
-                val ret = it.lambdaBody { body -> body.removeSurrounding("$(( ", " ))") }
-                if (ret.metadata().contains(PARENTHESIZED)) {
+                val data = it.bastData()
+                val ret = if (data is BashNode.Arithmetic) {
+                    it.body(data.expression)
+                } else it.lambdaBody { body -> body.removeSurrounding("$((", "))") }
+                if (ret.hasMetadata(PARENTHESIZED)) {
                     ret.metadata(it.metadata() - PARENTHESIZED).parenthesizeBody()
                 } else ret
             }
-            val translationsString = childTranslations.joinToString(" ") { it.body() }
-            Translation(translationsString, Type.INT_TYPE, listOf(CALCULATION))
-                .body("$(( $translationsString ))")
+            val calculation = BashNode.Command(childTranslations.map { it.bastData() })
+            Translation(BashNode.Arithmetic(calculation), Type.INT_TYPE, setOf(CALCULATION))
         } else if (Translation.areNumericExpressions(first, second)) {
             // Numbers -- We need the Basic Calculator to process
             childTranslations = childTranslations.map {
-                if (it.metadata().contains(CALCULATION) && it.type() != Type.INT_TYPE) { unwrapCalculation(it) } else it
+                if (it.hasMetadata(CALCULATION) && it.type() != Type.INT_TYPE) { unwrapCalculation(it) } else it
             }.map {
-                if (it.metadata().contains(PARENTHESIZED)) {
+                if (it.hasMetadata(PARENTHESIZED)) {
                     it.metadata(it.metadata() - PARENTHESIZED).parenthesizeBody()
                 } else it
             }
             // first happy path executed, assume no nesting
             val translationsString = childTranslations.joinToString(" ") { it.body() }
-            Translation(translationsString, Type.NUMBER_TYPE, listOf(NEEDS_INLINING_OFTEN, CALCULATION))
-                .body("bc <<< \"$translationsString\"")
+            Translation(translationsString, Type.NUMBER_TYPE, setOf(NEEDS_INLINING_OFTEN, CALCULATION))
+                .body("bc <<<\"$translationsString\"")
         } else if (Translation.areStringExpressions(first, second)) {
             // Strings -- only addition supported
             val op = ctx.op.text
@@ -301,7 +323,7 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
             parens = true
             ret = ret.lambdaBody { body -> body.removeSurrounding("(", ")") }
         }
-        ret = ret.lambdaBody { body -> body.removeSurrounding("bc <<< \"","\"") }
+        ret = ret.lambdaBody { body -> body.removeSurrounding("bc <<<\"","\"") }
         if (parens) ret = ret.parenthesizeBody()
         return ret
     } // end of calculationExpression helpers
@@ -328,12 +350,13 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
         primary = unaryPrimaryTranslations.getOrDefault(primary, primary)
         val body = if (primary != "!") {
             // put into portable [ ] test expression
-            "[ $primary \"${valueBeingTested.unquoteBody().body()}\" ]"
+            BashNode.TestExpression(BashNode.Command.of(
+                BashNode.Text.of(primary), BashNode.Quoted(valueBeingTested.unquoteBody().bastData())))
         } else {
             // valueBeingTested will have [ ] if needed
-            "$primary ${valueBeingTested.unquoteBody().body()}"
+            BashNode.Command.of(BashNode.Text.of(primary), valueBeingTested.unquoteBody().bastData())
         }
-        return Translation(body, Type.STR_TYPE, listOf(CONDITIONAL))
+        return Translation(body, Type.STR_TYPE, setOf(CONDITIONAL))
     }
 
     fun combiningExpression(ctx: BashpileParser.CombiningExpressionContext): Translation {
@@ -346,7 +369,7 @@ class BashTranslationEngineDelegate(private val visitor: BashpileVisitor) {
         var translations = listOf(visitor.visit(ctx.getChild(0)), visitor.visit(ctx.getChild(2)))
         translations = translations.map {
             var ret = it.inlineAsNeeded()
-            if (ret.metadata().contains(PARENTHESIZED)) {
+            if (ret.hasMetadata(PARENTHESIZED)) {
                 // wrap in a block and add an end-of-statement
                 ret = ret.body("{ ${ret.body()}; }")
             }
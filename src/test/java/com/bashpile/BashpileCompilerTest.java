@@ -0,0 +1,122 @@
+package com.bashpile;
+
+import com.bashpile.exceptions.TypeError;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Order(95)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class BashpileCompilerTest {
+
+    /** The header has the time of the compile */
+    private static final Pattern GENERATED_COMMENT = Pattern.compile("^# Generated from .*$", Pattern.MULTILINE);
+
+    /** Uses a typecast setup statement, a function and an anonymous block so all the per-compile state is used */
+    private static final String SCRIPT = """
+            s: str = "%1$d.5"
+            function times%1$d(x: float) -> float:
+                return x * %1$d.5
+            block:
+                print(s: int)
+            block:
+                print(times%1$d(2))
+            """;
+
+    private final BashpileCompiler compiler = new BashpileCompiler();
+
+    @Test @Order(10)
+    void translateWorks() {
+        final String translation = compiler.translate("test", SCRIPT.formatted(3));
+        assertTrue(translation.contains("s=\"$(printf '%d' \"${s}\" 2>/dev/null || true)\""), translation);
+        assertTrue(translation.contains("s=\"3.5\""), translation);
+        assertTrue(translation.contains("anon1() {"), translation);
+    }
+
+    @Test @Order(20)
+    void concurrentCompilesMatchSequentialCompiles() throws Exception {
+        final int count = 300;
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            expected.add(withoutTimestamp(compiler.translate("script" + i, SCRIPT.formatted(i))));
+        }
+
+        final List<Future<String>> futures = new ArrayList<>();
+        try (final ExecutorService executor = Executors.newFixedThreadPool(16)) {
+            for (int i = count - 1; i >= 0; i--) {
+                final int index = i;
+                futures.add(0, executor.submit(
+                        () -> withoutTimestamp(compiler.translate("script" + index, SCRIPT.formatted(index)))));
+            }
+            for (int i = 0; i < count; i++) {
+                assertEquals(expected.get(i), futures.get(i).get(), "Script " + i + " was changed by another compile");
+            }
+        }
+    }
+
+    @Test @Order(30)
+    void failedCompileDoesNotAffectOthers() throws Exception {
+        final String expected = withoutTimestamp(compiler.translate("good", SCRIPT.formatted(1)));
+        try (final ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            final List<Future<String>> good = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                final Future<?> bad = executor.submit(() -> compiler.translate("bad", "print(false: int)"));
+                good.add(executor.submit(() -> withoutTimestamp(compiler.translate("good", SCRIPT.formatted(1)))));
+                final Exception e = assertThrows(Exception.class, bad::get);
+                assertInstanceOf(TypeError.class, e.getCause());
+            }
+            for (final Future<String> translation : good) {
+                assertEquals(expected, translation.get());
+            }
+        }
+    }
+
+    @Test @Order(40)
+    void translateWritesEachStatementWhenTranslated() throws IOException {
+        final StringWriter writer = new StringWriter();
+        compiler.translate("test", SCRIPT.formatted(2), writer);
+        assertEquals(withoutTimestamp(compiler.translate("test", SCRIPT.formatted(2))),
+                withoutTimestamp(writer.toString()));
+
+        // the first statement is written before the last fails
+        final StringWriter failedWriter = new StringWriter();
+        assertThrows(TypeError.class,
+                () -> compiler.translate("bad", SCRIPT.formatted(2) + "print(false: int)\n", failedWriter));
+        assertTrue(failedWriter.toString().contains("s=\"2.5\""), failedWriter.toString());
+    }
+
+    @Test @Order(50)
+    void defaultCompilerSavesNoFunctionTranslations() throws IOException {
+        final Path statements = CompileCache.defaultDirectory().resolve("statements");
+        final long before = countFiles(statements);
+        compiler.translate("test", SCRIPT.formatted(System.nanoTime() % 100_000));
+        assertEquals(before, countFiles(statements));
+    }
+
+    // helpers
+
+    private static long countFiles(final Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static String withoutTimestamp(final String translation) {
+        return GENERATED_COMMENT.matcher(translation).replaceAll("# Generated");
+    }
+}
@@ -2,6 +2,7 @@ package com.bashpile;
 
 import com.bashpile.maintests.BashpileTest;
 import com.bashpile.shell.ExecutionResults;
+import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.jupiter.api.*;
@@ -310,4 +311,37 @@ public class BashpileMainIntegrationTest extends BashpileTest {
         // set -e text
         assertFalse(results.stdout().contains("Error (exit code 1) found on line "));
     }
+
+    @Test
+    @Timeout(30)
+    @Order(110)
+    public void cdsArchiveIsUsedThroughSymlinks() throws IOException {
+        log.info("In CDS archive is used through symlinks");
+        Assumptions.assumeTrue(Files.exists(Path.of("target/bashpile.jsa")), "No class data sharing archive");
+
+        // linked like Homebrew's bin directory, the archive only works for the real path of the jar
+        final Path linkDirectory = Files.createTempDirectory("cdsLinks");
+        final Path classLoadLog = linkDirectory.resolve("classLoad.log");
+        try {
+            for (final String file : List.of("bpc", "bpr", "bashpile.jar", "bashpile.jsa")) {
+                Files.createSymbolicLink(linkDirectory.resolve(file), Path.of("target", file).toAbsolutePath());
+            }
+            for (final String launcher : List.of("bpc --outputFile " + linkDirectory.resolve("command"), "bpr")) {
+                Files.deleteIfExists(classLoadLog);
+                // no compile server, so bpr starts the jar
+                final String command = ("echo \"print('Hello CDS')\" | BASHPILE_SOCKET=/dev/null/none "
+                        + "JAVA_TOOL_OPTIONS='-Xlog:class+load=info:file=%s' %s/%s -c")
+                        .formatted(classLoadLog, linkDirectory, launcher);
+                final ExecutionResults results = runAndJoin(command);
+                log.debug("Output text:\n{}", results.stdout());
+
+                assertSuccessfulExitCode(results);
+                final String classLoads = Files.readString(classLoadLog);
+                assertTrue(classLoads.contains("com.bashpile.BashpileMain source: shared objects file"),
+                        launcher + " did not use the archive");
+            }
+        } finally {
+            FileUtils.deleteDirectory(linkDirectory.toFile());
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package com.bashpile;
+
+import com.bashpile.exceptions.BashpileUncheckedException;
+import com.bashpile.maintests.BashpileTest;
+import com.bashpile.shell.BashShell;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Order(4)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class BashpileServerTest extends BashpileTest {
+
+    private static Path tempDir;
+
+    private static Path socketPath;
+
+    private static Thread serverThread;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        tempDir = Files.createTempDirectory("bashpileServerTest");
+        socketPath = tempDir.resolve("compile.sock");
+        final BashpileServer server = BashpileServer.bind(
+                socketPath, new BashpileCompiler(), new CompileCache(tempDir.resolve("cache")));
+        serverThread = Thread.ofPlatform().daemon().start(() -> {
+            try (server) {
+                server.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @AfterAll
+    static void stopServer() throws IOException, InterruptedException {
+        request("stop\n");
+        serverThread.join(5000);
+        assertFalse(Files.exists(socketPath), "Socket file was not cleaned up");
+        Files.deleteIfExists(tempDir.resolve("script.bps"));
+        FileUtils.deleteDirectory(tempDir.toFile());
+    }
+
+    @Test @Order(10)
+    void pingWorks() throws IOException {
+        assertEquals(List.of("0", "pong"), request("ping\n"));
+    }
+
+    @Test @Order(20)
+    void compileFileWorks() throws IOException {
+        final Path outputFile = tempDir.resolve("script");
+        final String workingDirectory = Path.of("").toAbsolutePath().toString();
+        final List<String> reply = request("file\n%s\n%s\nsrc/test/resources/testrigData.bps\n%s\n"
+                .formatted(workingDirectory, System.getenv("PATH"), outputFile));
+        try {
+            assertEquals("0", reply.get(0), "Bad reply: " + reply);
+            assertEquals(outputFile.toString(), reply.get(reply.size() - 1));
+            assertTrue(Files.readString(outputFile).startsWith("#!/usr/bin/env bash"));
+            assertTrue(Files.isExecutable(outputFile));
+        } finally {
+            Files.deleteIfExists(outputFile);
+        }
+    }
+
+    @Test @Order(30)
+    void compileCommandWorks() throws IOException {
+        final Path inputFile = Files.writeString(tempDir.resolve("script.bps"), "print(\"hello\")");
+        final List<String> reply = request("command\n%s\n%s\nscript.bps\nscript\n".formatted(tempDir, System.getenv("PATH")));
+        final Path outputFile = tempDir.resolve("script");
+        try {
+            assertEquals("0", reply.get(0), "Bad reply: " + reply);
+            assertSuccessfulExitCode(BashShell.runAndJoin(outputFile.toString()));
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(outputFile);
+        }
+    }
+
+    @Test @Order(40)
+    void badCompileReportsFailure() throws IOException {
+        final List<String> reply = request(
+                "file\n%s\n%s\nnotARealFile.bps\nnotARealFile\n".formatted(tempDir, System.getenv("PATH")));
+        assertEquals("1", reply.get(0));
+        assertFalse(Files.exists(tempDir.resolve("notARealFile")));
+    }
+
+    @Test @Order(50)
+    void badRequestReportsFailure() throws IOException {
+        assertEquals("1", request("compile everything\n").get(0));
+    }
+
+    @Test @Order(60)
+    void stalledClientDoesNotBlockOthers() throws IOException {
+        try (final SocketChannel stalled = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            stalled.connect(UnixDomainSocketAddress.of(socketPath));
+            stalled.write(ByteBuffer.wrap("file\n".getBytes(StandardCharsets.UTF_8)));
+            final List<String> reply = assertTimeoutPreemptively(Duration.ofSeconds(5), () -> request("ping\n"));
+            assertEquals(List.of("0", "pong"), reply);
+        }
+    }
+
+    @Test @Order(70)
+    void commandsAreResolvedWithTheClientsPath() throws IOException {
+        final Path clientBin = Files.createDirectories(tempDir.resolve("clientBin"));
+        final Path tool = Files.writeString(clientBin.resolve("serverTestClientTool"), "#!/usr/bin/env bash\n");
+        assertTrue(tool.toFile().setExecutable(true));
+        final Path inputFile = Files.writeString(tempDir.resolve("tool.bps"), "serverTestClientTool\n");
+        final Path outputFile = tempDir.resolve("tool");
+        final String clientPath = clientBin + ":" + System.getenv("PATH");
+        try {
+            final List<String> reply = request(
+                    "command\n%s\n%s\ntool.bps\ntool\n".formatted(tempDir, clientPath));
+            assertEquals("0", reply.get(0), "Bad reply: " + reply);
+            // not on our PATH it would be a variable reference, ${serverTestClientTool}
+            assertTrue(Files.readString(outputFile).lines().anyMatch("serverTestClientTool"::equals));
+        } finally {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(outputFile);
+        }
+    }
+
+    @Test @Order(80)
+    void openSocketDirectoryIsRefused() throws IOException {
+        final Path openDirectory = Files.createDirectories(tempDir.resolve("open"));
+        Files.setPosixFilePermissions(openDirectory, PosixFilePermissions.fromString("rwxr-xr-x"));
+        assertThrows(BashpileUncheckedException.class,
+                () -> BashpileServer.bind(openDirectory.resolve("compile.sock"), new BashpileCompiler()));
+    }
+
+    // helpers
+
+    private static List<String> request(final String text) throws IOException {
+        try (final SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socketPath));
+            channel.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+            final String reply = new String(Channels.newInputStream(channel).readAllBytes(), StandardCharsets.UTF_8);
+            return reply.lines().toList();
+        }
+    }
+}
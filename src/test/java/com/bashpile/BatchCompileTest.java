@@ -0,0 +1,84 @@
+package com.bashpile;
+
+import com.bashpile.exceptions.BashpileUncheckedException;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Order(96)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class BatchCompileTest {
+
+    private static final BashpileCompiler COMPILER = new BashpileCompiler();
+
+    private Path tempDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("batchCompileTest");
+        Files.createDirectories(tempDir.resolve("sub"));
+        for (int i = 0; i < 6; i++) {
+            Files.writeString(tempDir.resolve("sub/script%d.bps".formatted(i)), "print(\"script %d\")\n".formatted(i));
+        }
+        Files.writeString(tempDir.resolve("top.bps"), "print(\"top\")\n");
+        Files.writeString(tempDir.resolve("notes.txt"), "not a script\n");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir.toFile());
+    }
+
+    @Test @Order(10)
+    void directoriesAndGlobsAreExpanded() throws IOException {
+        final BatchCompile batch = BatchCompile.of(
+                List.of(tempDir.toString(), tempDir + "/sub/script[0-2].bps"), COMPILER, null, 2);
+        // sorted and without duplicates
+        assertEquals(7, batch.inputs().size());
+        assertEquals(tempDir.resolve("sub/script0.bps"), batch.inputs().get(0));
+        assertEquals(tempDir.resolve("top.bps"), batch.inputs().get(6));
+
+        final BatchCompile glob = BatchCompile.of(List.of(tempDir + "/**.bps"), COMPILER, null, 2);
+        assertEquals(7, glob.inputs().size());
+
+        assertThrows(BashpileUncheckedException.class,
+                () -> BatchCompile.of(List.of(tempDir + "/missing*.bps"), COMPILER, null, 2));
+    }
+
+    @Test @Order(20)
+    void everyScriptIsCompiled() throws IOException {
+        final BatchCompile batch = BatchCompile.of(List.of(tempDir.toString()), COMPILER, null, 4);
+        final List<BatchCompile.Result> results = batch.compileAll();
+        assertEquals(batch.inputs(), results.stream().map(BatchCompile.Result::input).toList());
+        for (final BatchCompile.Result result : results) {
+            assertTrue(result.succeeded(), result.toString());
+            assertTrue(Files.isExecutable(BashpileMain.defaultOutputFile(result.input())), result.toString());
+        }
+        assertTrue(Files.readString(tempDir.resolve("sub/script3")).contains("script 3"));
+    }
+
+    @Test @Order(30)
+    void failuresAreReported() throws IOException {
+        Files.writeString(tempDir.resolve("sub/bad.bps"), "print(false: int)\n");
+        final BatchCompile batch = BatchCompile.of(List.of(tempDir.toString()), COMPILER, null, 4);
+        final List<BatchCompile.Result> results = batch.compileAll();
+
+        final BatchCompile.Result bad = results.get(0);
+        assertEquals(tempDir.resolve("sub/bad.bps"), bad.input());
+        assertFalse(bad.succeeded());
+        assertTrue(bad.toString().startsWith("FAILED"), bad.toString());
+        assertFalse(Files.exists(tempDir.resolve("sub/bad")));
+        assertEquals(7, results.stream().filter(BatchCompile.Result::succeeded).count());
+
+        final String report = batch.report(results, Duration.ofMillis(1234));
+        assertTrue(report.contains("Compiled 8 scripts: 7 succeeded, 1 failed"), report);
+        assertTrue(report.contains("Wall time: 1234 ms"), report);
+    }
+}
@@ -0,0 +1,120 @@
+package com.bashpile;
+
+import com.bashpile.exceptions.ThrowingSupplier;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Order(2)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class CompileCacheTest {
+
+    private Path cacheDirectory;
+
+    private CompileCache cache;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cacheDirectory = Files.createTempDirectory("compileCacheTest");
+        cache = new CompileCache(cacheDirectory);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        FileUtils.deleteDirectory(cacheDirectory.toFile());
+    }
+
+    @Test @Order(10)
+    void keyChangesWithSource() {
+        assertEquals(CompileCache.key("origin", "print()"), CompileCache.key("origin", "print()"));
+        assertNotEquals(CompileCache.key("origin", "print()"), CompileCache.key("origin", "print(1)"));
+        assertNotEquals(CompileCache.key("origin", "print()"), CompileCache.key("other", "print()"));
+    }
+
+    @Test @Order(20)
+    void secondCompileIsAHit() throws IOException {
+        final AtomicInteger compiles = new AtomicInteger();
+        final String key = CompileCache.key("origin", "print()");
+        final ThrowingSupplier<String, IOException> translator = () -> {
+            compiles.incrementAndGet();
+            return "translation";
+        };
+        assertEquals("translation", cache.computeIfAbsent(key, translator));
+        assertEquals("translation", cache.computeIfAbsent(key, translator));
+        assertEquals(1, compiles.get());
+        assertTrue(cache.stats().contains("Hits: 1, misses: 1"), cache.stats());
+    }
+
+    @Test @Order(30)
+    void failedCompileIsNotCached() {
+        final String key = CompileCache.key("origin", "bad");
+        assertThrows(IOException.class, () -> cache.computeIfAbsent(key, () -> {
+            throw new IOException("bad compile");
+        }));
+        assertTrue(cache.get(key).isEmpty());
+    }
+
+    @Test @Order(40)
+    void oldEntriesAreEvicted() throws IOException {
+        final String oldKey = CompileCache.key("origin", "old");
+        cache.put(oldKey, "old translation");
+        final Path oldEntry = cacheDirectory.resolve("scripts").resolve(oldKey + ".bash");
+        Files.setLastModifiedTime(oldEntry,
+                FileTime.from(Instant.now().minus(CompileCache.MAX_AGE).minusSeconds(60)));
+
+        cache.put(CompileCache.key("origin", "new"), "new translation");
+
+        assertFalse(Files.exists(oldEntry));
+        assertTrue(cache.get(CompileCache.key("origin", "new")).isPresent());
+    }
+
+    @Test @Order(50)
+    void statsAreWrittenInBatches() throws IOException {
+        cache.get(CompileCache.key("origin", "missing"));
+        assertFalse(Files.exists(cacheDirectory.resolve("stats.properties")));
+        assertTrue(cache.stats().contains("Hits: 0, misses: 1"), cache.stats());
+
+        cache.flushStats();
+        final String stats = new CompileCache(cacheDirectory).stats();
+        assertTrue(stats.contains("Hits: 0, misses: 1"), stats);
+    }
+
+    @Test @Order(60)
+    void recompiledClassChangesTheBuildHash() throws IOException {
+        final Path classes = Files.createDirectories(cacheDirectory.resolve("classes"));
+        final Path classFile = Files.writeString(classes.resolve("Main.class"), "first build");
+        final FileTime directoryModified = Files.getLastModifiedTime(classes);
+        final String firstBuild = CompileCache.buildHash(classes);
+
+        // an incremental compile rewrites the class but not the directory
+        Files.writeString(classFile, "second build");
+        Files.setLastModifiedTime(classes, directoryModified);
+        assertNotEquals(firstBuild, CompileCache.buildHash(classes));
+    }
+
+    @Test @Order(70)
+    void streamedEntriesMatchTranslations() throws IOException {
+        final String key = CompileCache.key("origin", "streamed");
+        final StringWriter miss = new StringWriter();
+        assertFalse(cache.writeTo(key, miss));
+        assertEquals("", miss.toString());
+
+        cache.put(key, new ByteArrayInputStream("streamed translation".getBytes(StandardCharsets.UTF_8)));
+        final StringWriter hit = new StringWriter();
+        assertTrue(cache.writeTo(key, hit));
+        assertEquals("streamed translation", hit.toString());
+        assertEquals(Optional.of("streamed translation"), cache.get(key));
+    }
+}
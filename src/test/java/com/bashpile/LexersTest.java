@@ -10,7 +10,9 @@ import org.junit.jupiter.api.TestMethodOrder;
 import java.io.IOException;
 import java.nio.file.Path;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @Order(3)
@@ -75,4 +77,29 @@ public class LexersTest extends BashpileTest {
     public void elseIfIsNotLinuxCommand() {
         assertFalse(Lexers.isLinuxCommand("else-if check:"), "'else-if check:' was a command");
     }
+
+    @Test @Order(110)
+    public void resolveLinuxCommandsWorks() {
+        Lexers.resolveLinuxCommands("""
+                x: int = 5
+                  ls -la
+                unknownCommandForLexersTest --flag
+                else-if check:
+                """);
+        assertTrue(Lexers.isLinuxCommand("ls -la"));
+        assertFalse(Lexers.isLinuxCommand("unknownCommandForLexersTest --flag"));
+        assertFalse(Lexers.isLinuxCommand("x: int = 5"));
+        assertFalse(Lexers.isLinuxCommand("else-if check:"));
+    }
+
+    @Test @Order(120)
+    public void bashpileVariablesAreNotResolved() {
+        assertNull(Lexers.toCommand("names0: list<str> = listOf(\"a\")"));
+        assertNull(Lexers.toCommand("names0 = listOf(\"b\")"));
+        assertNull(Lexers.toCommand("count += 1"));
+        assertNull(Lexers.toCommand("names0[0] = \"c\""));
+        assertEquals("ls", Lexers.toCommand("ls -la"));
+        assertEquals("ls", Lexers.toCommand("LC_ALL=C ls -la"));
+        assertEquals("test", Lexers.toCommand("test a == b"));
+    }
 }
@@ -0,0 +1,127 @@
+package com.bashpile;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Order(97)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class WatchCompileTest {
+
+    private Path tempDir;
+
+    private WatchCompile watchCompile;
+
+    private Thread watchThread;
+
+    private final BlockingQueue<BatchCompile.Result> results = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void setUp() throws IOException, InterruptedException {
+        tempDir = Files.createTempDirectory("watchCompileTest");
+        Files.writeString(tempDir.resolve("first.bps"), "print(\"first\")\n");
+        Files.writeString(tempDir.resolve("second.bps"), "print(\"second\")\n");
+        watchCompile = WatchCompile.of(List.of(tempDir.toString()), new BashpileCompiler(), null, 2);
+        watchThread = Thread.ofPlatform().daemon().start(() -> {
+            try {
+                watchCompile.watch(results::add);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        // everything is compiled up front
+        assertTrue(next().succeeded());
+        assertTrue(next().succeeded());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException, InterruptedException {
+        watchCompile.close();
+        watchThread.join(5000);
+        assertFalse(watchThread.isAlive(), "Watch did not stop on close");
+        FileUtils.deleteDirectory(tempDir.toFile());
+    }
+
+    @Test @Order(10)
+    void changedScriptIsRecompiled() throws IOException, InterruptedException {
+        Files.writeString(tempDir.resolve("second.bps"), "print(\"changed\")\n");
+        final BatchCompile.Result result = next();
+        assertEquals(tempDir.resolve("second.bps"), result.input());
+        assertTrue(Files.readString(tempDir.resolve("second")).contains("changed"));
+
+        // only the changed script
+        assertNull(results.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test @Order(20)
+    void unchangedSaveIsSkipped() throws IOException, InterruptedException {
+        Files.setLastModifiedTime(tempDir.resolve("first.bps"), FileTime.from(Instant.now()));
+        Files.writeString(tempDir.resolve("first.bps"), "print(\"first\")\n");
+        assertNull(results.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test @Order(30)
+    void newScriptsAreCompiled() throws IOException, InterruptedException {
+        Files.writeString(tempDir.resolve("third.bps"), "print(\"third\")\n");
+        assertEquals(tempDir.resolve("third.bps"), next().input());
+
+        final Path subdirectory = Files.createDirectory(tempDir.resolve("sub"));
+        // give the watch time to register the new directory
+        Thread.sleep(200);
+        Files.writeString(subdirectory.resolve("fourth.bps"), "print(\"fourth\")\n");
+        assertEquals(subdirectory.resolve("fourth.bps"), next().input());
+    }
+
+    @Test @Order(40)
+    void failedCompileKeepsWatching() throws IOException, InterruptedException {
+        Files.writeString(tempDir.resolve("first.bps"), "print(false: int)\n");
+        assertFalse(next().succeeded());
+        assertFalse(Files.exists(tempDir.resolve("first")));
+
+        Files.writeString(tempDir.resolve("first.bps"), "print(\"fixed\")\n");
+        assertTrue(next().succeeded());
+    }
+
+    @Test @Order(50)
+    void changedLibraryLeavesImportersUpToDate() throws IOException, InterruptedException {
+        Files.writeString(tempDir.resolve("library.bps"), "function greet():\n    print(\"hello\")\n");
+        assertTrue(next().succeeded());
+        final Path importer = tempDir.resolve("importer.bps");
+        Files.writeString(importer, "import \"library\"\nprint(\"imported\")\n");
+        assertTrue(next().succeeded());
+        final String importerTranslation = Files.readString(tempDir.resolve("importer"));
+
+        Files.writeString(tempDir.resolve("library.bps"), "function greet():\n    print(\"goodbye\")\n");
+        assertEquals(tempDir.resolve("library.bps"), next().input());
+        assertNull(results.poll(500, TimeUnit.MILLISECONDS));
+
+        // the import is sourced at runtime, the importer translates the same as before and as a fresh compile
+        assertEquals(importerTranslation, Files.readString(tempDir.resolve("importer")));
+        assertTrue(withoutTimestamp(importerTranslation).endsWith(
+                withoutTimestamp(BashpileMainHelper.transpileNioFile(importer))));
+    }
+
+    // helpers
+
+    private BatchCompile.Result next() throws InterruptedException {
+        final BatchCompile.Result result = results.poll(10, TimeUnit.SECONDS);
+        assertNotNull(result, "Timed out waiting for a compile");
+        return result;
+    }
+
+    /** Drops the "Generated from ... on ..." header line, which has the compile time */
+    private static String withoutTimestamp(final String translation) {
+        return translation.replaceAll("(?m)^# Generated from .*$", "");
+    }
+}
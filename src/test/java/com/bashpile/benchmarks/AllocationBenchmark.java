@@ -0,0 +1,126 @@
+package com.bashpile.benchmarks;
+
+import com.bashpile.BashpileCompiler;
+import com.bashpile.engine.bast.Translation;
+import com.bashpile.engine.strongtypes.TranslationMetadata;
+import com.bashpile.shell.ShellcheckCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.stream.IntStream;
+
+import static com.bashpile.engine.bast.Translation.toStringTranslation;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures the bytes allocated by a full translation (lex, parse, translate and render) of a script with functions,
+ * conditionals, arithmetic and lists.  Most of the allocations are ANTLR's, the part that is the compiler's own shows
+ * in the difference between versions, and on its own in folding translations with metadata.
+ * <br>
+ * Run with `mvn test -Pbenchmarks`.
+ */
+@Order(230)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class AllocationBenchmark {
+
+    /** How many copies of the sample code are in the script */
+    private static final int COPIES = 500;
+
+    /** Statements in the fold-only benchmark */
+    private static final int STATEMENTS = 100_000;
+
+    private static final int WARMUP_ITERATIONS = 3;
+
+    private static final int MEASURED_ITERATIONS = 5;
+
+    private static final Logger LOG = LogManager.getLogger(AllocationBenchmark.class);
+
+    /** Without the statement cache, every statement is translated */
+    private final BashpileCompiler compiler = new BashpileCompiler(ShellcheckCache.ofDefaultDirectory(), null);
+
+    @Test @Order(10)
+    void fullTranslation() {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeAllocationsMeasured(threads);
+        final String script = script();
+        final long lines = script.lines().count();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            compiler.translate("warmup", script);
+        }
+
+        final long threadId = Thread.currentThread().threadId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        int length = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            length = compiler.translate("benchmark", script).length();
+        }
+        final double bytes = (double) (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_ITERATIONS;
+        LOG.info("Translating {} lines into {} characters allocated {} MB, {} KB per line", lines, length,
+                "%.1f".formatted(bytes / 1024 / 1024), "%.1f".formatted(bytes / 1024 / lines));
+        assertTrue(length > 0);
+    }
+
+    @Test @Order(20)
+    void foldingStatements() {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeAllocationsMeasured(threads);
+        final Translation[] statements = IntStream.range(0, STATEMENTS)
+                .mapToObj(i -> toStringTranslation("printf -- \"line %d\\n\"\n".formatted(i))
+                        .metadata(TranslationMetadata.NORMAL))
+                .toArray(Translation[]::new);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            fold(statements);
+        }
+
+        final long threadId = Thread.currentThread().threadId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        Translation program = null;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            program = fold(statements);
+        }
+        final double bytes = (double) (threads.getThreadAllocatedBytes(threadId) - before) / MEASURED_ITERATIONS;
+        LOG.info("Folding {} statements allocated {} MB, {} bytes per statement", STATEMENTS,
+                "%.1f".formatted(bytes / 1024 / 1024), "%.0f".formatted(bytes / STATEMENTS));
+        assertFalse(program.metadata().isEmpty());
+    }
+
+    // helpers
+
+    /** Like BashpileVisitor.visitBodyStatements */
+    private static Translation fold(final Translation[] statements) {
+        Translation ret = statements[0];
+        for (int i = 1; i < statements.length; i++) {
+            ret = ret.add(statements[i]);
+        }
+        return ret;
+    }
+
+    private static void assumeAllocationsMeasured(final com.sun.management.ThreadMXBean threads) {
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported(), "Allocations can't be measured");
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /** Copies of the sample code with their own names, without a different first word on each line */
+    private static String script() {
+        final StringBuilder script = new StringBuilder();
+        for (int i = 0; i < COPIES; i++) {
+            script.append("""
+                    function twice%1$d(x: int) -> int:
+                        y: int = x + %1$d
+                        if y > 3:
+                            print("big")
+                        else:
+                            print("small")
+                        return y * 2
+                    names%1$d: list<str> = listOf("a", "b")
+                    count%1$d: int = twice%1$d(%1$d) + 1
+                    print(count%1$d)
+                    """.formatted(i));
+        }
+        return script.toString();
+    }
+}
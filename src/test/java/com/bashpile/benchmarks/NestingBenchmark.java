@@ -0,0 +1,106 @@
+package com.bashpile.benchmarks;
+
+import com.bashpile.BashpileCompiler;
+import com.bashpile.engine.bast.BashNode;
+import com.bashpile.engine.bast.BashNode.Indented;
+import com.bashpile.engine.bast.BashNode.Text;
+import com.bashpile.shell.ShellcheckCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Shows that deeply nested scripts are indented in one pass.  Each block used to re-indent its whole rendered body, so
+ * a statement at depth d was split, copied and joined d times.
+ * <br>
+ * Run with `mvn test -Pbenchmarks`.
+ */
+@Order(220)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class NestingBenchmark {
+
+    private static final List<Integer> DEPTHS = List.of(25, 50, 100);
+
+    /** Blocks in the render-only benchmark, the output grows with the square of the depth */
+    private static final List<Integer> NODE_DEPTHS = List.of(1_000, 2_000, 4_000);
+
+    /** The ratio of the time per line of the deepest and the shallowest script that still counts as linear */
+    private static final double MAX_SLOWDOWN = 3;
+
+    private static final Logger LOG = LogManager.getLogger(NestingBenchmark.class);
+
+    /** Without the statement cache, every statement is translated */
+    private final BashpileCompiler compiler = new BashpileCompiler(ShellcheckCache.ofDefaultDirectory(), null);
+
+    @Test @Order(10)
+    void renderingNestedBlocksIsLinear() {
+        // warm up
+        render(NODE_DEPTHS.get(0));
+        final double[] nanosPerBlock = NODE_DEPTHS.stream().mapToDouble(depth -> {
+            final long start = System.nanoTime();
+            final int length = render(depth);
+            final double ret = (double) (System.nanoTime() - start) / depth;
+            LOG.info("Rendering {} nested blocks into {} characters: {} ns per block", depth, length,
+                    "%.0f".formatted(ret));
+            return ret;
+        }).toArray();
+        // the output itself is quadratic, each line is indented by its depth, so compare per character
+        final double[] nanosPerCharacter = new double[nanosPerBlock.length];
+        for (int i = 0; i < nanosPerBlock.length; i++) {
+            nanosPerCharacter[i] = nanosPerBlock[i] / NODE_DEPTHS.get(i);
+        }
+        assertLinear(nanosPerCharacter);
+    }
+
+    @Test @Order(20)
+    void translatingNestedScriptsIsLinear() {
+        // warm up
+        compiler.translate("warmup", script(DEPTHS.get(0)));
+        final double[] nanosPerLine = DEPTHS.stream().mapToDouble(depth -> {
+            final String script = script(depth);
+            final long lines = script.lines().count();
+            final long start = System.nanoTime();
+            final String translation = compiler.translate("benchmark", script);
+            final double ret = (double) (System.nanoTime() - start) / lines;
+            LOG.info("Translating {} nested blocks ({} lines) into {} characters: {} us per line", depth, lines,
+                    translation.length(), "%.1f".formatted(ret / 1000));
+            assertTrue(translation.contains("  ".repeat(depth) + "printf -- \"depth %d\\n\"".formatted(depth)),
+                    "Deepest print not indented");
+            return ret;
+        }).toArray();
+        assertLinear(nanosPerLine);
+    }
+
+    // helpers
+
+    /** A block per level with a line in each, returns the length of the rendered text */
+    private static int render(final int depth) {
+        BashNode node = Text.of("echo %d\n".formatted(depth));
+        for (int i = depth - 1; i >= 0; i--) {
+            node = Text.of("{\n").concat(new Indented(Text.of("echo %d\n".formatted(i)).concat(node)))
+                    .concat(Text.of("}\n"));
+        }
+        return BashNode.render(node).length();
+    }
+
+    /** Nested ifs with a print at each level, without a different first word on each line */
+    private static String script(final int depth) {
+        final StringBuilder script = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            final String indent = "    ".repeat(i);
+            script.append(indent).append("print(\"depth %d\")\n".formatted(i));
+            script.append(indent).append("if true:\n");
+        }
+        script.append("    ".repeat(depth)).append("print(\"depth %d\")\n".formatted(depth));
+        return script.toString();
+    }
+
+    private static void assertLinear(final double[] nanosPerUnit) {
+        final double slowdown = nanosPerUnit[nanosPerUnit.length - 1] / nanosPerUnit[0];
+        assertTrue(slowdown < MAX_SLOWDOWN, "Time per unit grew %.1f times".formatted(slowdown));
+    }
+}
@@ -0,0 +1,129 @@
+package com.bashpile.benchmarks;
+
+import com.bashpile.BashpileCompiler;
+import com.bashpile.BashpileLexer;
+import com.bashpile.BashpileParser;
+import com.bashpile.Lexers;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the default full LL parse with {@link BashpileCompiler#parse(CommonTokenStream)} (SLL then LL) over the
+ * Bashpile scripts in this repository, one at a time and all together repeated into one large script.
+ * <br>
+ * Run with `mvn test -Pbenchmarks`.
+ */
+@Order(200)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class ParserBenchmark {
+
+    /** The scripts of bin/ and the test resources, large enough to make the expression rule matter */
+    private static final List<Path> CORPUS_DIRECTORIES = List.of(Path.of("bin"), Path.of("src/test/resources"));
+
+    /** How many copies of the corpus are in the large script */
+    private static final int LARGE_SCRIPT_COPIES = 100;
+
+    private static final int WARMUP_ITERATIONS = 10;
+
+    private static final int MEASURED_ITERATIONS = 20;
+
+    private static final Logger LOG = LogManager.getLogger(ParserBenchmark.class);
+
+    private static List<String> corpus;
+
+    @BeforeAll
+    static void readCorpus() throws IOException {
+        corpus = new ArrayList<>();
+        for (final Path directory : CORPUS_DIRECTORIES) {
+            try (final Stream<Path> files = Files.walk(directory)) {
+                for (final Path script : files.filter(path -> path.toString().endsWith(".bps")).sorted().toList()) {
+                    // a shebang is removed before lexing
+                    corpus.add(Files.readString(script).replaceFirst("^#!.*\n", "") + "\n");
+                }
+            }
+        }
+        assertFalse(corpus.isEmpty(), "No scripts found, run from the project directory");
+    }
+
+    @Test @Order(10)
+    void twoStageParsingMakesTheSameTrees() {
+        for (final String script : corpus) {
+            final CommonTokenStream tokens = lex(script);
+            final BashpileParser parser = new BashpileParser(tokens);
+            final String expected = fullLl(tokens).toStringTree(parser);
+            tokens.seek(0);
+            assertEquals(expected, BashpileCompiler.parse(tokens).toStringTree(parser));
+        }
+    }
+
+    @Test @Order(20)
+    void smallScripts() {
+        final List<CommonTokenStream> scripts = corpus.stream().map(ParserBenchmark::lex).toList();
+        compare("%d scripts".formatted(scripts.size()), scripts);
+    }
+
+    @Test @Order(30)
+    void largeScript() {
+        final String large = String.join("", corpus).repeat(LARGE_SCRIPT_COPIES);
+        compare("%d lines".formatted(large.lines().count()), List.of(lex(large)));
+    }
+
+    // helpers
+
+    private static void compare(final String name, final List<CommonTokenStream> scripts) {
+        final double fullLlMillis = time(scripts, ParserBenchmark::fullLl);
+        final double twoStageMillis = time(scripts, BashpileCompiler::parse);
+        LOG.info("Parsing {}: full LL {} ms, SLL then LL {} ms ({}x)", name, "%.2f".formatted(fullLlMillis),
+                "%.2f".formatted(twoStageMillis), "%.2f".formatted(fullLlMillis / twoStageMillis));
+    }
+
+    /** The parse before two-stage parsing */
+    private static ParseTree fullLl(final CommonTokenStream tokens) {
+        return new BashpileParser(tokens).program();
+    }
+
+    /** Average milliseconds to parse all the scripts */
+    private static double time(
+            final List<CommonTokenStream> scripts, final Function<CommonTokenStream, ParseTree> parse) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            parseAll(scripts, parse);
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            parseAll(scripts, parse);
+        }
+        return (System.nanoTime() - start) / 1_000_000.0 / MEASURED_ITERATIONS;
+    }
+
+    /** A new parser doesn't rewind the tokens */
+    private static void parseAll(
+            final List<CommonTokenStream> scripts, final Function<CommonTokenStream, ParseTree> parse) {
+        for (final CommonTokenStream tokens : scripts) {
+            tokens.seek(0);
+            parse.apply(tokens);
+        }
+    }
+
+    /** Lexes the whole script up front so only parsing is timed */
+    private static CommonTokenStream lex(final String script) {
+        final BashpileLexer lexer = new BashpileLexer(CharStreams.fromString(script));
+        lexer.setLinuxCommands(Lexers.resolveLinuxCommands(script));
+        final CommonTokenStream tokens = new CommonTokenStream(lexer);
+        tokens.fill();
+        return tokens;
+    }
+}
@@ -0,0 +1,93 @@
+package com.bashpile.benchmarks;
+
+import com.bashpile.BashpileCompiler;
+import com.bashpile.engine.bast.Translation;
+import com.bashpile.shell.ShellcheckCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.*;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.bashpile.engine.bast.Translation.toStringTranslation;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Shows that translating scales linearly with the length of the script, e.g. 100k lines take about 10 times as long
+ * as 10k lines.  Folding statements with {@link Translation#add} copied the program so far for every statement.
+ * <br>
+ * Run with `mvn test -Pbenchmarks`.
+ */
+@Order(210)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class TranslationBenchmark {
+
+    private static final List<Integer> LINE_COUNTS = List.of(10_000, 50_000, 100_000);
+
+    /** The ratio of the time per line of the largest and the smallest script that still counts as linear */
+    private static final double MAX_SLOWDOWN = 3;
+
+    private static final Logger LOG = LogManager.getLogger(TranslationBenchmark.class);
+
+    /** Without the statement cache, every statement is translated */
+    private final BashpileCompiler compiler = new BashpileCompiler(ShellcheckCache.ofDefaultDirectory(), null);
+
+    @Test @Order(10)
+    void foldingStatementsIsLinear() {
+        // warm up
+        fold(LINE_COUNTS.get(0));
+        final double[] nanosPerLine = LINE_COUNTS.stream().mapToDouble(lines -> {
+            final long start = System.nanoTime();
+            final int length = fold(lines);
+            final double ret = (double) (System.nanoTime() - start) / lines;
+            LOG.info("Folding {} statements into {} characters: {} ns per statement", lines, length,
+                    "%.0f".formatted(ret));
+            return ret;
+        }).toArray();
+        assertLinear(nanosPerLine);
+    }
+
+    @Test @Order(20)
+    void translatingScriptsIsLinear() {
+        // warm up
+        compiler.translate("warmup", script(LINE_COUNTS.get(0)));
+        final double[] nanosPerLine = LINE_COUNTS.stream().mapToDouble(lines -> {
+            final String script = script(lines);
+            final long start = System.nanoTime();
+            final String translation = compiler.translate("benchmark", script);
+            final double ret = (double) (System.nanoTime() - start) / lines;
+            LOG.info("Translating {} lines into {} characters: {} us per line", lines, translation.length(),
+                    "%.1f".formatted(ret / 1000));
+            return ret;
+        }).toArray();
+        assertLinear(nanosPerLine);
+    }
+
+    // helpers
+
+    /** Like BashpileVisitor.visitProgram, returns the length of the body */
+    private static int fold(final int statements) {
+        return IntStream.range(0, statements)
+                .mapToObj(i -> toStringTranslation("# print statement, Bashpile line %d\nprintf -- \"line %d\\n\"\n"
+                        .formatted(i + 1, i)))
+                .reduce(Translation::add)
+                .orElseThrow()
+                .body()
+                .length();
+    }
+
+    /** Print statements, without a different first word on each line so Linux commands aren't looked up */
+    private static String script(final int lines) {
+        final StringBuilder script = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            script.append("print(\"line %d\")\n".formatted(i));
+        }
+        return script.toString();
+    }
+
+    private static void assertLinear(final double[] nanosPerLine) {
+        final double slowdown = nanosPerLine[nanosPerLine.length - 1] / nanosPerLine[0];
+        assertTrue(slowdown < MAX_SLOWDOWN, "Time per line grew %.1f times".formatted(slowdown));
+    }
+}
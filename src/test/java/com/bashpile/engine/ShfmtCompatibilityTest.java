@@ -0,0 +1,187 @@
+package com.bashpile.engine;
+
+import com.bashpile.BashpileCompiler;
+import com.bashpile.BashpileMainHelper;
+import com.bashpile.shell.ExecutionResults;
+import com.bashpile.shell.ExternalTool;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The engine formats like `shfmt -i 2 -ci -bn`, so running shfmt over a translation shouldn't change it.
+ * Shell strings are written as the user wrote them, so the scripts only use simple ones.  bpc still runs shfmt on each
+ * written script (unless --no-shfmt) until these tests pass.
+ * <br>
+ * The tests that need shfmt are skipped without it, except in CI (the CI environment variable is set), which must
+ * install it.
+ */
+@Order(90)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class ShfmtCompatibilityTest {
+
+    /** Every .bps script under these is translated and compared too */
+    private static final List<Path> CORPUS_DIRECTORIES = List.of(Path.of("bin"), Path.of("src/test/resources"));
+
+    private static final List<String> SCRIPTS = List.of("""
+            function greet(name: str, times: int) -> str:
+                if times == 1:
+                    print("one")
+                else-if times == 2:
+                    print("two")
+                else:
+                    switch name:
+                        case "a" or "b":
+                            print("ab")
+                        case "*":
+                            print("other")
+                return "done " + name
+            x: str = greet("a", 3)
+            print(x)
+            """, """
+            i: int = 0
+            while i < 3:
+                if i == 1:
+                    print("in while")
+                i = i + 1
+            j: float = (1.5 + 2) * 3
+            print(j)
+            """, """
+            function sum(nums: list<int>) -> int:
+                total: int = 0
+                return total
+            l: list<int> = listOf(1, 2, 3)
+            print(l)
+            exportedVar: exported str = "x"
+            block:
+                inner: str = "inner"
+                print(inner)
+            """, """
+            y: str = #(echo "hi" | cat)
+            if isset y and y == "hi":
+                print(y)
+            print(not isset y)
+            """);
+
+    @Test @Order(10)
+    void nestedBlocksAreIndentedByTwo() throws IOException {
+        final String translation = BashpileMainHelper.transpileScript(SCRIPTS.get(0));
+        final String function = translation.substring(translation.indexOf("greet() {"), translation.indexOf("}\n") + 2);
+        assertEquals("""
+                greet() {
+                  set +u; declare name=$1; name=${name:=null}; declare times=$2; times=${times:=null}; set -u
+                  if [ "$(bc <<<"${times} == 1")" -eq 1 ]; then
+                    # print statement, Bashpile line 3
+                    printf -- "one\\n"
+                  elif [ "$(bc <<<"${times} == 2")" -eq 1 ]; then
+                    # print statement, Bashpile line 5
+                    printf -- "two\\n"
+                  else
+                    # switch statement, Bashpile line 7
+                    case ${name} in
+                      a | b)
+                        # print statement, Bashpile line 9
+                        printf -- "ab\\n"
+                        ;;
+                      *)
+                        # print statement, Bashpile line 11
+                        printf -- "other\\n"
+                        ;;
+                    esac
+                  fi
+                  # return statement, Bashpile line 12
+                  printf -- "done ${name}"
+                }
+                """, function);
+    }
+
+    @Test @Order(20)
+    void scriptsMatchShfmt() throws IOException {
+        final ExternalTool shfmt = findShfmt();
+        for (final String script : SCRIPTS) {
+            assertUnchangedByShfmt(shfmt, BashpileMainHelper.transpileScript(script));
+        }
+    }
+
+    @Test @Order(30)
+    void shippedScriptsMatchShfmt() throws IOException {
+        final ExternalTool shfmt = findShfmt();
+        final List<Path> corpus = corpus();
+        assertFalse(corpus.isEmpty());
+        for (final Path script : corpus) {
+            assertUnchangedByShfmt(shfmt, BashpileMainHelper.transpileNioFile(script));
+        }
+    }
+
+    @Test @Order(40)
+    void formatWithShfmtCanBeTurnedOff() throws IOException {
+        final Path script = Files.createTempFile("unformatted", ".bash");
+        try {
+            final String unformatted = "if true;then echo   hi;fi\n";
+            Files.writeString(script, unformatted);
+            new BashpileCompiler().withShfmt(false).formatWithShfmt(script);
+            assertEquals(unformatted, Files.readString(script));
+        } finally {
+            Files.deleteIfExists(script);
+        }
+    }
+
+    @Test @Order(50)
+    void formatWithShfmtNormalizesShellStrings() throws IOException {
+        findShfmt();
+        final Path script = Files.createTempFile("unformatted", ".bash");
+        try {
+            Files.writeString(script, BashpileMainHelper.transpileScript("""
+                    y: str = #(echo   "hi"|cat)
+                    print(y)
+                    """));
+            // on by default
+            new BashpileCompiler().formatWithShfmt(script);
+            final String formatted = Files.readString(script);
+            assertFalse(formatted.contains("echo   \"hi\"|cat"), formatted);
+            assertTrue(formatted.contains("echo \"hi\" | cat"), formatted);
+        } finally {
+            Files.deleteIfExists(script);
+        }
+    }
+
+    // helpers
+
+    /** The .bps scripts under {@link #CORPUS_DIRECTORIES} */
+    private static List<Path> corpus() throws IOException {
+        final List<Path> corpus = new ArrayList<>();
+        for (final Path directory : CORPUS_DIRECTORIES) {
+            try (final Stream<Path> files = Files.walk(directory)) {
+                corpus.addAll(files.filter(path -> path.toString().endsWith(".bps")).sorted().toList());
+            }
+        }
+        return corpus;
+    }
+
+    /** Skips the test if shfmt isn't installed, but fails it in CI so the comparison can't silently never run */
+    private static ExternalTool findShfmt() {
+        final Optional<ExternalTool> shfmt = ExternalTool.find("shfmt");
+        if (System.getenv("CI") != null) {
+            assertTrue(shfmt.isPresent(), "shfmt must be installed in CI");
+        }
+        Assumptions.assumeTrue(shfmt.isPresent(), "shfmt is not installed");
+        return shfmt.get();
+    }
+
+    private static void assertUnchangedByShfmt(final ExternalTool shfmt, final String translation)
+            throws IOException {
+        final ExecutionResults results = shfmt.run(translation, "-i", "2", "-ci", "-bn");
+        assertEquals(0, results.exitCode(), results.stdout());
+        assertEquals(results.stdout(), translation);
+    }
+}
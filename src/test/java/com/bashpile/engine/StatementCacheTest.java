@@ -0,0 +1,136 @@
+package com.bashpile.engine;
+
+import com.bashpile.BashpileCompiler;
+import com.bashpile.shell.ShellcheckCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Order(98)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class StatementCacheTest {
+
+    /** The header has the time of the compile */
+    private static final Pattern GENERATED_COMMENT = Pattern.compile("^# Generated from .*$", Pattern.MULTILINE);
+
+    /** The second function uses the first and has an anonymous block */
+    private static final String SCRIPT = """
+            function half(x: float) -> float:
+                return x / %s
+            function quarter(x: float) -> float:
+                block:
+                    print("quartering")
+                return half(half(x))
+            print(quarter(8))
+            """;
+
+    private Path tempDir;
+
+    private BashpileCompiler uncached;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        tempDir = Files.createTempDirectory("statementCacheTest");
+        uncached = new BashpileCompiler(ShellcheckCache.ofDefaultDirectory(), null);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        FileUtils.deleteDirectory(tempDir.toFile());
+    }
+
+    @Test @Order(10)
+    void editingOneFunctionOnlyTranslatesThatFunction() throws IOException {
+        final BashpileCompiler compiler = compiler();
+        assertTranslatesLikeUncached(compiler, SCRIPT.formatted("2"));
+        assertEquals(2, entries());
+
+        // the same script is served from the cache
+        assertTranslatesLikeUncached(compiler, SCRIPT.formatted("2"));
+        assertEquals(2, entries());
+
+        // only half's body changed
+        assertTranslatesLikeUncached(compiler, SCRIPT.formatted("2.0"));
+        assertEquals(3, entries());
+    }
+
+    @Test @Order(20)
+    void changedSignatureTranslatesDependents() throws IOException {
+        final BashpileCompiler compiler = compiler();
+        assertTranslatesLikeUncached(compiler, SCRIPT.formatted("2"));
+        assertEquals(2, entries());
+
+        // quarter calls half, so it is translated again
+        assertTranslatesLikeUncached(compiler, SCRIPT.formatted("2").replace("half(x: float)", "half(x: float = 1)"));
+        assertEquals(4, entries());
+    }
+
+    @Test @Order(30)
+    void movedFunctionsAreServedFromTheCache() throws IOException {
+        final BashpileCompiler compiler = compiler();
+        assertTranslatesLikeUncached(compiler, SCRIPT.formatted("2"));
+
+        // new line numbers for both functions
+        assertTranslatesLikeUncached(compiler, "print(\"start\")\n\n" + SCRIPT.formatted("2"));
+        assertEquals(2, entries());
+
+        // the anonymous block in quarter would be renamed, so quarter is translated again and replaces its entry
+        assertTranslatesLikeUncached(compiler, "block:\n    print(\"start\")\n" + SCRIPT.formatted("2"));
+        assertEquals(2, entries());
+        try (final Stream<Path> files = Files.list(tempDir)) {
+            assertTrue(files.map(StatementCacheTest::readString).anyMatch(entry -> entry.contains("anon1() {")));
+        }
+    }
+
+    @Test @Order(40)
+    void singleShotRunsReadTheCacheDirectory() throws IOException {
+        assertTranslatesLikeUncached(compiler(), SCRIPT.formatted("2"));
+        assertEquals(2, entries());
+
+        // mark the entries to see that a new compiler, with nothing in memory, reads them
+        try (final Stream<Path> files = Files.list(tempDir)) {
+            for (final Path entry : files.toList()) {
+                Files.writeString(entry, readString(entry) + "# from the cache directory\n");
+            }
+        }
+        final String translation = compiler().translate("test", SCRIPT.formatted("2"));
+        assertEquals(2, Pattern.compile("^# from the cache directory$", Pattern.MULTILINE)
+                .matcher(translation).results().count(), translation);
+    }
+
+    // helpers
+
+    private BashpileCompiler compiler() {
+        return new BashpileCompiler(ShellcheckCache.ofDefaultDirectory(), new StatementCache(tempDir));
+    }
+
+    private void assertTranslatesLikeUncached(final BashpileCompiler compiler, final String script) {
+        assertEquals(withoutTimestamp(uncached.translate("test", script)),
+                withoutTimestamp(compiler.translate("test", script)));
+    }
+
+    private long entries() throws IOException {
+        try (final Stream<Path> files = Files.list(tempDir)) {
+            return files.filter(path -> path.toString().endsWith(".bash")).count();
+        }
+    }
+
+    private static String readString(final Path path) {
+        try {
+            return Files.readString(path);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String withoutTimestamp(final String translation) {
+        return GENERATED_COMMENT.matcher(translation).replaceAll("# Generated");
+    }
+}
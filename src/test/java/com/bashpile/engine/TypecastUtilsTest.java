@@ -17,6 +17,8 @@ class TypecastUtilsTest {
 
     private final TypeError error = new TypeError("", 0);
 
+    private final BashTranslationEngine engine = new BashTranslationEngine("TypecastUtilsTest");
+
     @Test
     @Order(10)
     public void boolToStrTypecastWorks() {
@@ -45,7 +47,7 @@ class TypecastUtilsTest {
     @Order(40)
     public void floatToIntTypecastWorks() {
         Translation floatTr = new Translation("1.0", FLOAT_TYPE, List.of());
-        Translation converted = TypecastUtils.typecastFromFloat(floatTr, INT_TYPE, 1, error);
+        Translation converted = TypecastUtils.typecastFromFloat(engine, floatTr, INT_TYPE, 1, error);
         assertEquals(INT_TYPE, converted.type());
     }
 
@@ -53,7 +55,7 @@ class TypecastUtilsTest {
     @Order(50)
     public void floatToStrTypecastWorks() {
         Translation floatTr = new Translation("1.0", FLOAT_TYPE, List.of());
-        Translation converted = TypecastUtils.typecastFromFloat(floatTr, STR_TYPE, 1, error);
+        Translation converted = TypecastUtils.typecastFromFloat(engine, floatTr, STR_TYPE, 1, error);
         assertEquals(STR_TYPE, converted.type());
     }
 
@@ -61,7 +63,7 @@ class TypecastUtilsTest {
     @Order(60)
     public void strToBoolTypecastWorks() {
         Translation str = new Translation("TRUE", STR_TYPE, List.of());
-        Translation converted = TypecastUtils.typecastFromStr(str, BOOL_TYPE, 0, error);
+        Translation converted = TypecastUtils.typecastFromStr(engine, str, BOOL_TYPE, 0, error);
         assertEquals(BOOL_TYPE, converted.type());
     }
 
@@ -69,7 +71,7 @@ class TypecastUtilsTest {
     @Order(70)
     public void strToIntTypecastWorks() {
         Translation str = new Translation("1", STR_TYPE, List.of());
-        Translation converted = TypecastUtils.typecastFromStr(str, INT_TYPE, 0, error);
+        Translation converted = TypecastUtils.typecastFromStr(engine, str, INT_TYPE, 0, error);
         assertEquals(INT_TYPE, converted.type());
     }
 
@@ -77,7 +79,7 @@ class TypecastUtilsTest {
     @Order(71)
     public void strWithFloatToIntTypecastWorks() {
         Translation str = new Translation("1.5", STR_TYPE, List.of());
-        Translation converted = TypecastUtils.typecastFromStr(str, INT_TYPE, 0, error);
+        Translation converted = TypecastUtils.typecastFromStr(engine, str, INT_TYPE, 0, error);
         assertEquals(INT_TYPE, converted.type());
         assertEquals("1", converted.body());
     }
@@ -86,7 +88,7 @@ class TypecastUtilsTest {
     @Order(80)
     public void strToFloatTypecastWorks() {
         Translation str = new Translation("1.0", STR_TYPE, List.of());
-        Translation converted = TypecastUtils.typecastFromStr(str, FLOAT_TYPE, 0, error);
+        Translation converted = TypecastUtils.typecastFromStr(engine, str, FLOAT_TYPE, 0, error);
         assertEquals(FLOAT_TYPE, converted.type());
     }
 
@@ -94,7 +96,7 @@ class TypecastUtilsTest {
     @Order(90)
     public void unknownToBoolTypecastWorks() {
         Translation unknown = new Translation("1.0", UNKNOWN_TYPE, List.of());
-        Translation converted = TypecastUtils.typecastFromUnknown(unknown, BOOL_TYPE, 1, error);
+        Translation converted = TypecastUtils.typecastFromUnknown(engine, unknown, BOOL_TYPE, 1, error);
         assertEquals(BOOL_TYPE, converted.type());
     }
 
@@ -102,7 +104,7 @@ class TypecastUtilsTest {
     @Order(90)
     public void unknownToIntTypecastWorks() {
         Translation unknown = new Translation("1", UNKNOWN_TYPE, List.of());
-        Translation converted = TypecastUtils.typecastFromUnknown(unknown, INT_TYPE, 1, error);
+        Translation converted = TypecastUtils.typecastFromUnknown(engine, unknown, INT_TYPE, 1, error);
         assertEquals(INT_TYPE, converted.type());
     }
 
@@ -110,7 +112,7 @@ class TypecastUtilsTest {
     @Order(90)
     public void unknownToFloatTypecastWorks() {
         Translation unknown = new Translation("1.0", UNKNOWN_TYPE, List.of());
-        Translation converted = TypecastUtils.typecastFromUnknown(unknown, FLOAT_TYPE, 1, error);
+        Translation converted = TypecastUtils.typecastFromUnknown(engine, unknown, FLOAT_TYPE, 1, error);
         assertEquals(FLOAT_TYPE, converted.type());
     }
 
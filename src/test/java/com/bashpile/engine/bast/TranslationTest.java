@@ -1,8 +1,15 @@
 package com.bashpile.engine.bast;
 
+import com.bashpile.engine.bast.BashNode.*;
 import com.bashpile.engine.strongtypes.TranslationMetadata;
+import com.bashpile.engine.strongtypes.Type;
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Optional;
+import java.util.Set;
+
 import static com.bashpile.engine.bast.Translation.toStringTranslation;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -21,6 +28,60 @@ class TranslationTest {
         final Translation option1 = toStringTranslation("-r").metadata(TranslationMetadata.OPTION);
         final Translation option2 = toStringTranslation("-x").metadata(TranslationMetadata.OPTION);
         assertEquals("-rx", option1.add(option2).toString());
-        assertEquals("-rxx", option1.add(option2).getData());
+        // adding doesn't change the translations
+        assertEquals("-rx", option1.add(option2).getData());
+        assertEquals("-rxa", option1.add(option2).add(toStringTranslation("a").metadata(TranslationMetadata.OPTION))
+                .getData());
+    }
+
+    @Test
+    void addManyWorks() {
+        Translation program = Translation.EMPTY_TRANSLATION;
+        for (int i = 0; i < 100_000; i++) {
+            program = program.add(toStringTranslation("%d\n".formatted(i)));
+        }
+        final String body = program.body();
+        assertTrue(body.startsWith("0\n1\n"));
+        assertTrue(body.endsWith("99999\n"));
+        // metadata is a set
+        assertEquals(Set.of(TranslationMetadata.NORMAL), program.metadata());
+        assertTrue(program.hasMetadata(TranslationMetadata.NORMAL));
+    }
+
+    @Test
+    void nodeRewritesWork() {
+        final Type listType = new Type(Type.TypeNames.LIST, Optional.of(Type.STR_TYPE));
+        final Translation list = new Translation(new Variable("names", "*"), listType, TranslationMetadata.NORMAL);
+        assertEquals("\"${names[*]}\"", list.quoteBody().body());
+        assertEquals(list.bastData(), list.quoteBody().unquoteBody().bastData());
+        assertEquals("${names[@]}", list.toTrueArray().body());
+        assertEquals("${names[*]}", list.toTrueArray().toStringArray().body());
+        assertEquals("names[*]", list.removeVariableBrackets().body());
+    }
+
+    @Test
+    void inlineAsNeededDropsRedirect() {
+        final Translation call = new Translation(Command.of(Text.of("(f)"), Text.of(">/dev/null")),
+                Type.STR_TYPE, TranslationMetadata.NEEDS_INLINING_OFTEN);
+        assertEquals("$( (f))", call.inlineAsNeeded().body());
+    }
+
+    @Test
+    void renderWorks() throws IOException {
+        final BashNode function = new FunctionDefinition("f", Text.of("    echo\n"));
+        final Translation translation = new Translation(
+                function.concat(Text.of("\n")), Type.STR_TYPE, TranslationMetadata.NORMAL);
+        final StringWriter writer = new StringWriter();
+        translation.render(writer);
+        assertEquals("f() {\n    echo\n}\n", writer.toString());
+        assertEquals(writer.toString(), translation.body());
+    }
+
+    @Test
+    void indentBodyWorks() {
+        final Translation inner = toStringTranslation("b\n\n  \nc\n").indentBody();
+        final Translation outer = toStringTranslation("a\n").add(inner).indentBody();
+        assertEquals("  a\n    b\n    c\n", outer.body());
+        assertEquals("x   y\n", toStringTranslation("x ").add(toStringTranslation("y\n").indentBody()).body());
     }
-}
\ No newline at end of file
+}
@@ -2,15 +2,31 @@ package com.bashpile.shell;
 
 import com.bashpile.exceptions.BashpileUncheckedException;
 import com.bashpile.maintests.BashpileTest;
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.MethodOrderer;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import static com.bashpile.shell.BashShell.runAndJoin;
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 @Order(5)
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
@@ -62,4 +78,160 @@ class BashShellTest extends BashpileTest {
         final ExecutionResults executionResults = runAndJoin("shellcheck --help");
         assertSuccessfulExitCode(executionResults);
     }
+
+    @Test @Order(70)
+    void stderrIsSeparate() throws IOException {
+        final ExecutionResults executionResults = runAndJoin("echo out; echo err >&2; echo more out", null,
+                ShellOutput.retainTail(), ShellOutput.retainTail());
+        assertSuccessfulExitCode(executionResults);
+        assertEquals("out\nmore out\n", executionResults.stdout());
+        assertEquals("err\n", executionResults.stderr());
+    }
+
+    @Test @Order(80)
+    void stderrIsMergedByDefault() throws IOException {
+        final ExecutionResults executionResults = runAndJoin("echo err >&2");
+        assertEquals("err\n", executionResults.stdout());
+        assertEquals("", executionResults.stderr());
+    }
+
+    @Test @Order(90)
+    void manyConcurrentScriptsWork() throws Exception {
+        final List<Future<ExecutionResults>> futures = new ArrayList<>();
+        try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 100; i++) {
+                final String script = "echo " + i;
+                futures.add(executor.submit(() -> runAndJoin(script)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(i + "\n", futures.get(i).get().stdout());
+            }
+        }
+    }
+
+    @Test @Order(95)
+    void manyConcurrentScriptsWithArgsWork() throws Exception {
+        final List<Future<ExecutionResults>> futures = new ArrayList<>();
+        try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < 200; i++) {
+                final String[] args = {Integer.toString(i), Integer.toString(i % 7)};
+                futures.add(executor.submit(() -> runAndJoin("echo \"script $1\"; exit $2", args)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                final ExecutionResults executionResults = futures.get(i).get();
+                assertEquals("script " + i + "\n", executionResults.stdout());
+                assertEquals(i % 7, executionResults.exitCode());
+            }
+        }
+    }
+
+    @Test @Order(97)
+    void manyConcurrentScriptsKeepPlatformThreadsBounded() throws Exception {
+        final int scripts = 100;
+        final Path directory = Files.createTempDirectory("bashShellTest");
+        final int before = platformThreads();
+        final List<Future<ExecutionResults>> futures = new ArrayList<>();
+        int during;
+        try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < scripts; i++) {
+                // every script is running and waiting on its output pump at once
+                final String script = "cd '%s'; touch started.%d; until [ -e go ]; do sleep 0.1; done; echo %d"
+                        .formatted(directory, i, i);
+                futures.add(executor.submit(() -> runAndJoin(script)));
+            }
+            final Instant deadline = Instant.now().plusSeconds(120);
+            while (countFiles(directory) < scripts && Instant.now().isBefore(deadline)) {
+                Thread.sleep(100);
+            }
+            during = platformThreads();
+            Files.createFile(directory.resolve("go"));
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(i + "\n", futures.get(i).get().stdout());
+            }
+        } finally {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        // a platform thread per pump would be 100 more
+        assertTrue(during - before < 50, "Platform threads went from %d to %d".formatted(before, during));
+    }
+
+    @Test @Order(98)
+    void pumpReadsTheEndOfOutputAsSoonAsTheProcessExits() throws Exception {
+        final int runs = 20;
+        long totalLatency = 0;
+        for (int i = 0; i < runs; i++) {
+            // long enough for the pump to back off to its longest wait
+            final Process process = new ProcessBuilder("bash", "-c", "sleep 0.1").start();
+            final ProcessPipeInputStream pipe = new ProcessPipeInputStream(process, process.getInputStream());
+            final AtomicLong exited = new AtomicLong();
+            final CompletableFuture<Void> exit = process.onExit().thenRun(() -> exited.set(System.nanoTime()));
+            final AtomicLong ended = new AtomicLong();
+            final Thread pump = Thread.ofVirtual().start(() -> {
+                try {
+                    assertEquals(-1, pipe.read());
+                    ended.set(System.nanoTime());
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            pump.join(Duration.ofSeconds(10));
+            exit.join();
+            assertNotEquals(0, ended.get(), "The pump did not see the exit");
+            // the pump may see the exit before the callback runs
+            totalLatency += Math.max(0, ended.get() - exited.get());
+        }
+        // polling after the exit would average about half of the 10ms longest wait
+        final Duration meanLatency = Duration.ofNanos(totalLatency / runs);
+        assertTrue(meanLatency.compareTo(Duration.ofMillis(2)) < 0, "Mean latency after exit was " + meanLatency);
+    }
+
+    @Test @Order(100)
+    void timeoutTerminatesTheProcessTree() throws IOException {
+        final ExecutionResults executionResults = runAndJoin("sleep 30 & echo $!; wait", null,
+                ShellOutput.retainTail(), null, Duration.ofSeconds(1));
+        assertEquals(ExecutionResults.TIMED_OUT, executionResults.exitCode());
+        assertTrue(executionResults.elapsed().compareTo(Duration.ofSeconds(10)) < 0);
+        // the sleep was a grandchild, it may be left as a zombie when nothing reaps orphans
+        final String sleepPid = executionResults.stdoutLines().get(0);
+        final String sleepState = runAndJoin("ps -o stat= -p " + sleepPid + " || true").stdout().trim();
+        assertTrue(sleepState.isEmpty() || sleepState.startsWith("Z"), "sleep is still running: " + sleepState);
+    }
+
+    @Test @Order(110)
+    void ignoredSigtermIsEscalated() throws IOException {
+        final ExecutionResults executionResults = runAndJoin(
+                "trap '' TERM; echo started; while true; do sleep 0.1; done", null,
+                ShellOutput.retainTail(), null, Duration.ofSeconds(1));
+        assertEquals(ExecutionResults.TIMED_OUT, executionResults.exitCode());
+        assertEquals("started\n", executionResults.stdout());
+        assertTrue(executionResults.elapsed().compareTo(Duration.ofSeconds(10)) < 0);
+    }
+
+    @Test @Order(120)
+    void sendTerminationSignalReachesDescendants() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final ShellOutput output = ShellOutput.retainTail().onLine(line -> started.countDown());
+        try (final BashShell shell = BashShell.runAsync("sleep 30 & echo started; wait", null, output)) {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            shell.sendTerminationSignal();
+            final ExecutionResults executionResults = shell.join();
+            assertNotEquals(ExecutionResults.SUCCESS, executionResults.exitCode());
+            assertTrue(executionResults.elapsed().compareTo(Duration.ofSeconds(10)) < 0);
+        }
+    }
+
+    // helpers
+
+    private static long countFiles(final Path directory) throws IOException {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    /** Live platform threads, except the JDK's process reapers (one per running process) */
+    private static int platformThreads() {
+        return (int) Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> !thread.getName().startsWith("process reaper"))
+                .count();
+    }
 }
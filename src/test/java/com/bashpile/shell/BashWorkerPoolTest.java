@@ -0,0 +1,94 @@
+package com.bashpile.shell;
+
+import com.bashpile.maintests.BashpileTest;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@Order(8)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class BashWorkerPoolTest extends BashpileTest {
+
+    private static BashWorkerPool pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = new BashWorkerPool(1);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.close();
+    }
+
+    @Test @Order(10)
+    void echoRunsSuccessfully() throws IOException {
+        final ExecutionResults results = pool.runAndJoin("echo hello world", null);
+        assertSuccessfulExitCode(results);
+        assertEquals("hello world\n", results.stdout());
+    }
+
+    @Test @Order(20)
+    void exitCodeAndStderrAreReturned() throws IOException {
+        final ExecutionResults results = pool.runAndJoin("echo oops >&2; exit 3", null);
+        assertEquals(3, results.exitCode());
+        assertEquals("oops\n", results.stdout());
+    }
+
+    @Test @Order(30)
+    void outputWithoutNewlineWorks() throws IOException {
+        assertEquals("no newline\n", pool.runAndJoin("printf 'no newline'", null).stdout());
+    }
+
+    @Test @Order(35)
+    void longOutputWithoutNewlineWorks() throws IOException {
+        // many chunks then the sentinel, on one line
+        final ExecutionResults results = pool.runAndJoin("head -c 100000 /dev/zero | tr '\\0' a; exit 4", null);
+        assertEquals(4, results.exitCode());
+        assertEquals("a".repeat(100000) + "\n", results.stdout());
+        assertEquals("after\n", pool.runAndJoin("echo after", null).stdout());
+    }
+
+    @Test @Order(40)
+    void stateDoesNotLeakBetweenScripts() throws IOException {
+        final String workingDirectory = pool.runAndJoin("pwd", null).stdout();
+        assertSuccessfulExitCode(pool.runAndJoin("cd /; leakedVariable=leaked; set -e", null));
+        assertEquals(workingDirectory, pool.runAndJoin("pwd", null).stdout());
+        assertEquals("\n", pool.runAndJoin("echo \"${leakedVariable:-}\"", null).stdout());
+        assertEquals(1, pool.runAndJoin("false", null).exitCode());
+        assertEquals("still here\n", pool.runAndJoin("echo still here", null).stdout());
+    }
+
+    @Test @Order(50)
+    void argsWork() throws IOException {
+        assertEquals("one two\n", pool.runAndJoin("echo \"$1 $2\"", new String[] {"one", "two"}).stdout());
+    }
+
+    @Test @Order(60)
+    void workersAreRecycled() throws IOException {
+        for (int i = 0; i < BashWorkerPool.MAX_USES + 1; i++) {
+            assertSuccessfulExitCode(pool.runAndJoin("true", null));
+        }
+    }
+
+    @Test @Order(70)
+    void failureAfterTheScriptStartedDoesNotRunItAgain() throws IOException {
+        final Path runs = Files.createTempFile("bashWorkerPoolTest", ".runs");
+        try {
+            final ShellOutput failingOutput = ShellOutput.retainTail().onLine(line -> {
+                throw new IOException("output failed");
+            });
+            assertThrows(IOException.class, () -> pool.runAndJoin(
+                    "echo run >> '%s'; echo done".formatted(runs), null, failingOutput));
+            assertEquals(1, Files.readAllLines(runs).size());
+            assertEquals("after\n", pool.runAndJoin("echo after", null).stdout());
+        } finally {
+            Files.deleteIfExists(runs);
+        }
+    }
+}
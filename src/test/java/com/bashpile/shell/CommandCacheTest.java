@@ -0,0 +1,102 @@
+package com.bashpile.shell;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Order(7)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class CommandCacheTest {
+
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        file = Files.createTempFile("commandCacheTest", ".properties");
+        Files.delete(file);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test @Order(10)
+    void savedCommandsAreHitsInTheNextCompile() {
+        final CommandCache firstCompile = new CommandCache(file);
+        assertEquals(Optional.empty(), firstCompile.get("ls"));
+        firstCompile.put("ls", true);
+        firstCompile.put("notACommand", false);
+        firstCompile.save();
+
+        final CommandCache secondCompile = new CommandCache(file);
+        assertEquals(Optional.of(true), secondCompile.get("ls"));
+        assertEquals(Optional.of(false), secondCompile.get("notACommand"));
+        assertTrue(secondCompile.stats().contains("Hits: 2, misses: 1"), secondCompile.stats());
+    }
+
+    @Test @Order(20)
+    void pathsAreNotSaved() {
+        final CommandCache cache = new CommandCache(file);
+        cache.put("./my_ls.bash", true);
+        cache.save();
+        assertEquals(Optional.empty(), new CommandCache(file).get("./my_ls.bash"));
+    }
+
+    @Test @Order(30)
+    void changedFingerprintDropsCommands() throws IOException {
+        Files.writeString(file, """
+                bashpile.fingerprint=fromADifferentPath
+                bashpile.hits=3
+                ls=true
+                """);
+        final CommandCache cache = new CommandCache(file);
+        assertEquals(Optional.empty(), cache.get("ls"));
+        assertTrue(cache.stats().contains("Hits: 3, misses: 1"), cache.stats());
+    }
+
+    @Test @Order(40)
+    void refreshDropsCommandsResolvedUnderAnotherFingerprint() {
+        final CommandCache cache = new CommandCache(file);
+        assertFalse(cache.refresh("beforeInstall"));
+        cache.put("newTool", false);
+        assertTrue(cache.refresh("afterInstall"));
+        assertEquals(Optional.empty(), cache.get("newTool"));
+        assertFalse(cache.refresh("afterInstall"));
+    }
+
+    @Test @Order(50)
+    void saveKeepsTheFingerprintTheCommandsWereResolvedUnder() {
+        final CommandCache resident = new CommandCache(file);
+        resident.refresh("beforeAPathChange");
+        resident.put("ls", true);
+        resident.save();
+
+        // a compile with the current fingerprint doesn't trust them
+        assertEquals(Optional.empty(), new CommandCache(file).get("ls"));
+    }
+
+    @Test @Order(60)
+    void editingAProfileScriptChangesTheFingerprint() throws IOException {
+        final Path profileDirectory = Files.createTempDirectory("profile.d");
+        try {
+            final Path script = Files.writeString(profileDirectory.resolve("tools.sh"), "alias ll='ls -l'\n");
+            final FileTime directoryModified = Files.getLastModifiedTime(profileDirectory);
+            final String before = CommandCache.fingerprint("/usr/bin", List.of(profileDirectory));
+
+            Files.writeString(script, "ll() { ls -l; }\n");
+            Files.setLastModifiedTime(profileDirectory, directoryModified);
+            assertNotEquals(before, CommandCache.fingerprint("/usr/bin", List.of(profileDirectory)));
+        } finally {
+            FileUtils.deleteDirectory(profileDirectory.toFile());
+        }
+    }
+}
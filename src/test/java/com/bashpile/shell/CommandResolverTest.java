@@ -0,0 +1,71 @@
+package com.bashpile.shell;
+
+import com.bashpile.maintests.BashpileTest;
+import com.bashpile.shell.CommandResolver.CommandType;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static com.bashpile.shell.CommandResolver.resolve;
+import static com.bashpile.shell.CommandResolver.resolveAll;
+import static com.bashpile.shell.CommandResolver.resolveInProcess;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@Order(6)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class CommandResolverTest extends BashpileTest {
+
+    @Test @Order(10)
+    void keywordsResolveInProcess() {
+        assertEquals(CommandType.KEYWORD, resolveInProcess("if"));
+        assertEquals(CommandType.KEYWORD, resolveInProcess("[["));
+    }
+
+    @Test @Order(20)
+    void builtinsResolveInProcess() {
+        assertEquals(CommandType.BUILTIN, resolveInProcess("cd"));
+        assertEquals(CommandType.BUILTIN, resolveInProcess("."));
+    }
+
+    @Test @Order(30)
+    void pathCommandsResolveInProcess() {
+        assertEquals(CommandType.FILE, resolveInProcess("ls"));
+    }
+
+    @Test @Order(40)
+    void pathsResolveInProcess() throws IOException {
+        final String command = "src/test/resources/scripts/my_ls.bash";
+        assertSuccessfulExitCode(BashShell.runAndJoin("chmod +x " + command));
+        assertEquals(CommandType.FILE, resolveInProcess(command));
+        assertEquals(CommandType.NOT_FOUND, resolveInProcess("src/test/resources/scripts/notAFile"));
+        // not executable
+        assertEquals(CommandType.NOT_FOUND, resolveInProcess("src/test/resources/testdata.txt"));
+    }
+
+    @Test @Order(50)
+    void unknownNamesNeedTheShell() throws IOException {
+        assertEquals(CommandType.UNKNOWN, resolveInProcess("notACommandAnywhere"));
+        assertEquals(CommandType.NOT_FOUND, resolve("notACommandAnywhere"));
+    }
+
+    @Test @Order(55)
+    void resolveAllMixesInProcessAndShell() throws IOException {
+        final Map<String, CommandType> types = resolveAll(List.of("cd", "notACommandAnywhere", "if", "ls", "x:"));
+        assertEquals(Map.of("cd", CommandType.BUILTIN, "notACommandAnywhere", CommandType.NOT_FOUND,
+                "if", CommandType.KEYWORD, "ls", CommandType.FILE, "x:", CommandType.NOT_FOUND), types);
+    }
+
+    @Test @Order(60)
+    void inProcessMatchesTheShell() throws IOException {
+        for (final String command : new String[] {"if", "cd", "printf", "ls", "cat", "while"}) {
+            final CommandType shellType = CommandType.fromTypeOutput(
+                    BashShell.runAndJoin("type -t " + command).stdout());
+            assertEquals(shellType, resolveInProcess(command), command);
+        }
+    }
+}
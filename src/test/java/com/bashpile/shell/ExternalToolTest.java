@@ -0,0 +1,47 @@
+package com.bashpile.shell;
+
+import com.bashpile.maintests.BashpileTest;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Order(9)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class ExternalToolTest extends BashpileTest {
+
+    @Test @Order(10)
+    void findWorks() {
+        assertTrue(ExternalTool.find("cat").isPresent());
+        assertSame(ExternalTool.find("cat").orElseThrow(), ExternalTool.find("cat").orElseThrow());
+    }
+
+    @Test @Order(20)
+    void findMissingToolIsEmpty() {
+        assertTrue(ExternalTool.find("notAToolAnywhere").isEmpty());
+    }
+
+    @Test @Order(30)
+    void runPipesStdin() throws IOException {
+        final ExecutionResults results = ExternalTool.find("tr").orElseThrow().run("hello\n", "a-z", "A-Z");
+        assertSuccessfulExitCode(results);
+        assertEquals("HELLO\n", results.stdout());
+        assertTrue(results.stdin().endsWith("tr a-z A-Z"));
+    }
+
+    @Test @Order(40)
+    void runLargeInputWorks() throws IOException {
+        final String large = "0123456789abcdef\n".repeat(64 * 1024);
+        assertEquals(large, ExternalTool.find("cat").orElseThrow().run(large).stdout());
+    }
+
+    @Test @Order(50)
+    void runReturnsExitCode() throws IOException {
+        final ExecutionResults results = ExternalTool.find("grep").orElseThrow().run("one\ntwo\n", "three");
+        assertEquals(1, results.exitCode());
+    }
+}
@@ -0,0 +1,105 @@
+package com.bashpile.shell;
+
+import com.bashpile.maintests.BashpileTest;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Order(11)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class ShellOutputTest extends BashpileTest {
+
+    @Test @Order(10)
+    void noiseIsScrubbedLineByLine() throws Exception {
+        final List<String> lines = new ArrayList<>();
+        final ShellOutput output = ShellOutput.retainTail().onLine(lines::add);
+        output.accept("first");
+        output.accept("your 131x1 screen size is bogus. expect trouble");
+        output.accept("start\u001B[3J\u001B[H\u001B[2J");
+        output.accept("end");
+        output.accept("last\u001B[3J\u001B[H\u001B[2J");
+        output.finish();
+        assertEquals(List.of("first", "startend", "last"), lines);
+        assertEquals("first\nstartend\nlast\n", output.tail());
+    }
+
+    @Test @Order(20)
+    void tailIsBounded() throws Exception {
+        final ShellOutput output = ShellOutput.retainTail(10);
+        for (int i = 0; i < 100; i++) {
+            output.accept("line " + i);
+        }
+        output.finish();
+        assertEquals("line 99\n", output.tail());
+        assertEquals("line 0\n".length() * 10 + "line 10\n".length() * 89, output.droppedChars());
+
+        final ShellOutput longLine = ShellOutput.retainTail(4);
+        longLine.accept("0123456789");
+        assertEquals("789\n", longLine.tail());
+    }
+
+    @Test @Order(30)
+    void largeOutputIsStreamed() throws IOException {
+        final AtomicLong lineCount = new AtomicLong();
+        final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        final ShellOutput output = ShellOutput.retainTail(100)
+                .onLine(line -> lineCount.incrementAndGet())
+                .onChunk(chunks);
+        final ExecutionResults results = BashShell.runAndJoin("seq 1 200000", null, output);
+        assertSuccessfulExitCode(results);
+        assertEquals(200000, lineCount.get());
+        assertTrue(results.stdout().length() <= 100);
+        assertTrue(results.stdout().endsWith("199999\n200000\n"));
+        assertTrue(chunks.toString(StandardCharsets.UTF_8).endsWith("199999\n200000\n"));
+    }
+
+    @Test @Order(40)
+    void slowConsumerDoesNotLoseOutput() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        final ShellOutput output = ShellOutput.retainTail(0).onLine(line -> {
+            Thread.sleep(1);
+            lines.add(line);
+        });
+        assertSuccessfulExitCode(BashShell.runAndJoin("seq 1 500", null, output));
+        assertEquals(500, lines.size());
+        assertEquals("500", lines.get(lines.size() - 1));
+        assertEquals("", output.tail());
+    }
+
+    @Test @Order(50)
+    void chunksAreSplitIntoLines() throws Exception {
+        final List<String> lines = new ArrayList<>();
+        final ShellOutput output = ShellOutput.retainTail().onLine(lines::add);
+        output.acceptText("fir");
+        output.acceptText("st\nsecond\r");
+        output.acceptText("\nthird\rfourth\n\nla");
+        output.acceptText("st");
+        output.finish();
+        assertEquals(List.of("first", "second", "third", "fourth", "", "last"), lines);
+    }
+
+    @Test @Order(60)
+    void hugeLineWithoutNewlineIsBounded() throws IOException {
+        final int chars = ShellOutput.MAX_LINE_CHARS + 1_000_000;
+        final AtomicLong lineLength = new AtomicLong();
+        final ShellOutput output = ShellOutput.retainTail().onLine(line -> lineLength.set(line.length()));
+        final ExecutionResults results =
+                BashShell.runAndJoin("head -c %d /dev/zero | tr '\\0' a".formatted(chars), null, output);
+        assertSuccessfulExitCode(results);
+        assertEquals(ShellOutput.MAX_LINE_CHARS, lineLength.get());
+        assertEquals(ShellOutput.DEFAULT_TAIL_CHARS, results.stdout().length());
+        assertTrue(results.stdout().endsWith("aaa\n"));
+        // the start of the line, then its newline
+        assertEquals(chars - ShellOutput.DEFAULT_TAIL_CHARS + 1, output.droppedChars());
+    }
+}
@@ -0,0 +1,127 @@
+package com.bashpile.shell;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Uses a stand-in for shellcheck that saves its input, counts its runs and fails on BADWORD */
+@Order(10)
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class ShellcheckCacheTest {
+
+    private static final String FAKE_SHELLCHECK =
+            "input=$(cat); printf '%s\\n' \"$input\" > \"$0\"; echo run >> \"$0.runs\"; [[ $input != *BADWORD* ]]";
+
+    private static final String SCRIPT = """
+            #
+            # Generated from test.bps on 2024-01-01 (timestamp 1)
+            #
+            # function declaration, Bashpile line 1
+            first() {
+              # print statement, Bashpile line 2
+              printf -- "first\\n"
+            }
+            # function declaration, Bashpile line 3
+            second() {
+              # print statement, Bashpile line 4
+              printf -- "second\\n"
+            }
+            # expression statement, Bashpile line 5
+            first
+            """;
+
+    private Path cacheDirectory;
+
+    private Path lastInput;
+
+    private ExternalTool bash;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cacheDirectory = Files.createTempDirectory("shellcheckCacheTest");
+        lastInput = cacheDirectory.resolve("lastInput");
+        bash = ExternalTool.find("bash").orElseThrow();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        FileUtils.deleteDirectory(cacheDirectory.toFile());
+    }
+
+    @Test @Order(10)
+    void identicalScriptIsCheckedOnce() throws IOException {
+        final ShellcheckCache cache = new ShellcheckCache(cacheDirectory.resolve("shellcheck"), false);
+        assertEquals(0, check(cache, SCRIPT).exitCode());
+        final ExecutionResults cached = check(cache, SCRIPT);
+        assertEquals(0, cached.exitCode());
+        assertTrue(cached.stdin().endsWith("(cached)"));
+        assertEquals(1, runs());
+        assertTrue(cache.stats().contains("Verified: 1"));
+    }
+
+    @Test @Order(20)
+    void timestampAndLineNumbersAreIgnored() throws IOException {
+        final ShellcheckCache cache = new ShellcheckCache(cacheDirectory.resolve("shellcheck"), false);
+        check(cache, SCRIPT);
+        check(cache, SCRIPT.replace("timestamp 1", "timestamp 2").replace("line 5", "line 6"));
+        assertEquals(1, runs());
+        check(cache, SCRIPT.replace("first\n", "second\n"));
+        assertEquals(2, runs());
+    }
+
+    @Test @Order(30)
+    void failuresAreNotCached() throws IOException {
+        final ShellcheckCache cache = new ShellcheckCache(cacheDirectory.resolve("shellcheck"), false);
+        final String badScript = SCRIPT.replace("first\\n", "BADWORD");
+        assertEquals(1, check(cache, badScript).exitCode());
+        assertEquals(1, check(cache, badScript).exitCode());
+        assertEquals(2, runs());
+    }
+
+    @Test @Order(40)
+    void onlyChangedFunctionsAreChecked() throws IOException {
+        final ShellcheckCache cache = new ShellcheckCache(cacheDirectory.resolve("shellcheck"), false).perFunction();
+        check(cache, SCRIPT);
+        assertEquals(0, check(cache, SCRIPT.replace("second\\n", "changed\\n")).exitCode());
+        assertEquals(2, runs());
+        final String reduced = Files.readString(lastInput);
+        assertTrue(reduced.contains("first() { :; }"), reduced);
+        assertTrue(reduced.contains("changed"), reduced);
+    }
+
+    @Test @Order(50)
+    void failingFunctionChecksWholeScript() throws IOException {
+        final ShellcheckCache cache = new ShellcheckCache(cacheDirectory.resolve("shellcheck"), false).perFunction();
+        check(cache, SCRIPT);
+        final String badScript = SCRIPT.replace("second\\n", "BADWORD");
+        assertEquals(1, check(cache, badScript).exitCode());
+        // the reduced script then the whole script
+        assertEquals(3, runs());
+        assertEquals(badScript, Files.readString(lastInput));
+    }
+
+    @Test @Order(60)
+    void fileIsCheckedLikeItsText() throws IOException {
+        final ShellcheckCache cache = new ShellcheckCache(cacheDirectory.resolve("shellcheck"), false);
+        final Path scriptFile = Files.writeString(cacheDirectory.resolve("script.bash"), SCRIPT);
+        assertEquals(0, cache.check(bash, scriptFile, "-c", FAKE_SHELLCHECK, lastInput.toString()).exitCode());
+        assertEquals(SCRIPT, Files.readString(lastInput));
+        check(cache, SCRIPT.replace("timestamp 1", "timestamp 2"));
+        assertEquals(1, runs());
+    }
+
+    // helpers
+
+    private ExecutionResults check(final ShellcheckCache cache, final String script) throws IOException {
+        return cache.check(bash, script, "-c", FAKE_SHELLCHECK, lastInput.toString());
+    }
+
+    private long runs() throws IOException {
+        return Files.readAllLines(Path.of(lastInput + ".runs")).size();
+    }
+}